@@ -0,0 +1,68 @@
+/* 
+ * CharacterSetPolicyBenchmark.java
+ * 
+ * Copyright (C) 2012 Jonathan Moore
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *   
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.chaplib.benchmark;
+
+import java.nio.charset.Charset;
+import java.util.concurrent.TimeUnit;
+
+import org.chaplib.AllowOnlyIANACharacterSetsPolicy;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Measures character set validation for commonly seen
+ * charset parameter values.
+ */
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class CharacterSetPolicyBenchmark {
+
+    @Param({"UTF-8", "iso-8859-1", "Windows-1252"})
+    public String charSet;
+
+    private AllowOnlyIANACharacterSetsPolicy policy;
+
+    @Setup
+    public void setUp() {
+        policy = new AllowOnlyIANACharacterSetsPolicy();
+    }
+
+    @Benchmark
+    public String validateCharacterSet() {
+        policy.validateCharacterSet(charSet);
+        return charSet;
+    }
+
+    @Benchmark
+    public Charset resolveCharacterSet() {
+        return policy.resolveCharacterSet(charSet);
+    }
+}
@@ -0,0 +1,104 @@
+/* 
+ * HttpResourceFactoryBenchmark.java
+ * 
+ * Copyright (C) 2012 Jonathan Moore
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *   
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.chaplib.benchmark;
+
+import java.net.URI;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.http.impl.client.DefaultHttpClient;
+import org.chaplib.HttpResource;
+import org.chaplib.HttpResourceFactory;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Measures {@link HttpResourceFactory#get(URI)} lookups of a
+ * small set of hot resources from many threads at once. No
+ * requests are issued; only the directory lookup is exercised.
+ */
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class HttpResourceFactoryBenchmark {
+
+    private static final int NUM_URIS = 64;
+
+    @State(Scope.Benchmark)
+    public static class Directory {
+        HttpResourceFactory factory;
+        URI[] uris;
+        HttpResource[] pinned;
+
+        @Setup
+        public void setUp() throws Exception {
+            factory = new HttpResourceFactory(new DefaultHttpClient());
+            uris = new URI[NUM_URIS];
+            pinned = new HttpResource[NUM_URIS];
+            for(int i=0; i<NUM_URIS; i++) {
+                uris[i] = new URI("http://host" + (i % 8) + ".example.com/resource/" + i);
+                pinned[i] = factory.get(uris[i]);
+            }
+        }
+
+        @TearDown
+        public void tearDown() {
+            factory.shutdown();
+        }
+    }
+
+    @State(Scope.Thread)
+    public static class Cursor {
+        int next;
+
+        @Setup(Level.Iteration)
+        public void setUp() {
+            next = (int)(Thread.currentThread().getId() % NUM_URIS);
+        }
+    }
+
+    @Benchmark
+    @Threads(1)
+    public HttpResource getSingleThreaded(Directory dir, Cursor cursor) {
+        return get(dir, cursor);
+    }
+
+    @Benchmark
+    @Threads(8)
+    public HttpResource getContended(Directory dir, Cursor cursor) {
+        return get(dir, cursor);
+    }
+
+    private HttpResource get(Directory dir, Cursor cursor) {
+        int i = cursor.next;
+        cursor.next = (i + 1) % NUM_URIS;
+        return dir.factory.get(dir.uris[i]);
+    }
+}
@@ -0,0 +1,76 @@
+/* 
+ * HttpURLBenchmark.java
+ * 
+ * Copyright (C) 2012 Jonathan Moore
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *   
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.chaplib.benchmark;
+
+import java.util.concurrent.TimeUnit;
+
+import org.chaplib.HttpURL;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Measures {@link HttpURL} canonicalization, hashing and
+ * equality checks.
+ */
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class HttpURLBenchmark {
+
+    @Param({"http://www.example.com/",
+            "http://www.example.com:80/already/canonical",
+            "HTTP://WWW.Example.COM:80/%7Esmith/home.html",
+            "https://api.example.com/v1/items/12345?fields=name%2Cprice&page=2"})
+    public String url;
+
+    private HttpURL httpURL;
+    private HttpURL equivalent;
+
+    @Setup
+    public void setUp() {
+        httpURL = new HttpURL(url);
+        equivalent = new HttpURL(url);
+    }
+
+    @Benchmark
+    public HttpURL canonicalize() {
+        return new HttpURL(url);
+    }
+
+    @Benchmark
+    public int hashCodeOfCanonical() {
+        return httpURL.hashCode();
+    }
+
+    @Benchmark
+    public boolean equalsEquivalent() {
+        return httpURL.equals(equivalent);
+    }
+}
@@ -0,0 +1,114 @@
+/* 
+ * RequestCollapserBenchmark.java
+ * 
+ * Copyright (C) 2012 Jonathan Moore
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *   
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.chaplib.benchmark;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import org.chaplib.Computation;
+import org.chaplib.RequestCollapser;
+import org.chaplib.TooLateException;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Measures the coordination cost of a {@link RequestCollapser}
+ * shared by one leader and <code>waiters</code> follower threads.
+ * The backend computation does not complete until every follower
+ * has arrived, so each operation exercises the full wait/wake path;
+ * a thread that loses the race between arriving and joining sees
+ * a {@link TooLateException} and simply returns.
+ */
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class RequestCollapserBenchmark {
+
+    @Param({"1", "8", "64"})
+    public int waiters;
+
+    private ExecutorService executor;
+    private final Object result = new Object();
+
+    @Setup
+    public void setUp() {
+        executor = Executors.newFixedThreadPool(waiters);
+    }
+
+    @TearDown
+    public void tearDown() {
+        executor.shutdownNow();
+    }
+
+    @Benchmark
+    public Object collapse() throws Exception {
+        final CountDownLatch joined = new CountDownLatch(waiters);
+        final RequestCollapser<Object> collapser =
+            new RequestCollapser<Object>(new Computation<Object>() {
+                public Object execute() {
+                    try {
+                        joined.await();
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                    }
+                    return result;
+                }
+            });
+        List<Future<Object>> followers = new ArrayList<Future<Object>>(waiters);
+        for(int i=0; i<waiters; i++) {
+            followers.add(executor.submit(new Callable<Object>() {
+                public Object call() {
+                    joined.countDown();
+                    return join(collapser);
+                }
+            }));
+        }
+        Object out = join(collapser);
+        for(Future<Object> f : followers) {
+            f.get();
+        }
+        return out;
+    }
+
+    private Object join(RequestCollapser<Object> collapser) {
+        try {
+            return collapser.get();
+        } catch (TooLateException late) {
+            return null;
+        }
+    }
+}
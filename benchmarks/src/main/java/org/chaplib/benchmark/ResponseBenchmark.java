@@ -0,0 +1,99 @@
+/* 
+ * ResponseBenchmark.java
+ * 
+ * Copyright (C) 2012 Jonathan Moore
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *   
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.chaplib.benchmark;
+
+import java.util.Date;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.http.HttpResponse;
+import org.apache.http.HttpStatus;
+import org.apache.http.HttpVersion;
+import org.apache.http.impl.cookie.DateUtils;
+import org.apache.http.message.BasicHttpResponse;
+import org.chaplib.Response;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Measures freshness and staleness evaluation on a
+ * {@link Response} carrying a typical set of caching headers.
+ */
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class ResponseBenchmark {
+
+    private HttpResponse httpResponse;
+    private Date requestSent;
+    private Date responseReceived;
+    private Date now;
+    private Response response;
+
+    @Setup
+    public void setUp() {
+        now = new Date();
+        requestSent = new Date(now.getTime() - 30 * 1000L);
+        responseReceived = new Date(now.getTime() - 29 * 1000L);
+        httpResponse = new BasicHttpResponse(HttpVersion.HTTP_1_1, HttpStatus.SC_OK, "OK");
+        httpResponse.setHeader("Date", DateUtils.formatDate(requestSent));
+        httpResponse.setHeader("Last-Modified", DateUtils.formatDate(new Date(0L)));
+        httpResponse.setHeader("ETag", "\"abcdef\"");
+        httpResponse.setHeader("Age", "3");
+        httpResponse.setHeader("Cache-Control",
+                "max-age=20, stale-while-revalidate=60, stale-if-error=600");
+        response = new Response(requestSent, responseReceived, httpResponse);
+    }
+
+    @Benchmark
+    public Response create() {
+        return new Response(requestSent, responseReceived, httpResponse);
+    }
+
+    @Benchmark
+    public boolean isResponseFresh() {
+        return response.isResponseFresh(now);
+    }
+
+    @Benchmark
+    public long getStalenessSecs() {
+        return response.getStalenessSecs(now);
+    }
+
+    @Benchmark
+    public boolean mayReturnStaleWhileRevalidating() {
+        return response.mayReturnStaleWhileRevalidating(now);
+    }
+
+    @Benchmark
+    public long freshnessCheckSequence() {
+        if (response.isResponseFresh(now)) return 0L;
+        if (response.mayReturnStaleWhileRevalidating(now)) return 1L;
+        return response.getStalenessSecs(now);
+    }
+}
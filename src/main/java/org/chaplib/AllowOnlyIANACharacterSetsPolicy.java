@@ -17,22 +17,34 @@
  */
 package org.chaplib;
 
-import java.util.HashSet;
-import java.util.Set;
+import java.nio.charset.Charset;
 
 public class AllowOnlyIANACharacterSetsPolicy {
 
-    private final static Set<String> IANA_CHAR_SETS;
-    static {
-        IANA_CHAR_SETS = new HashSet<String>();
-        for(String s : IANACharacterSets.CHARACTER_SETS)
-            IANA_CHAR_SETS.add(s.toLowerCase());
-    }
-    
+    private static final Charset DEFAULT_CHARSET = Charset.forName("ISO-8859-1");
+
     public void validateCharacterSet(String charSet) {
         if (charSet == null || "".equals(charSet)) return;
-        if (!IANA_CHAR_SETS.contains(charSet.toLowerCase()))
+        if (IANACharacterSetTable.indexOf(charSet) < 0)
+            throw new InvalidCharacterSetException("not an IANA character set: " + charSet);
+    }
+
+    /**
+     * Validates the given character set name as above and returns
+     * the {@link Charset} it names. A missing name means the HTTP
+     * default, ISO-8859-1.
+     * @throws InvalidCharacterSetException if the name is not
+     *   registered with IANA, or this JVM does not support it
+     */
+    public Charset resolveCharacterSet(String charSet) {
+        if (charSet == null || "".equals(charSet)) return DEFAULT_CHARSET;
+        int index = IANACharacterSetTable.indexOf(charSet);
+        if (index < 0)
             throw new InvalidCharacterSetException("not an IANA character set: " + charSet);
+        Charset out = IANACharacterSetTable.charsetOf(index);
+        if (out == null)
+            throw new InvalidCharacterSetException("unsupported character set: " + charSet);
+        return out;
     }
 
 }
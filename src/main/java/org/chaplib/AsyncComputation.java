@@ -0,0 +1,35 @@
+/* 
+ * AsyncComputation.java
+ * 
+ * Copyright (C) 2012 Jonathan Moore
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *   
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.chaplib;
+
+/**
+ * A computation that delivers its result asynchronously rather
+ * than occupying the calling thread until it is done.
+ *
+ * @param <T> the type of result produced by the computation
+ */
+public interface AsyncComputation<T> {
+
+    /**
+     * Starts the computation. Implementations should return
+     * promptly and arrange for the given callback to be notified
+     * when the computation completes or fails.
+     * @param callback receives the outcome of the computation
+     */
+    void execute(ResultCallback<T> callback);
+}
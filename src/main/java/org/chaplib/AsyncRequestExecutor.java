@@ -0,0 +1,99 @@
+/* 
+ * AsyncRequestExecutor.java
+ * 
+ * Copyright (C) 2012 Jonathan Moore
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *   
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.chaplib;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * An <code>AsyncRequestExecutor</code> runs the requests behind
+ * the asynchronous {@link HttpResource} methods on a bounded pool
+ * of daemon threads. Requests that find the pool and its queue
+ * full fail immediately with a
+ * {@link RejectedExecutionException} rather than blocking the
+ * caller. Since the underlying <code>HttpClient</code> is
+ * blocking, each request holds one of the threads for its whole
+ * exchange, so the pool size bounds how many requests are in
+ * flight at once.
+ */
+public class AsyncRequestExecutor {
+
+    public static final int DEFAULT_MAX_THREADS = 16;
+    public static final int DEFAULT_MAX_QUEUED = 1000;
+    private static final long IDLE_SECS = 60L;
+
+    private final ThreadPoolExecutor executor;
+
+    /**
+     * Creates an <code>AsyncRequestExecutor</code> with the
+     * default thread and queue limits.
+     */
+    public AsyncRequestExecutor() {
+        this(DEFAULT_MAX_THREADS, DEFAULT_MAX_QUEUED);
+    }
+
+    /**
+     * Creates an <code>AsyncRequestExecutor</code>. Threads are
+     * only started when requests are actually made, and exit again
+     * after a minute of idleness.
+     * @param maxThreads maximum number of concurrent requests
+     * @param maxQueued maximum number of requests waiting for a
+     *   thread
+     */
+    public AsyncRequestExecutor(int maxThreads, int maxQueued) {
+        executor = new ThreadPoolExecutor(maxThreads, maxThreads, IDLE_SECS, TimeUnit.SECONDS,
+                new ArrayBlockingQueue<Runnable>(maxQueued), new DaemonThreadFactory("async"));
+        executor.allowCoreThreadTimeOut(true);
+    }
+
+    /**
+     * Runs the given request on the pool.
+     * @return a future completed with the request's result or
+     *   failure
+     */
+    <T> ResultFuture<T> submit(final Computation<T> request) {
+        final ResultFuture<T> future = new ResultFuture<T>();
+        try {
+            executor.execute(new Runnable() {
+                public void run() {
+                    try {
+                        future.completed(request.execute());
+                    } catch (RuntimeException e) {
+                        future.failed(e);
+                    } catch (Error e) {
+                        future.failed(e);
+                        throw e;
+                    }
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            future.failed(e);
+        }
+        return future;
+    }
+
+    /**
+     * Stops accepting requests; already submitted requests are
+     * still completed.
+     */
+    public void shutdown() {
+        executor.shutdown();
+    }
+}
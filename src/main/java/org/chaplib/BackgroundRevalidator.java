@@ -0,0 +1,103 @@
+/* 
+ * BackgroundRevalidator.java
+ * 
+ * Copyright (C) 2012 Jonathan Moore
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *   
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.chaplib;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A <code>BackgroundRevalidator</code> refreshes stale cache
+ * entries asynchronously, so that callers allowed to use a stale
+ * response (for example under <code>stale-while-revalidate</code>)
+ * do not wait on the origin server. At most one refresh per URL
+ * is outstanding at any time, and refreshes run on a bounded pool
+ * of daemon threads; when the pool and its queue are full, further
+ * refreshes are simply skipped.
+ */
+public class BackgroundRevalidator {
+
+    public static final int DEFAULT_MAX_THREADS = 2;
+    public static final int DEFAULT_MAX_QUEUED = 100;
+    private static final long IDLE_SECS = 60L;
+
+    private final ThreadPoolExecutor executor;
+    private final ConcurrentHashMap<HttpURL, Boolean> inFlight =
+        new ConcurrentHashMap<HttpURL, Boolean>();
+
+    /**
+     * Creates a <code>BackgroundRevalidator</code> with the
+     * default thread and queue limits.
+     */
+    public BackgroundRevalidator() {
+        this(DEFAULT_MAX_THREADS, DEFAULT_MAX_QUEUED);
+    }
+
+    /**
+     * Creates a <code>BackgroundRevalidator</code>. Threads are
+     * only started when refreshes are actually requested, and
+     * exit again after a minute of idleness.
+     * @param maxThreads maximum number of concurrent refreshes
+     * @param maxQueued maximum number of refreshes waiting for a
+     *   thread
+     */
+    public BackgroundRevalidator(int maxThreads, int maxQueued) {
+        executor = new ThreadPoolExecutor(maxThreads, maxThreads, IDLE_SECS, TimeUnit.SECONDS,
+                new ArrayBlockingQueue<Runnable>(maxQueued), new DaemonThreadFactory("revalidator"));
+        executor.allowCoreThreadTimeOut(true);
+    }
+
+    /**
+     * Schedules a refresh of the given URL unless one is already
+     * outstanding.
+     * @param url the canonical URL being refreshed
+     * @param refresh performs the refresh
+     * @return <code>true</code> if the refresh was scheduled
+     */
+    boolean revalidate(final HttpURL url, final Runnable refresh) {
+        if (inFlight.putIfAbsent(url, Boolean.TRUE) != null) return false;
+        try {
+            executor.execute(new Runnable() {
+                public void run() {
+                    try {
+                        refresh.run();
+                    } catch (RuntimeException e) {
+                        // the stale entry stays in place; a later
+                        // request will try again
+                    } finally {
+                        inFlight.remove(url);
+                    }
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            inFlight.remove(url);
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * Stops accepting refreshes; already scheduled refreshes are
+     * still completed.
+     */
+    public void shutdown() {
+        executor.shutdown();
+    }
+}
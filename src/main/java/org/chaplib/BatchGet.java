@@ -0,0 +1,329 @@
+package org.chaplib;
+/*
+ * BatchGet.java
+ *
+ * Copyright (C) 2012 Jonathan Moore
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+import java.net.URI;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * The values of a batch of resources, fetched in parallel by
+ * {@link HttpResourceFactory#getAll} and handed out in the order
+ * in which they complete. At most a fixed number of requests are
+ * outstanding at once, both in total and per host; the rest wait
+ * their turn without holding a thread. A request the
+ * {@link AsyncRequestExecutor} has no room for is retried once
+ * another request of the batch completes.
+ *
+ * @param <T> the type of parsed value
+ */
+public class BatchGet<T> {
+
+    /**
+     * The outcome of fetching one resource of a batch.
+     */
+    public static class Result<T> {
+        private final URI uri;
+        private final T value;
+        private final Throwable failure;
+
+        Result(URI uri, T value, Throwable failure) {
+            this.uri = uri;
+            this.value = value;
+            this.failure = failure;
+        }
+
+        /**
+         * Returns the URI of the resource, as first given for it
+         * in the batch.
+         */
+        public URI getURI() {
+            return uri;
+        }
+
+        public boolean isFailed() {
+            return failure != null;
+        }
+
+        public Throwable getFailure() {
+            return failure;
+        }
+
+        /**
+         * Returns the parsed value of the resource.
+         * @throws RuntimeException the failure, if fetching or
+         *   parsing the resource failed
+         */
+        public T getValue() {
+            if (failure instanceof RuntimeException) throw (RuntimeException)failure;
+            if (failure instanceof Error) throw (Error)failure;
+            if (failure != null) throw new RuntimeException(failure);
+            return value;
+        }
+    }
+
+    private static class Pending {
+        final URI uri;
+        final Host host;
+        final HttpResource resource;
+
+        Pending(URI uri, Host host, HttpResource resource) {
+            this.uri = uri;
+            this.host = host;
+            this.resource = resource;
+        }
+    }
+
+    /*
+     * The fetches waiting for one host. A host is on the ready list
+     * whenever it has fetches waiting and room to start one.
+     */
+    private static class Host {
+        final LinkedList<Pending> pending = new LinkedList<Pending>();
+        int running = 0;
+        boolean ready = false;
+    }
+
+    private final ContentParser<T> parser;
+    private final int maxConcurrent;
+    private final int maxPerHost;
+    private final int size;
+    private final LinkedList<Host> readyHosts = new LinkedList<Host>();
+    private final List<Pending> rejected = new ArrayList<Pending>();
+    private int running = 0;
+    private boolean dispatching = false;
+    private boolean redispatch = false;
+    private final LinkedBlockingQueue<Result<T>> completed = new LinkedBlockingQueue<Result<T>>();
+    private final AtomicInteger taken = new AtomicInteger(0);
+
+    BatchGet(Map<HttpURL, URI> uris, Map<HttpURL, HttpResource> resources,
+            ContentParser<T> parser, int maxConcurrent, int maxPerHost) {
+        if (maxConcurrent < 1 || maxPerHost < 1) {
+            throw new IllegalArgumentException("concurrency limits must be positive");
+        }
+        this.parser = parser;
+        this.maxConcurrent = maxConcurrent;
+        this.maxPerHost = maxPerHost;
+        Map<String, Host> hosts = new HashMap<String, Host>();
+        for(Map.Entry<HttpURL, URI> e : uris.entrySet()) {
+            Host host = hosts.get(e.getKey().getHost());
+            if (host == null) {
+                host = new Host();
+                hosts.put(e.getKey().getHost(), host);
+            }
+            host.pending.add(new Pending(e.getValue(), host, resources.get(e.getKey())));
+            markReady(host);
+        }
+        this.size = uris.size();
+    }
+
+    void start() {
+        dispatch();
+    }
+
+    /**
+     * Returns the number of distinct resources in this batch;
+     * URIs that identify the same resource are only fetched once.
+     */
+    public int size() {
+        return size;
+    }
+
+    /**
+     * Returns the number of results that have not been taken yet.
+     */
+    public int remaining() {
+        return size - taken.get();
+    }
+
+    /**
+     * Waits for and returns the next result to complete.
+     * @throws NoSuchElementException if all results have already
+     *   been taken
+     * @throws RequestInterruptedException if interrupted while
+     *   waiting
+     */
+    public Result<T> take() {
+        claim();
+        try {
+            return completed.take();
+        } catch (InterruptedException e) {
+            taken.decrementAndGet();
+            Thread.currentThread().interrupt();
+            throw new RequestInterruptedException(e);
+        }
+    }
+
+    /**
+     * Waits up to the given time for the next result to complete.
+     * @return the result, or <code>null</code> if none completed in
+     *   time
+     * @throws NoSuchElementException if all results have already
+     *   been taken
+     * @throws RequestInterruptedException if interrupted while
+     *   waiting
+     */
+    public Result<T> poll(long timeout, TimeUnit unit) {
+        claim();
+        Result<T> out;
+        try {
+            out = completed.poll(timeout, unit);
+        } catch (InterruptedException e) {
+            taken.decrementAndGet();
+            Thread.currentThread().interrupt();
+            throw new RequestInterruptedException(e);
+        }
+        if (out == null) taken.decrementAndGet();
+        return out;
+    }
+
+    private void claim() {
+        while (true) {
+            int n = taken.get();
+            if (n >= size) throw new NoSuchElementException("all batch results taken");
+            if (taken.compareAndSet(n, n + 1)) return;
+        }
+    }
+
+    /*
+     * Starts as many pending fetches as the limits allow. Fetches
+     * served from cache complete in the starting thread and call
+     * back in here, so a nested call just asks the outermost one to
+     * go around again instead of recursing.
+     */
+    private void dispatch() {
+        synchronized(this) {
+            if (dispatching) {
+                redispatch = true;
+                return;
+            }
+            dispatching = true;
+        }
+        while (true) {
+            List<Pending> ready;
+            synchronized(this) {
+                ready = takeReady();
+                if (ready.isEmpty() && !redispatch) {
+                    dispatching = false;
+                    return;
+                }
+                redispatch = false;
+            }
+            for(Pending p : ready) {
+                fetch(p);
+            }
+        }
+    }
+
+    /*
+     * Takes fetches round-robin from the hosts that have room, so
+     * the cost of a dispatch does not depend on how many fetches
+     * are waiting.
+     */
+    private List<Pending> takeReady() {
+        List<Pending> ready = new ArrayList<Pending>();
+        while (running < maxConcurrent && !readyHosts.isEmpty()) {
+            Host host = readyHosts.removeFirst();
+            host.ready = false;
+            ready.add(host.pending.removeFirst());
+            host.running++;
+            running++;
+            markReady(host);
+        }
+        return ready;
+    }
+
+    private void markReady(Host host) {
+        if (!host.ready && !host.pending.isEmpty() && host.running < maxPerHost) {
+            host.ready = true;
+            readyHosts.add(host);
+        }
+    }
+
+    private void fetch(final Pending p) {
+        ResultFuture<T> future;
+        try {
+            future = p.resource.valueAsync(parser);
+        } catch (RuntimeException e) {
+            finished(p, null, e);
+            return;
+        }
+        future.addCallback(new ResultCallback<T>() {
+            public void completed(T result) {
+                finished(p, result, null);
+            }
+            public void failed(Throwable failure) {
+                if (failure instanceof RejectedExecutionException) {
+                    rejected(p, failure);
+                } else {
+                    finished(p, null, failure);
+                }
+            }
+        });
+    }
+
+    private void finished(Pending p, T value, Throwable failure) {
+        synchronized(this) {
+            stopped(p);
+            retryRejected();
+        }
+        completed.add(new Result<T>(p.uri, value, failure));
+        dispatch();
+    }
+
+    /*
+     * A fetch the executor had no room for waits until another one
+     * finishes and then goes back to the front of its host's queue.
+     * If none is left running, nothing would ever retry it, so it
+     * fails instead.
+     */
+    private void rejected(Pending p, Throwable failure) {
+        synchronized(this) {
+            stopped(p);
+            if (running > 0) {
+                rejected.add(p);
+                return;
+            }
+            retryRejected();
+        }
+        completed.add(new Result<T>(p.uri, null, failure));
+        dispatch();
+    }
+
+    private void stopped(Pending p) {
+        running--;
+        p.host.running--;
+        markReady(p.host);
+    }
+
+    private void retryRejected() {
+        for(int i=rejected.size()-1; i>=0; i--) {
+            Pending p = rejected.get(i);
+            p.host.pending.addFirst(p);
+            markReady(p.host);
+        }
+        rejected.clear();
+    }
+}
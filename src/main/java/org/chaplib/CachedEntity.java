@@ -0,0 +1,115 @@
+/* 
+ * CachedEntity.java
+ * 
+ * Copyright (C) 2012 Jonathan Moore
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *   
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.chaplib;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.apache.http.HttpEntity;
+import org.apache.http.client.cache.HttpCacheEntry;
+import org.apache.http.entity.AbstractHttpEntity;
+import org.apache.http.protocol.HTTP;
+
+/**
+ * An {@link HttpEntity} that replays the body stored with a
+ * cached {@link Response}. The entity takes over the caller's
+ * reference to the body (see {@link ResponseCache#release}), and
+ * streams it hands out may pin cache memory until they are closed,
+ * so {@link #close} should be called when the entity is no longer
+ * needed.
+ */
+class CachedEntity extends AbstractHttpEntity {
+
+    private final Response resp;
+    private final HttpCacheEntry entry;
+    private final List<InputStream> opened = new ArrayList<InputStream>(1);
+    private boolean released = false;
+
+    public CachedEntity(Response resp) {
+        this.resp = resp;
+        this.entry = resp.getCacheEntry();
+        setContentType(entry.getFirstHeader(HTTP.CONTENT_TYPE));
+        setContentEncoding(entry.getFirstHeader(HTTP.CONTENT_ENCODING));
+    }
+
+    public boolean isRepeatable() {
+        return true;
+    }
+
+    public long getContentLength() {
+        return entry.getResource().length();
+    }
+
+    public InputStream getContent() throws IOException {
+        InputStream out = entry.getResource().getInputStream();
+        synchronized(opened) {
+            opened.add(out);
+        }
+        return out;
+    }
+
+    /**
+     * Returns another entity replaying the same body, with a
+     * reference of its own; this entity must not have been closed.
+     */
+    CachedEntity share() {
+        ResponseCache.retain(resp);
+        return new CachedEntity(resp);
+    }
+
+    /**
+     * Closes any streams handed out by {@link #getContent} that
+     * their readers left open, and releases the response's body.
+     */
+    void close() throws IOException {
+        synchronized(opened) {
+            try {
+                for(InputStream in : opened) {
+                    in.close();
+                }
+                opened.clear();
+            } finally {
+                if (!released) {
+                    released = true;
+                    ResponseCache.release(resp);
+                }
+            }
+        }
+    }
+
+    public void writeTo(OutputStream outstream) throws IOException {
+        InputStream instream = entry.getResource().getInputStream();
+        try {
+            byte[] buf = new byte[4096];
+            int n;
+            while ((n = instream.read(buf)) != -1) {
+                outstream.write(buf, 0, n);
+            }
+        } finally {
+            instream.close();
+        }
+    }
+
+    public boolean isStreaming() {
+        return false;
+    }
+
+}
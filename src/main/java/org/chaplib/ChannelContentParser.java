@@ -0,0 +1,35 @@
+package org.chaplib;
+/*
+ * ChannelContentParser.java
+ *
+ * Copyright (C) 2012 Jonathan Moore
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+import java.io.IOException;
+import java.nio.channels.ReadableByteChannel;
+
+/**
+ * Parses a representation incrementally from its raw bytes as
+ * they arrive. Adapt it to a {@link ContentParser} with
+ * {@link StreamingContentParsers#forChannel}.
+ */
+public interface ChannelContentParser<T> {
+
+    /**
+     * @param body the entity body; the caller closes it
+     * @param contentType the normalized Content-Type of the body,
+     *   or <code>null</code> if it had none
+     */
+    T parse(ReadableByteChannel body, String contentType) throws IOException;
+}
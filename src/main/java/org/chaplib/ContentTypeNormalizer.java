@@ -17,16 +17,49 @@
  */
 package org.chaplib;
 
-import org.apache.http.HeaderElement;
-import org.apache.http.message.BasicHeaderValueParser;
-
+/**
+ * Normalizes Content-Type header values, making the default
+ * charset explicit. Parsed values are memoized: origins tend to
+ * send the same few Content-Types over and over, so a repeated
+ * value costs a single map lookup. The memo is bounded the same
+ * way as an {@link HttpURLPool}.
+ */
 public class ContentTypeNormalizer {
 
+    public static final int DEFAULT_MAX_ENTRIES = 256;
+
+    private final GenerationalCache<String, MediaType> parsed;
+
+    public ContentTypeNormalizer() {
+        this(DEFAULT_MAX_ENTRIES);
+    }
+
+    /**
+     * Creates a normalizer that remembers (roughly) the given
+     * number of distinct Content-Type values.
+     */
+    public ContentTypeNormalizer(int maxEntries) {
+        this.parsed = new GenerationalCache<String, MediaType>(maxEntries);
+    }
+
     public String normalize(String contentType) {
-        HeaderElement elt = BasicHeaderValueParser.parseHeaderElement(contentType, null);
-        if (elt.getParameterByName("charset") == null)
-            contentType += ";charset=iso-8859-1";
-        return contentType;
+        return parse(contentType).toString();
+    }
+
+    /**
+     * Returns the parsed and normalized form of the given
+     * Content-Type header value.
+     */
+    public MediaType parse(String contentType) {
+        if (contentType == null) {
+            throw new IllegalArgumentException("content type must not be null");
+        }
+        MediaType out = parsed.get(contentType);
+        if (out == null) {
+            out = MediaType.parse(contentType);
+            parsed.put(contentType, out);
+        }
+        return out;
     }
 
 }
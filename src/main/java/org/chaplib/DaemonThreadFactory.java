@@ -0,0 +1,40 @@
+package org.chaplib;
+/*
+ * DaemonThreadFactory.java
+ *
+ * Copyright (C) 2012 Jonathan Moore
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Creates daemon threads named "chaplib-&lt;purpose&gt;-&lt;pool&gt;-&lt;thread&gt;",
+ * so that chaplib's pools never keep the JVM alive.
+ */
+class DaemonThreadFactory implements ThreadFactory {
+    private static final AtomicInteger poolNumber = new AtomicInteger(1);
+    private final AtomicInteger threadNumber = new AtomicInteger(1);
+    private final String prefix;
+
+    DaemonThreadFactory(String purpose) {
+        prefix = "chaplib-" + purpose + "-" + poolNumber.getAndIncrement() + "-";
+    }
+
+    public Thread newThread(Runnable r) {
+        Thread t = new Thread(r, prefix + threadNumber.getAndIncrement());
+        t.setDaemon(true);
+        return t;
+    }
+}
@@ -0,0 +1,156 @@
+package org.chaplib;
+/*
+ * DirectMemoryResource.java
+ *
+ * Copyright (C) 2012 Jonathan Moore
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.http.client.cache.Resource;
+
+/**
+ * A response body held in direct memory chunks owned by a
+ * {@link DirectMemoryResourceFactory}. Several resources (copies)
+ * and open streams may share one body; its chunks go back to the
+ * factory once the last of them lets go.
+ */
+class DirectMemoryResource implements Resource {
+
+    private static final long serialVersionUID = 1L;
+
+    private final transient Body body;
+    private final AtomicBoolean disposed = new AtomicBoolean(false);
+
+    DirectMemoryResource(DirectMemoryResourceFactory factory, ByteBuffer[] chunks,
+            long length) {
+        this(new Body(factory, chunks, length));
+    }
+
+    private DirectMemoryResource(Body body) {
+        this.body = body;
+    }
+
+    DirectMemoryResourceFactory getFactory() {
+        return body.factory;
+    }
+
+    /**
+     * Returns another resource sharing this one's body.
+     * @throws IOException if this resource has been disposed of
+     */
+    DirectMemoryResource share() throws IOException {
+        if (disposed.get() || !body.retain()) throw new IOException("resource has been disposed");
+        return new DirectMemoryResource(body);
+    }
+
+    /**
+     * Returns a stream over the body, which keeps the body alive
+     * until the stream is closed.
+     * @throws IOException if this resource has been disposed of
+     */
+    public InputStream getInputStream() throws IOException {
+        if (disposed.get() || !body.retain()) throw new IOException("resource has been disposed");
+        return new BodyInputStream(body);
+    }
+
+    public long length() {
+        return body.length;
+    }
+
+    public void dispose() {
+        if (disposed.compareAndSet(false, true)) body.release();
+    }
+
+    private static class Body {
+        final DirectMemoryResourceFactory factory;
+        final ByteBuffer[] chunks;
+        final long length;
+        final AtomicInteger refs = new AtomicInteger(1);
+
+        Body(DirectMemoryResourceFactory factory, ByteBuffer[] chunks, long length) {
+            this.factory = factory;
+            this.chunks = chunks;
+            this.length = length;
+            for(ByteBuffer chunk : chunks) {
+                chunk.flip();
+            }
+        }
+
+        boolean retain() {
+            while (true) {
+                int n = refs.get();
+                if (n == 0) return false;
+                if (refs.compareAndSet(n, n + 1)) return true;
+            }
+        }
+
+        void release() {
+            if (refs.decrementAndGet() != 0) return;
+            for(ByteBuffer chunk : chunks) {
+                factory.recycle(chunk);
+            }
+        }
+    }
+
+    private static class BodyInputStream extends InputStream {
+        private final Body body;
+        private final AtomicBoolean closed = new AtomicBoolean(false);
+        private int index = 0;
+        private ByteBuffer current;
+
+        BodyInputStream(Body body) {
+            this.body = body;
+        }
+
+        @Override
+        public int read() throws IOException {
+            if (!advance()) return -1;
+            return current.get() & 0xff;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            if (len == 0) return 0;
+            if (!advance()) return -1;
+            int n = Math.min(len, current.remaining());
+            current.get(b, off, n);
+            return n;
+        }
+
+        @Override
+        public int available() throws IOException {
+            if (closed.get()) return 0;
+            return (current == null) ? 0 : current.remaining();
+        }
+
+        private boolean advance() throws IOException {
+            if (closed.get()) throw new IOException("stream closed");
+            while (current == null || !current.hasRemaining()) {
+                if (index == body.chunks.length) return false;
+                current = body.chunks[index++].duplicate();
+            }
+            return true;
+        }
+
+        @Override
+        public void close() {
+            if (closed.compareAndSet(false, true)) body.release();
+        }
+    }
+}
@@ -0,0 +1,220 @@
+package org.chaplib;
+/*
+ * DirectMemoryResourceFactory.java
+ *
+ * Copyright (C) 2012 Jonathan Moore
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.SequenceInputStream;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.http.client.cache.InputLimit;
+import org.apache.http.client.cache.Resource;
+import org.apache.http.client.cache.ResourceFactory;
+import org.apache.http.impl.client.cache.HeapResourceFactory;
+
+/**
+ * A <code>DirectMemoryResourceFactory</code> stores response
+ * bodies outside the Java heap, so that a large
+ * {@link ResponseCache} does not make garbage collection pauses
+ * longer. Memory is allocated as direct buffer slabs, which are cut
+ * into fixed-size chunks and recycled between bodies; slabs are
+ * never given back. When the configured amount of direct memory is
+ * used up, further bodies are stored on the heap instead.
+ * <p>
+ * The resources it creates are reference counted: streams opened
+ * on a resource keep its memory alive until they are closed, even
+ * if the resource is disposed of (for example, evicted from the
+ * cache) in the meantime. Such streams must therefore always be
+ * closed.
+ */
+public class DirectMemoryResourceFactory implements ResourceFactory {
+
+    public static final int DEFAULT_SLAB_SIZE = 1024 * 1024;
+    public static final int DEFAULT_CHUNK_SIZE = 16 * 1024;
+
+    private final long maxBytes;
+    private final int slabSize;
+    private final int chunkSize;
+    private final AtomicLong allocatedBytes = new AtomicLong(0L);
+    private final ConcurrentLinkedQueue<ByteBuffer> freeChunks =
+        new ConcurrentLinkedQueue<ByteBuffer>();
+    private final ResourceFactory overflow = new HeapResourceFactory();
+
+    /**
+     * Creates a factory that uses up to the given amount of direct
+     * memory, in slabs and chunks of the default sizes.
+     */
+    public DirectMemoryResourceFactory(long maxBytes) {
+        this(maxBytes, DEFAULT_SLAB_SIZE, DEFAULT_CHUNK_SIZE);
+    }
+
+    /**
+     * @param maxBytes maximum amount of direct memory to allocate
+     * @param slabSize size of each direct memory allocation
+     * @param chunkSize unit in which bodies are stored; must evenly
+     *   divide <code>slabSize</code>
+     */
+    public DirectMemoryResourceFactory(long maxBytes, int slabSize, int chunkSize) {
+        if (maxBytes < 0 || slabSize <= 0 || chunkSize <= 0 || slabSize % chunkSize != 0) {
+            throw new IllegalArgumentException("invalid memory limits");
+        }
+        this.maxBytes = maxBytes;
+        this.slabSize = slabSize;
+        this.chunkSize = chunkSize;
+    }
+
+    public Resource generate(String requestId, InputStream instream, InputLimit limit)
+            throws IOException {
+        List<ByteBuffer> chunks = new ArrayList<ByteBuffer>();
+        byte[] buf = new byte[4096];
+        long total = 0L;
+        boolean done = false;
+        try {
+            ByteBuffer chunk = null;
+            int n;
+            while ((n = instream.read(buf)) != -1) {
+                int off = 0;
+                while (off < n) {
+                    if (chunk == null || !chunk.hasRemaining()) {
+                        chunk = acquireChunk();
+                        if (chunk == null) {
+                            return overflow.generate(requestId, new SequenceInputStream(
+                                    new ChunkInputStream(chunks, total + off),
+                                    remainderOf(instream, buf, off, n)), limit);
+                        }
+                        chunks.add(chunk);
+                    }
+                    int len = Math.min(n - off, chunk.remaining());
+                    chunk.put(buf, off, len);
+                    off += len;
+                }
+                total += n;
+                if (limit != null && total > limit.getValue()) {
+                    limit.reached();
+                    break;
+                }
+            }
+            done = true;
+            return new DirectMemoryResource(this, chunks.toArray(new ByteBuffer[chunks.size()]),
+                    total);
+        } finally {
+            if (!done) recycle(chunks);
+        }
+    }
+
+    private static InputStream remainderOf(InputStream instream, byte[] buf, int off, int n) {
+        byte[] pending = new byte[n - off];
+        System.arraycopy(buf, off, pending, 0, pending.length);
+        return new SequenceInputStream(new ByteArrayInputStream(pending), instream);
+    }
+
+    public Resource copy(String requestId, Resource resource) throws IOException {
+        if (resource instanceof DirectMemoryResource) {
+            DirectMemoryResource dmr = (DirectMemoryResource)resource;
+            if (dmr.getFactory() == this) return dmr.share();
+        }
+        InputStream instream = resource.getInputStream();
+        try {
+            return generate(requestId, instream, null);
+        } finally {
+            instream.close();
+        }
+    }
+
+    /**
+     * Returns the amount of direct memory allocated so far.
+     */
+    public long getAllocatedBytes() {
+        return allocatedBytes.get();
+    }
+
+    /**
+     * Returns the amount of allocated direct memory not currently
+     * holding a body.
+     */
+    public long getFreeBytes() {
+        return (long)freeChunks.size() * chunkSize;
+    }
+
+    private ByteBuffer acquireChunk() {
+        ByteBuffer chunk = freeChunks.poll();
+        if (chunk != null) return chunk;
+        while (true) {
+            long allocated = allocatedBytes.get();
+            if (allocated + slabSize > maxBytes) return freeChunks.poll();
+            if (allocatedBytes.compareAndSet(allocated, allocated + slabSize)) break;
+        }
+        ByteBuffer slab = ByteBuffer.allocateDirect(slabSize);
+        for(int off = chunkSize; off < slabSize; off += chunkSize) {
+            slab.limit(off + chunkSize).position(off);
+            freeChunks.add(slab.slice());
+        }
+        slab.limit(chunkSize).position(0);
+        return slab.slice();
+    }
+
+    void recycle(ByteBuffer chunk) {
+        chunk.clear();
+        freeChunks.add(chunk);
+    }
+
+    private void recycle(List<ByteBuffer> chunks) {
+        for(ByteBuffer chunk : chunks) {
+            recycle(chunk);
+        }
+    }
+
+    /*
+     * Reads back the bytes written so far, for handing a body over
+     * to the heap when direct memory runs out.
+     */
+    private static class ChunkInputStream extends InputStream {
+        private final List<ByteBuffer> chunks;
+        private long remaining;
+        private int index = 0;
+        private ByteBuffer current;
+
+        ChunkInputStream(List<ByteBuffer> chunks, long length) {
+            this.chunks = chunks;
+            this.remaining = length;
+        }
+
+        @Override
+        public int read() throws IOException {
+            byte[] b = new byte[1];
+            return (read(b, 0, 1) == -1) ? -1 : (b[0] & 0xff);
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            if (remaining == 0) return -1;
+            if (current == null || !current.hasRemaining()) {
+                current = chunks.get(index++).duplicate();
+                current.flip();
+            }
+            int n = Math.min(len, current.remaining());
+            current.get(b, off, n);
+            remaining -= n;
+            return n;
+        }
+    }
+}
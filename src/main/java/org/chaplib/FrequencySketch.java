@@ -0,0 +1,94 @@
+package org.chaplib;
+/*
+ * FrequencySketch.java
+ *
+ * Copyright (C) 2012 Jonathan Moore
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+/**
+ * A count-min sketch estimating how often keys have been seen
+ * recently, in four bits per counter. Once a sample of ten times
+ * the expected number of keys has been counted, all counters are
+ * halved, so old popularity fades. Not thread-safe.
+ */
+final class FrequencySketch {
+
+    private static final long[] SEEDS = {
+        0xc3a5c85c97cb3127L, 0xb492b66fbe98f273L,
+        0x9ae16a3b2f90404fL, 0xcbf29ce484222325L
+    };
+    private static final long RESET_MASK = 0x7777777777777777L;
+    private static final int MAX_COUNT = 15;
+
+    private final long[] table;
+    private final int counterMask;
+    private final int sampleSize;
+    private int additions = 0;
+
+    /**
+     * @param expectedKeys roughly how many distinct keys should be
+     *   told apart
+     */
+    FrequencySketch(int expectedKeys) {
+        int words = 1;
+        while (words < Math.max(expectedKeys, 16) && words < (1 << 26)) words <<= 1;
+        this.table = new long[words];
+        this.counterMask = words * 16 - 1;
+        this.sampleSize = (int)Math.min(Integer.MAX_VALUE, 10L * Math.max(expectedKeys, 16));
+    }
+
+    /**
+     * Returns the estimated number of recent occurrences of the
+     * key with the given hash, at most 15.
+     */
+    int frequency(long hash) {
+        int min = MAX_COUNT;
+        for(int i = 0; i < SEEDS.length; i++) {
+            int idx = indexOf(hash, i);
+            int count = (int)((table[idx >>> 4] >>> ((idx & 15) << 2)) & 0xfL);
+            if (count < min) min = count;
+        }
+        return min;
+    }
+
+    /**
+     * Records an occurrence of the key with the given hash.
+     */
+    void increment(long hash) {
+        boolean added = false;
+        for(int i = 0; i < SEEDS.length; i++) {
+            int idx = indexOf(hash, i);
+            int shift = (idx & 15) << 2;
+            if (((table[idx >>> 4] >>> shift) & 0xfL) < MAX_COUNT) {
+                table[idx >>> 4] += 1L << shift;
+                added = true;
+            }
+        }
+        if (added && ++additions >= sampleSize) reset();
+    }
+
+    private void reset() {
+        for(int i = 0; i < table.length; i++) {
+            table[i] = (table[i] >>> 1) & RESET_MASK;
+        }
+        additions /= 2;
+    }
+
+    private int indexOf(long hash, int row) {
+        long h = (hash + SEEDS[row]) * SEEDS[row];
+        h ^= h >>> 32;
+        return (int)h & counterMask;
+    }
+}
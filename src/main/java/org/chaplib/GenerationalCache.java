@@ -0,0 +1,83 @@
+package org.chaplib;
+/*
+ * GenerationalCache.java
+ *
+ * Copyright (C) 2012 Jonathan Moore
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * A bounded memo of recently used values that never blocks
+ * lookups. It keeps two generations of entries. New entries go
+ * into the current generation; once it holds half of the maximum,
+ * it becomes the previous generation and the old previous
+ * generation is dropped. Entries found in the previous generation
+ * are copied forward, so keys that stay in use stay cached.
+ *
+ * @param <K> the type of key
+ * @param <V> the type of cached value
+ */
+final class GenerationalCache<K, V> {
+
+    private final int generationSize;
+    private volatile ConcurrentHashMap<K, V> current;
+    private volatile ConcurrentHashMap<K, V> previous;
+
+    /**
+     * @param maxEntries roughly how many entries to hold; at
+     *   least 2
+     */
+    GenerationalCache(int maxEntries) {
+        if (maxEntries < 2) {
+            throw new IllegalArgumentException("maxEntries must be at least 2");
+        }
+        this.generationSize = maxEntries / 2;
+        this.current = new ConcurrentHashMap<K, V>();
+        this.previous = new ConcurrentHashMap<K, V>();
+    }
+
+    /**
+     * Returns the value cached under the given key, or
+     * <code>null</code> if there is none.
+     */
+    V get(K key) {
+        V value = current.get(key);
+        if (value != null) return value;
+        value = previous.get(key);
+        if (value != null) put(key, value);
+        return value;
+    }
+
+    void put(K key, V value) {
+        ConcurrentHashMap<K, V> generation = current;
+        generation.put(key, value);
+        if (generation.size() >= generationSize) rotate(generation);
+    }
+
+    private synchronized void rotate(ConcurrentHashMap<K, V> full) {
+        if (current != full) return;
+        previous = full;
+        current = new ConcurrentHashMap<K, V>();
+    }
+
+    /**
+     * Returns the number of entries, which stays within the maximum
+     * apart from concurrent insertions. A key that was just copied
+     * forward from the previous generation is counted twice.
+     */
+    int size() {
+        return current.size() + previous.size();
+    }
+}
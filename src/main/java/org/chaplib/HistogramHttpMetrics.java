@@ -0,0 +1,172 @@
+/* 
+ * HistogramHttpMetrics.java
+ * 
+ * Copyright (C) 2012 Jonathan Moore
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *   
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.chaplib;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * {@link HttpMetrics} that keeps {@link LatencyHistogram}s of
+ * operation latency per host and per method, of origin latency per
+ * host, and of lookup and collapser wait times, along with counts
+ * of response statuses, body bytes and collapsed requests.
+ * Histograms and counters are created on first use and live as
+ * long as this object.
+ */
+public class HistogramHttpMetrics implements HttpMetrics {
+
+    private final ConcurrentHashMap<String, LatencyHistogram> latencyByHost =
+        new ConcurrentHashMap<String, LatencyHistogram>();
+    private final ConcurrentHashMap<String, LatencyHistogram> latencyByMethod =
+        new ConcurrentHashMap<String, LatencyHistogram>();
+    private final ConcurrentHashMap<String, LatencyHistogram> originLatencyByHost =
+        new ConcurrentHashMap<String, LatencyHistogram>();
+    private final ConcurrentHashMap<Integer, AtomicLong> statusCounts =
+        new ConcurrentHashMap<Integer, AtomicLong>();
+    private final AtomicLong failedOperations = new AtomicLong(0L);
+    private final AtomicLong bytesSent = new AtomicLong(0L);
+    private final AtomicLong bytesReceived = new AtomicLong(0L);
+    private final LatencyHistogram lookupLatency = new LatencyHistogram();
+    private final AtomicLong resourcesCreated = new AtomicLong(0L);
+    private final AtomicLong collapserLeaders = new AtomicLong(0L);
+    private final AtomicLong collapserFollowers = new AtomicLong(0L);
+    private final LatencyHistogram collapserWaits = new LatencyHistogram();
+
+    public void operationCompleted(String host, String method, long elapsedNanos,
+            boolean succeeded) {
+        histogram(latencyByHost, host).record(elapsedNanos);
+        histogram(latencyByMethod, method).record(elapsedNanos);
+        if (!succeeded) failedOperations.incrementAndGet();
+    }
+
+    public void exchangeCompleted(String host, String method, int statusCode,
+            long elapsedNanos, long sent) {
+        histogram(originLatencyByHost, host).record(elapsedNanos);
+        AtomicLong n = statusCounts.get(statusCode);
+        if (n == null) {
+            AtomicLong created = new AtomicLong(0L);
+            n = statusCounts.putIfAbsent(statusCode, created);
+            if (n == null) n = created;
+        }
+        n.incrementAndGet();
+        if (sent > 0L) bytesSent.addAndGet(sent);
+    }
+
+    public void responseBodyRead(String host, String method, long received) {
+        bytesReceived.addAndGet(received);
+    }
+
+    public void resourceLookedUp(long elapsedNanos, boolean created) {
+        lookupLatency.record(elapsedNanos);
+        if (created) resourcesCreated.incrementAndGet();
+    }
+
+    public void requestCollapsed(boolean leader) {
+        if (leader) {
+            collapserLeaders.incrementAndGet();
+        } else {
+            collapserFollowers.incrementAndGet();
+        }
+    }
+
+    public void collapsedRequestWaited(long elapsedNanos) {
+        collapserWaits.record(elapsedNanos);
+    }
+
+    private static LatencyHistogram histogram(
+            ConcurrentHashMap<String, LatencyHistogram> histograms, String key) {
+        LatencyHistogram h = histograms.get(key);
+        if (h != null) return h;
+        LatencyHistogram created = new LatencyHistogram();
+        h = histograms.putIfAbsent(key, created);
+        return (h != null) ? h : created;
+    }
+
+    /**
+     * Returns the latency of operations on resources of the given
+     * host, in nanoseconds.
+     */
+    public LatencyHistogram getLatencyForHost(String host) {
+        return histogram(latencyByHost, host);
+    }
+
+    /**
+     * Returns the latency of operations corresponding to the given
+     * HTTP method, in nanoseconds.
+     */
+    public LatencyHistogram getLatencyForMethod(String method) {
+        return histogram(latencyByMethod, method);
+    }
+
+    /**
+     * Returns the time the given host took to respond to requests,
+     * in nanoseconds.
+     */
+    public LatencyHistogram getOriginLatencyForHost(String host) {
+        return histogram(originLatencyByHost, host);
+    }
+
+    /**
+     * Returns the number of origin responses with the given status;
+     * status zero counts requests that received no response.
+     */
+    public long getStatusCount(int statusCode) {
+        AtomicLong n = statusCounts.get(statusCode);
+        return (n == null) ? 0L : n.get();
+    }
+
+    public long getFailedOperationCount() {
+        return failedOperations.get();
+    }
+
+    public long getBytesSent() {
+        return bytesSent.get();
+    }
+
+    public long getBytesReceived() {
+        return bytesReceived.get();
+    }
+
+    /**
+     * Returns the time taken by {@link HttpResourceFactory#get}, in
+     * nanoseconds.
+     */
+    public LatencyHistogram getLookupLatency() {
+        return lookupLatency;
+    }
+
+    public long getResourcesCreated() {
+        return resourcesCreated.get();
+    }
+
+    public long getCollapserLeaderCount() {
+        return collapserLeaders.get();
+    }
+
+    public long getCollapserFollowerCount() {
+        return collapserFollowers.get();
+    }
+
+    /**
+     * Returns the time blocking callers spent waiting for results
+     * computed by other callers, in nanoseconds.
+     */
+    public LatencyHistogram getCollapserWaitLatency() {
+        return collapserWaits;
+    }
+}
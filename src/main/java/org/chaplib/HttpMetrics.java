@@ -0,0 +1,93 @@
+/* 
+ * HttpMetrics.java
+ * 
+ * Copyright (C) 2012 Jonathan Moore
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *   
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.chaplib;
+
+/**
+ * Receives measurements of the traffic handled by chaplib. An
+ * implementation is passed to an {@link HttpResourceFactory} (or
+ * directly to {@link RequestCollapser}s); it is called from many
+ * threads at once, in the middle of requests, so it must be
+ * thread-safe and should not block. Nothing is measured unless
+ * metrics are configured. {@link HistogramHttpMetrics} keeps
+ * latency histograms and counters in memory; {@link NullHttpMetrics}
+ * ignores everything.
+ */
+public interface HttpMetrics {
+
+    /**
+     * Called when a call to one of the methods of an
+     * {@link HttpResource} returns or throws.
+     * @param host host of the resource
+     * @param method HTTP method the call corresponds to
+     * @param elapsedNanos time spent in the call, including any
+     *   cache lookup and parsing
+     * @param succeeded <code>false</code> if the call threw
+     */
+    void operationCompleted(String host, String method, long elapsedNanos, boolean succeeded);
+
+    /**
+     * Called when a request to the origin completes, that is,
+     * when its response headers have been received or it has
+     * failed.
+     * @param host host the request was sent to
+     * @param method the request method
+     * @param statusCode the response status, or zero if no
+     *   response was received
+     * @param elapsedNanos time until the response headers arrived
+     * @param bytesSent size of the request body, or zero if it
+     *   had none or its size was unknown
+     */
+    void exchangeCompleted(String host, String method, int statusCode, long elapsedNanos,
+            long bytesSent);
+
+    /**
+     * Called once the body of a response from the origin has been
+     * read or closed.
+     * @param host host the request was sent to
+     * @param method the request method
+     * @param bytesReceived number of body bytes read
+     */
+    void responseBodyRead(String host, String method, long bytesReceived);
+
+    /**
+     * Called when {@link HttpResourceFactory#get} returns.
+     * @param elapsedNanos time spent in the lookup
+     * @param created whether a new resource had to be created
+     */
+    void resourceLookedUp(long elapsedNanos, boolean created);
+
+    /**
+     * Called when a caller joins a {@link RequestCollapser}, and
+     * when a call to {@link HttpResource#value} or
+     * {@link HttpResource#valueAsync} misses in the cache and
+     * starts or joins the resource's origin request.
+     * @param leader whether the caller started the backend request,
+     *   rather than sharing one already outstanding
+     */
+    void requestCollapsed(boolean leader);
+
+    /**
+     * Called when a blocking caller of a {@link RequestCollapser},
+     * or a caller of {@link HttpResource#value} or
+     * {@link HttpResource#valueAsync} that joined another call's
+     * origin request, has finished waiting for a result computed
+     * by another caller.
+     * @param elapsedNanos time spent waiting
+     */
+    void collapsedRequestWaited(long elapsedNanos);
+}
@@ -16,80 +16,858 @@
  */
 package org.chaplib;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.FilterInputStream;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.SequenceInputStream;
 import java.net.URI;
+import java.util.Date;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.RejectedExecutionException;
 
+import org.apache.http.Header;
 import org.apache.http.HttpEntity;
+import org.apache.http.HttpEntityEnclosingRequest;
+import org.apache.http.HttpRequest;
 import org.apache.http.HttpResponse;
+import org.apache.http.HttpStatus;
 import org.apache.http.client.ClientProtocolException;
 import org.apache.http.client.HttpClient;
+import org.apache.http.client.cache.HeaderConstants;
+import org.apache.http.client.cache.HttpCacheEntry;
 import org.apache.http.client.methods.HttpDelete;
 import org.apache.http.client.methods.HttpGet;
 import org.apache.http.client.methods.HttpPost;
 import org.apache.http.client.methods.HttpPut;
 import org.apache.http.client.methods.HttpUriRequest;
+import org.apache.http.entity.ByteArrayEntity;
+import org.apache.http.entity.HttpEntityWrapper;
+import org.apache.http.entity.InputStreamEntity;
 import org.apache.http.util.EntityUtils;
 
 public class HttpResource {
 
     private URI uri;
+    private HttpURL url;
     private HttpClient httpClient;
+    private ResponseCache cache;
+    private BackgroundRevalidator revalidator;
+    private AsyncRequestExecutor asyncExecutor;
+    private HttpMetrics metrics;
+    private boolean metered;
+    private LifecycleListeners lifecycle;
+    private final Object fetchLock = new Object();
+    private SharedFetch inFlight = null;
     
+    /**
+     * Creates a standalone <code>HttpResource</code> that does not
+     * cache its representations. Use the constructor below, or an
+     * {@link HttpResourceFactory}, to have them cached.
+     */
     public HttpResource(URI uri, HttpClient httpClient) {
+        this(uri, httpClient, new ResponseCache(0, ResponseCache.DEFAULT_MAX_BYTES));
+    }
+
+    /**
+     * Creates an <code>HttpResource</code> whose representations
+     * are cached in the given (possibly shared) cache. Its stale
+     * entries are refreshed, and its asynchronous methods run, on
+     * thread pools shared by all resources created this way.
+     */
+    public HttpResource(URI uri, HttpClient httpClient, ResponseCache cache) {
+        this(uri, new HttpURL(uri), httpClient, cache, Defaults.revalidator,
+                Defaults.asyncExecutor, null, new LifecycleListeners());
+    }
+
+    /*
+     * Created on first use, so that resources made by a factory
+     * never start them.
+     */
+    private static class Defaults {
+        static final BackgroundRevalidator revalidator = new BackgroundRevalidator();
+        static final AsyncRequestExecutor asyncExecutor = new AsyncRequestExecutor();
+    }
+
+    /*
+     * A null metrics turns measurement off.
+     */
+    HttpResource(URI uri, HttpURL url, HttpClient httpClient, ResponseCache cache,
+            BackgroundRevalidator revalidator, AsyncRequestExecutor asyncExecutor,
+            HttpMetrics metrics, LifecycleListeners lifecycle) {
+        this.url = url;
         this.uri = uri;
         this.httpClient = httpClient;
+        this.cache = cache;
+        this.revalidator = revalidator;
+        this.asyncExecutor = asyncExecutor;
+        this.metrics = metrics;
+        this.metered = (metrics != null);
+        this.lifecycle = lifecycle;
     }
 
+    /**
+     * Retrieves the current representation of this resource and
+     * parses it with the given parser. Concurrent callers that
+     * miss in the cache share a single origin request, whatever
+     * parsers they use; each parser reads its own copy of the body.
+     */
     public <T> T value(ContentParser<T> parser) {
-        HttpResponse resp = execute(new HttpGet(uri));
-        HttpEntity entity = resp.getEntity();
+        long start = startTimer();
+        boolean succeeded = false;
+        try {
+            T out = currentValue(parser, lifecycle.startCall());
+            succeeded = true;
+            return out;
+        } finally {
+            operationCompleted("GET", start, succeeded);
+        }
+    }
+
+    private <T> T currentValue(ContentParser<T> parser, long call) {
+        Response cached = cache.get(url);
+        if (mayServeCached(cached, new Date())) {
+            return parse(new CachedEntity(cached), parser, call);
+        }
+        SharedFetch mine = new SharedFetch();
+        SharedFetch shared = join(mine);
+        if (shared != mine) {
+            ResponseCache.release(cached);
+            HttpEntity share = awaitShare(shared, call);
+            if (share == OWN_FETCH) return parse(fetch(null, call), parser, call);
+            return parse(share, parser, call);
+        }
+        return parse(shareFetch(shared, cached, call).leaderShare(), parser, call);
+    }
+
+    /*
+     * Whether the cached response, if any, can be served without
+     * waiting for the origin; a stale one that may be served while
+     * revalidating is refreshed in the background.
+     */
+    private boolean mayServeCached(Response cached, Date now) {
+        if (cached == null) return false;
+        if (!cached.noCache() && cached.isResponseFresh(now)) return true;
+        if (!mayServeStaleWhileRevalidating(cached, now)) return false;
+        revalidator.revalidate(url, new Runnable() {
+            public void run() {
+                refresh();
+            }
+        });
+        return true;
+    }
+
+    /**
+     * Asynchronous counterpart of {@link #value}. A cached
+     * representation that may be served is parsed right away in the
+     * calling thread. Otherwise the request runs on, and for its
+     * whole exchange holds, a thread of this resource's
+     * {@link AsyncRequestExecutor}; callers that join a request
+     * already outstanding only attach a callback to it. The parser
+     * runs in the thread that completes the request.
+     */
+    public <T> ResultFuture<T> valueAsync(final ContentParser<T> parser) {
+        final long start = startTimer();
+        final long call = lifecycle.startCall();
+        final ResultFuture<T> out = new ResultFuture<T>();
+        final Response cached = cache.get(url);
+        if (mayServeCached(cached, new Date())) {
+            try {
+                out.completed(parse(new CachedEntity(cached), parser, call));
+                operationCompleted("GET", start, true);
+            } catch (RuntimeException e) {
+                operationCompleted("GET", start, false);
+                out.failed(e);
+            }
+            return out;
+        }
+        final SharedFetch mine = new SharedFetch();
+        final SharedFetch shared = join(mine);
+        if (shared == mine) {
+            leadAsync(shared, cached, call);
+        } else {
+            ResponseCache.release(cached);
+        }
+        final long waitStart = System.nanoTime();
+        shared.future.addCallback(new ResultCallback<Shares>() {
+            public void completed(Shares shares) {
+                if (shared != mine) shareWaited(call, waitStart);
+                HttpEntity share = (shared == mine) ? shares.leaderShare() : shares.take();
+                if (share == OWN_FETCH) {
+                    fetchAsync(parser, start, call, out);
+                    return;
+                }
+                try {
+                    out.completed(parse(share, parser, call));
+                    operationCompleted("GET", start, true);
+                } catch (RuntimeException e) {
+                    operationCompleted("GET", start, false);
+                    out.failed(e);
+                }
+            }
+
+            public void failed(Throwable failure) {
+                if (shared != mine) shareWaited(call, waitStart);
+                operationCompleted("GET", start, false);
+                out.failed(failure);
+            }
+        });
+        return out;
+    }
+
+    /*
+     * Fetches on the executor for a caller whose shared fetch had a
+     * body too large to share.
+     */
+    private <T> void fetchAsync(final ContentParser<T> parser, final long start,
+            final long call, final ResultFuture<T> out) {
+        ResultFuture<T> own = asyncExecutor.submit(new Computation<T>() {
+            public T execute() {
+                return parse(fetch(null, call), parser, call);
+            }
+        });
+        own.addCallback(new ResultCallback<T>() {
+            public void completed(T result) {
+                operationCompleted("GET", start, true);
+                out.completed(result);
+            }
+
+            public void failed(Throwable failure) {
+                operationCompleted("GET", start, false);
+                out.failed(failure);
+            }
+        });
+    }
+
+    /*
+     * Runs a shared fetch on the executor; if the executor turns it
+     * down, the fetch fails for everyone sharing it.
+     */
+    private void leadAsync(final SharedFetch shared, final Response cached,
+            final long call) {
+        ResultFuture<Void> submitted = asyncExecutor.submit(new Computation<Void>() {
+            public Void execute() {
+                try {
+                    shareFetch(shared, cached, call);
+                } catch (RuntimeException e) {
+                    // already reported to everyone sharing the fetch
+                }
+                return null;
+            }
+        });
+        submitted.addCallback(new ResultCallback<Void>() {
+            public void completed(Void result) {
+            }
+
+            public void failed(Throwable failure) {
+                if (!(failure instanceof RejectedExecutionException)) return;
+                ResponseCache.release(cached);
+                finish(shared);
+                shared.future.failed(failure);
+            }
+        });
+    }
+
+    /*
+     * The first caller to miss leads the origin exchange, handing
+     * its cached response over to fetch(); callers that show up
+     * while it is outstanding give up theirs and wait for a share
+     * of the leader's result. Returns the caller's own candidate
+     * if it is to lead.
+     */
+    private SharedFetch join(SharedFetch mine) {
+        SharedFetch shared;
+        synchronized(fetchLock) {
+            shared = inFlight;
+            if (shared == null) {
+                shared = mine;
+                inFlight = mine;
+            } else {
+                shared.participants++;
+            }
+        }
+        if (metered) metrics.requestCollapsed(shared == mine);
+        return shared;
+    }
+
+    /*
+     * Performs the leader's fetch and hands its result, or failure,
+     * to everyone sharing it. Only the leader clears the slot.
+     */
+    private Shares shareFetch(SharedFetch shared, Response cached, long call) {
+        Shares shares;
+        try {
+            HttpEntity entity = fetch(cached, call);
+            shares = sharesOf(entity, finish(shared));
+        } catch (RuntimeException e) {
+            finish(shared);
+            shared.future.failed(e);
+            throw e;
+        } catch (Error e) {
+            finish(shared);
+            shared.future.failed(e);
+            throw e;
+        }
+        shared.future.completed(shares);
+        return shares;
+    }
+
+    /*
+     * Closes the shared fetch to newcomers and returns how many
+     * callers are sharing it.
+     */
+    private int finish(SharedFetch shared) {
+        synchronized(fetchLock) {
+            if (inFlight == shared) inFlight = null;
+            return shared.participants;
+        }
+    }
+
+    private HttpEntity awaitShare(SharedFetch shared, long call) {
+        long start = System.nanoTime();
+        try {
+            return shared.future.get().take();
+        } catch (InterruptedException e) {
+            shared.future.addCallback(DISCARD_SHARE);
+            Thread.currentThread().interrupt();
+            throw new RequestInterruptedException(e);
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof Error) throw (Error)cause;
+            throw (RuntimeException)cause;
+        } finally {
+            shareWaited(call, start);
+        }
+    }
+
+    /*
+     * Reports the time a caller spent waiting for the exchange it
+     * shared with the leader, as that caller's (shared) exchange.
+     */
+    private void shareWaited(long call, long waitStart) {
+        if (metered) metrics.collapsedRequestWaited(System.nanoTime() - waitStart);
+        if (lifecycle.isActive()) {
+            lifecycle.phaseCompleted(RequestLifecycleEvent.Phase.EXCHANGE, call, true, url,
+                    "GET", waitStart);
+        }
+    }
+
+    /*
+     * A cached body can be replayed by every caller; a body that
+     * was not cached is read into memory first, unless only the
+     * leader is waiting for it. A body too large for the cache is
+     * not held in memory either: the leader streams it, and
+     * everyone else fetches their own.
+     */
+    private Shares sharesOf(HttpEntity entity, int participants) {
+        HttpEntity[] out = new HttpEntity[participants];
+        out[0] = entity;
+        if (entity == null || participants == 1) return new Shares(out);
+        if (entity instanceof CachedEntity) {
+            for(int i=1; i<participants; i++) {
+                out[i] = ((CachedEntity)entity).share();
+            }
+            return new Shares(out);
+        }
+        try {
+            return bufferedShares(entity, participants, cache.getMaxBytes());
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    private Shares bufferedShares(HttpEntity entity, int participants, long limit)
+        throws IOException {
+        HttpEntity[] out = new HttpEntity[participants];
+        out[0] = entity;
+        for(int i=1; i<participants; i++) out[i] = OWN_FETCH;
+        if (entity.getContentLength() > limit) return new Shares(out);
+        InputStream in = entity.getContent();
+        ByteArrayOutputStream buf = new ByteArrayOutputStream();
+        if (in != null) {
+            byte[] chunk = new byte[4096];
+            int n;
+            while ((n = in.read(chunk, 0,
+                    (int)Math.min(chunk.length, limit + 1 - buf.size()))) != -1) {
+                buf.write(chunk, 0, n);
+                if (buf.size() > limit) {
+                    InputStreamEntity rest = new InputStreamEntity(new SequenceInputStream(
+                            new ByteArrayInputStream(buf.toByteArray()), in), -1);
+                    rest.setContentType(entity.getContentType());
+                    rest.setContentEncoding(entity.getContentEncoding());
+                    rest.setChunked(entity.isChunked());
+                    out[0] = rest;
+                    return new Shares(out);
+                }
+            }
+            in.close();
+        }
+        byte[] body = buf.toByteArray();
+        for(int i=0; i<participants; i++) {
+            ByteArrayEntity copy = new ByteArrayEntity(body);
+            copy.setContentType(entity.getContentType());
+            copy.setContentEncoding(entity.getContentEncoding());
+            out[i] = copy;
+        }
+        return new Shares(out);
+    }
+
+    /*
+     * One origin exchange, shared by every caller that missed in
+     * the cache while it was outstanding.
+     */
+    private static class SharedFetch {
+        final ResultFuture<Shares> future = new ResultFuture<Shares>();
+        int participants = 1;
+    }
+
+    /*
+     * The entities a shared fetch hands out, one per participant;
+     * the first is the leader's.
+     */
+    private static class Shares {
+        private final HttpEntity[] entities;
+        private int next = 0;
+
+        Shares(HttpEntity[] entities) {
+            this.entities = entities;
+        }
+
+        HttpEntity leaderShare() {
+            return entities[0];
+        }
+
+        synchronized HttpEntity take() {
+            return entities[++next];
+        }
+    }
+
+    /*
+     * Stands for the share of a caller that has to fetch the body
+     * for itself.
+     */
+    private static final HttpEntity OWN_FETCH = new ByteArrayEntity(new byte[0]);
+
+    /*
+     * Gives up the share of a caller that stopped waiting for it.
+     */
+    private static final ResultCallback<Shares> DISCARD_SHARE = new ResultCallback<Shares>() {
+        public void completed(Shares shares) {
+            HttpEntity entity = shares.take();
+            if (entity instanceof CachedEntity) {
+                try {
+                    ((CachedEntity)entity).close();
+                } catch (IOException e) {
+                    // the body is still released
+                }
+            }
+        }
+
+        public void failed(Throwable failure) {
+        }
+    };
+
+    /*
+     * "...it indicates that caches MAY serve the response in which
+     * it appears after it becomes stale, up to the indicated number
+     * of seconds... If a cached response is served stale due to the
+     * presence of this extension, the cache SHOULD attempt to
+     * revalidate it while still serving stale responses."
+     * http://tools.ietf.org/html/rfc5861#section-3
+     */
+    private boolean mayServeStaleWhileRevalidating(Response cached, Date now) {
+        return !cached.mustRevalidate() && !cached.noCache()
+            && cached.mayReturnStaleWhileRevalidating(now);
+    }
+
+    private void refresh() {
+        long call = lifecycle.startCall();
+        consumeEntity(fetch(cache.get(url), call), "GET", call);
+    }
+
+    /*
+     * Issues a GET (conditional, if we have a revalidatable cached
+     * entry), updates the cache, and returns the entity to read
+     * the current representation from. Takes over the caller's
+     * reference to the cached response.
+     */
+    private HttpEntity fetch(Response cached, long call) {
+        boolean servingCached = false;
+        try {
+            Response validatable = (cached != null && cached.isRevalidatable()) ? cached : null;
+            HttpGet req = new HttpGet(uri);
+            if (validatable != null) addValidators(req, validatable);
+            Date requestSent = new Date();
+            HttpResponse resp;
+            try {
+                resp = execute(req, call);
+            } catch (RuntimeException e) {
+                if (!mayServeStaleIfError(cached, req)) throw e;
+                servingCached = true;
+                return new CachedEntity(cached);
+            }
+            Date responseReceived = new Date();
+            int status = resp.getStatusLine().getStatusCode();
+            if (validatable != null && status == HttpStatus.SC_NOT_MODIFIED) {
+                consumeBodyOf(resp, "GET", call);
+                Response updated = cache.revalidated(url, validatable, requestSent,
+                        responseReceived, resp);
+                return new CachedEntity(updated);
+            }
+            if (status >= 500 && mayServeStaleIfError(cached, req)) {
+                consumeBodyOf(resp, "GET", call);
+                servingCached = true;
+                return new CachedEntity(cached);
+            }
+            Response stored;
+            try {
+                stored = cacheBodyOf(resp, requestSent, responseReceived);
+            } catch (RuntimeException e) {
+                req.abort();
+                if (!mayServeStaleIfError(cached, req)) throw e;
+                servingCached = true;
+                return new CachedEntity(cached);
+            }
+            if (stored != null) {
+                return new CachedEntity(stored);
+            }
+            if (cached != null && status < 500) cache.invalidate(url);
+            return resp.getEntity();
+        } finally {
+            if (!servingCached) ResponseCache.release(cached);
+        }
+    }
+
+    private Response cacheBodyOf(HttpResponse resp, Date requestSent,
+            Date responseReceived) {
+        try {
+            return cache.cacheResponse(url, requestSent, responseReceived, resp);
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    /*
+     * "...when an error is encountered, a cached stale response MAY
+     * be used to satisfy the request, regardless of other freshness
+     * information."
+     * http://tools.ietf.org/html/rfc5861#section-4
+     */
+    private boolean mayServeStaleIfError(Response cached, HttpRequest req) {
+        return cached != null && !cached.mustRevalidate() && !cached.noCache()
+            && cached.mayReturnStaleIfError(req, new Date());
+    }
+
+    /*
+     * "HTTP/1.1 clients... If both an entity tag and a Last-Modified
+     * value have been provided by the origin server, SHOULD use both
+     * validators in cache-conditional requests."
+     * http://www.w3.org/Protocols/rfc2616/rfc2616-sec13.html#sec13.3.4
+     */
+    private void addValidators(HttpGet req, Response cached) {
+        HttpCacheEntry entry = cached.getCacheEntry();
+        Header etag = entry.getFirstHeader(HeaderConstants.ETAG);
+        if (etag != null) {
+            req.setHeader(HeaderConstants.IF_NONE_MATCH, etag.getValue());
+        }
+        Header lastModified = entry.getFirstHeader(HeaderConstants.LAST_MODIFIED);
+        if (lastModified != null) {
+            req.setHeader(HeaderConstants.IF_MODIFIED_SINCE, lastModified.getValue());
+        }
+    }
+
+    private <T> T parse(HttpEntity entity, ContentParser<T> parser, long call) {
         if (entity == null) return null;
+        boolean traced = lifecycle.isActive();
+        long start = traced ? System.nanoTime() : 0L;
         try {
             return parser.parse(entity);
         } finally {
+            if (traced) {
+                lifecycle.phaseCompleted(RequestLifecycleEvent.Phase.PARSE, call, url, "GET",
+                        start);
+                start = System.nanoTime();
+            }
             try {
                 EntityUtils.consume(entity);
+                if (entity instanceof CachedEntity) ((CachedEntity)entity).close();
             } catch (IOException e) {
                 throw new RuntimeException(e);
+            } finally {
+                if (traced) {
+                    lifecycle.phaseCompleted(RequestLifecycleEvent.Phase.CONSUME, call, url,
+                            "GET", start);
+                }
             }
         }
     }
 
-    private HttpResponse execute(HttpUriRequest req) {
+    private HttpResponse execute(HttpUriRequest req, long call) {
+        long start = startTimer();
+        boolean traced = lifecycle.isActive();
+        long exchangeStart = traced ? System.nanoTime() : 0L;
+        HttpResponse resp = null;
         try {
             req.setHeader("User-Agent", "chaplib/0.1.0 Apache-HttpClient/4.1.3");
-            return httpClient.execute(req);
+            try {
+                resp = httpClient.execute(req);
+            } finally {
+                if (traced) {
+                    lifecycle.phaseCompleted(RequestLifecycleEvent.Phase.EXCHANGE, call, url,
+                            req.getMethod(), exchangeStart);
+                }
+            }
+            if (metered && resp.getEntity() != null) {
+                resp.setEntity(new MeteredEntity(resp.getEntity(), req.getMethod()));
+            }
+            return resp;
         } catch (ClientProtocolException e) {
             throw new RuntimeException(e);
         } catch (IOException e) {
             throw new RuntimeException(e);
+        } finally {
+            if (metered) exchangeCompleted(req, resp, start);
+        }
+    }
+
+    private long startTimer() {
+        return metered ? System.nanoTime() : 0L;
+    }
+
+    private void operationCompleted(String method, long start, boolean succeeded) {
+        if (metered) {
+            metrics.operationCompleted(url.getHost(), method, System.nanoTime() - start,
+                    succeeded);
         }
     }
 
+    private void exchangeCompleted(HttpUriRequest req, HttpResponse resp, long start) {
+        long sent = 0L;
+        if (req instanceof HttpEntityEnclosingRequest) {
+            HttpEntity entity = ((HttpEntityEnclosingRequest)req).getEntity();
+            if (entity != null) sent = Math.max(0L, entity.getContentLength());
+        }
+        int status = (resp == null) ? 0 : resp.getStatusLine().getStatusCode();
+        metrics.exchangeCompleted(url.getHost(), req.getMethod(), status,
+                System.nanoTime() - start, sent);
+    }
+
     public void delete() {
-        consumeBodyOf(execute(new HttpDelete(uri)));
+        long start = startTimer();
+        boolean succeeded = false;
+        try {
+            long call = lifecycle.startCall();
+            consumeBodyOf(invalidating(execute(new HttpDelete(uri), call)), "DELETE", call);
+            succeeded = true;
+        } finally {
+            operationCompleted("DELETE", start, succeeded);
+        }
     }
 
-    private void consumeBodyOf(HttpResponse resp) {
-        HttpEntity entity = resp.getEntity();
+    /**
+     * Asynchronous counterpart of {@link #delete}, which holds a thread
+     * of this resource's {@link AsyncRequestExecutor} while it runs.
+     */
+    public ResultFuture<Void> deleteAsync() {
+        return asyncExecutor.submit(new Computation<Void>() {
+            public Void execute() {
+                delete();
+                return null;
+            }
+        });
+    }
+
+    /*
+     * "Some HTTP methods MUST cause a cache to invalidate an entity.
+     * This is either the entity referred to by the Request-URI, or by
+     * the Location or Content-Location headers (if present). These
+     * methods are: PUT, DELETE, POST."
+     * http://www.w3.org/Protocols/rfc2616/rfc2616-sec13.html#sec13.10
+     */
+    private HttpResponse invalidating(HttpResponse resp) {
+        cache.invalidate(url);
+        invalidateLocation(resp.getFirstHeader("Location"));
+        invalidateLocation(resp.getFirstHeader("Content-Location"));
+        return resp;
+    }
+
+    /*
+     * "In order to prevent denial of service attacks, an invalidation
+     * based on the URI in a Location or Content-Location header MUST
+     * only be performed if the host part is the same as in the
+     * Request-URI."
+     */
+    private void invalidateLocation(Header hdr) {
+        if (hdr == null) return;
+        HttpURL location;
+        try {
+            location = new HttpURL(uri.resolve(hdr.getValue()), url.getNormalization());
+        } catch (IllegalArgumentException e) {
+            return;
+        }
+        if (location.getHost().equals(url.getHost())) {
+            cache.invalidate(location);
+        }
+    }
+
+    private void consumeBodyOf(HttpResponse resp, String method, long call) {
+        consumeEntity(resp.getEntity(), method, call);
+    }
+
+    private void consumeEntity(HttpEntity entity, String method, long call) {
         if (entity == null) return;
+        boolean traced = lifecycle.isActive();
+        long start = traced ? System.nanoTime() : 0L;
         try {
             EntityUtils.consume(entity);
+            if (entity instanceof CachedEntity) ((CachedEntity)entity).close();
         } catch (IOException e) {
             throw new RuntimeException(e);
+        } finally {
+            if (traced) {
+                lifecycle.phaseCompleted(RequestLifecycleEvent.Phase.CONSUME, call, url,
+                        method, start);
+            }
         }
     }
 
     public void replaceOrCreate(HttpEntity entity) {
-        HttpPut req = new HttpPut(uri);
-        req.setEntity(entity);
-        consumeBodyOf(execute(req));
+        long start = startTimer();
+        boolean succeeded = false;
+        try {
+            long call = lifecycle.startCall();
+            HttpPut req = new HttpPut(uri);
+            req.setEntity(entity);
+            consumeBodyOf(invalidating(execute(req, call)), "PUT", call);
+            succeeded = true;
+        } finally {
+            operationCompleted("PUT", start, succeeded);
+        }
+    }
+
+    /**
+     * Asynchronous counterpart of {@link #replaceOrCreate}, which holds a thread
+     * of this resource's {@link AsyncRequestExecutor} while it runs.
+     */
+    public ResultFuture<Void> replaceOrCreateAsync(final HttpEntity entity) {
+        return asyncExecutor.submit(new Computation<Void>() {
+            public Void execute() {
+                replaceOrCreate(entity);
+                return null;
+            }
+        });
     }
 
     public void post(HttpEntity entity) {
-        HttpPost req = new HttpPost(uri);
-        req.setEntity(entity);
-        consumeBodyOf(execute(req));
+        long start = startTimer();
+        boolean succeeded = false;
+        try {
+            long call = lifecycle.startCall();
+            HttpPost req = new HttpPost(uri);
+            req.setEntity(entity);
+            consumeBodyOf(invalidating(execute(req, call)), "POST", call);
+            succeeded = true;
+        } finally {
+            operationCompleted("POST", start, succeeded);
+        }
+    }
+
+    /**
+     * Asynchronous counterpart of {@link #post}, which holds a thread
+     * of this resource's {@link AsyncRequestExecutor} while it runs.
+     */
+    public ResultFuture<Void> postAsync(final HttpEntity entity) {
+        return asyncExecutor.submit(new Computation<Void>() {
+            public Void execute() {
+                post(entity);
+                return null;
+            }
+        });
+    }
+
+    /*
+     * Counts the body bytes read from an origin response and
+     * reports them once the body is exhausted or closed.
+     */
+    private class MeteredEntity extends HttpEntityWrapper {
+        private final String method;
+
+        MeteredEntity(HttpEntity wrapped, String method) {
+            super(wrapped);
+            this.method = method;
+        }
+
+        @Override
+        public InputStream getContent() throws IOException {
+            InputStream in = wrappedEntity.getContent();
+            return (in == null) ? null : new CountingInputStream(in, method);
+        }
+
+        @Override
+        public void writeTo(OutputStream out) throws IOException {
+            InputStream in = getContent();
+            if (in == null) return;
+            try {
+                byte[] buf = new byte[4096];
+                int n;
+                while ((n = in.read(buf)) != -1) {
+                    out.write(buf, 0, n);
+                }
+            } finally {
+                in.close();
+            }
+        }
+    }
+
+    private class CountingInputStream extends FilterInputStream {
+        private final String method;
+        private long count = 0L;
+        private boolean reported = false;
+
+        CountingInputStream(InputStream in, String method) {
+            super(in);
+            this.method = method;
+        }
+
+        @Override
+        public int read() throws IOException {
+            int b = super.read();
+            if (b == -1) report();
+            else count++;
+            return b;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            int n = super.read(b, off, len);
+            if (n == -1) report();
+            else count += n;
+            return n;
+        }
+
+        @Override
+        public long skip(long n) throws IOException {
+            long skipped = super.skip(n);
+            count += skipped;
+            return skipped;
+        }
+
+        @Override
+        public void close() throws IOException {
+            try {
+                super.close();
+            } finally {
+                report();
+            }
+        }
+
+        private void report() {
+            if (reported) return;
+            reported = true;
+            metrics.responseBodyRead(url.getHost(), method, count);
+        }
     }
 
 }
@@ -16,35 +16,311 @@ package org.chaplib;
  * See the License for the specific language governing permissions and
  * limitations under the License.
  */
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
 import java.net.URI;
 import java.net.URISyntaxException;
-import java.util.WeakHashMap;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
 
 import org.apache.http.client.HttpClient;
 
 public class HttpResourceFactory {
 
+    public static final int DEFAULT_BATCH_MAX_CONCURRENT = 16;
+    public static final int DEFAULT_BATCH_MAX_PER_HOST = 4;
+
     private HttpClient httpClient;
-    private WeakHashMap<HttpURL, HttpResource> directory =
-        new WeakHashMap<HttpURL, HttpResource>();
+    private ResponseCache cache = new ResponseCache();
+    private BackgroundRevalidator revalidator;
+    private AsyncRequestExecutor asyncExecutor;
+    private boolean ownsRevalidator = false;
+    private boolean ownsAsyncExecutor = false;
+    private URLNormalization normalization = URLNormalization.RFC_2616;
+    private HttpURLPool urlPool;
+    private HttpMetrics metrics;
+    private boolean metered = false;
+    private volatile boolean inUse = false;
+    private LifecycleListeners lifecycle = new LifecycleListeners();
+    private ConcurrentHashMap<HttpURL, ResourceReference> directory =
+        new ConcurrentHashMap<HttpURL, ResourceReference>();
+    private ReferenceQueue<HttpResource> collected = new ReferenceQueue<HttpResource>();
     
+    /**
+     * Creates an <code>HttpResourceFactory</code> with a response
+     * cache, background revalidator and asynchronous request
+     * executor of its own, shared by its resources. These can be
+     * replaced with the setters below before the first resource is
+     * looked up; the revalidator and executor are only created
+     * then, and should be stopped with {@link #shutdown} once the
+     * factory is no longer needed.
+     */
     public HttpResourceFactory(HttpClient client) {
         this.httpClient = client;
     }
 
-    public synchronized HttpResource get(URI uri) {
-        HttpURL url = new HttpURL(uri);
-        if (directory.containsKey(url)) {
-            return directory.get(url);
+    /**
+     * Makes this factory's resources cache their representations
+     * in the given (possibly shared) cache.
+     * @throws IllegalStateException if resources have already been
+     *   looked up
+     */
+    public synchronized void setResponseCache(ResponseCache cache) {
+        checkNotInUse();
+        if (cache == null) throw new IllegalArgumentException("cache must not be null");
+        this.cache = cache;
+    }
+
+    /**
+     * Makes this factory's resources refresh stale cache entries in
+     * the background with the given (possibly shared) revalidator,
+     * when the origin permits.
+     * @throws IllegalStateException if resources have already been
+     *   looked up
+     */
+    public synchronized void setBackgroundRevalidator(BackgroundRevalidator revalidator) {
+        checkNotInUse();
+        if (revalidator == null) {
+            throw new IllegalArgumentException("revalidator must not be null");
+        }
+        this.revalidator = revalidator;
+    }
+
+    /**
+     * Makes the asynchronous methods of this factory's resources run
+     * on the given (possibly shared) executor.
+     * @throws IllegalStateException if resources have already been
+     *   looked up
+     */
+    public synchronized void setAsyncRequestExecutor(AsyncRequestExecutor asyncExecutor) {
+        checkNotInUse();
+        if (asyncExecutor == null) {
+            throw new IllegalArgumentException("executor must not be null");
+        }
+        this.asyncExecutor = asyncExecutor;
+    }
+
+    /**
+     * Treats URIs as identifying the same resource when they are
+     * equivalent under the given normalization; the default is
+     * {@link URLNormalization#RFC_2616}.
+     * @throws IllegalStateException if resources have already been
+     *   looked up
+     */
+    public synchronized void setURLNormalization(URLNormalization normalization) {
+        checkNotInUse();
+        if (normalization == null) {
+            throw new IllegalArgumentException("normalization must not be null");
+        }
+        this.normalization = normalization;
+        this.urlPool = null;
+    }
+
+    /**
+     * Looks up the <code>HttpURL</code>s of requested URIs in the
+     * given pool, and hence uses its normalization.
+     * @throws IllegalStateException if resources have already been
+     *   looked up
+     */
+    public synchronized void setURLPool(HttpURLPool urlPool) {
+        checkNotInUse();
+        if (urlPool == null) throw new IllegalArgumentException("pool must not be null");
+        this.urlPool = urlPool;
+        this.normalization = urlPool.getNormalization();
+    }
+
+    /**
+     * Makes this factory and its resources report their traffic to
+     * the given metrics; <code>null</code>, the default, turns
+     * measurement off.
+     * @throws IllegalStateException if resources have already been
+     *   looked up
+     */
+    public synchronized void setMetrics(HttpMetrics metrics) {
+        checkNotInUse();
+        this.metrics = metrics;
+        this.metered = (metrics != null);
+    }
+
+    /**
+     * Stops the background revalidator and asynchronous request
+     * executor this factory created for itself, if any; requests
+     * already submitted are still completed. Ones passed to the
+     * setters belong to the caller and are left running.
+     */
+    public synchronized void shutdown() {
+        if (ownsRevalidator) revalidator.shutdown();
+        if (ownsAsyncExecutor) asyncExecutor.shutdown();
+    }
+
+    /*
+     * Settles the configuration when the first resource is looked
+     * up, creating whatever thread pools the caller did not supply.
+     */
+    private synchronized void startUsing() {
+        if (inUse) return;
+        if (revalidator == null) {
+            revalidator = new BackgroundRevalidator();
+            ownsRevalidator = true;
+        }
+        if (asyncExecutor == null) {
+            asyncExecutor = new AsyncRequestExecutor();
+            ownsAsyncExecutor = true;
+        }
+        inUse = true;
+    }
+
+    private void checkNotInUse() {
+        if (inUse) {
+            throw new IllegalStateException("resources have already been looked up");
+        }
+    }
+
+    /**
+     * Returns the resource identified by the given URI. As long as
+     * a caller holds on to a returned resource, every equivalent
+     * URI maps to that same resource; once it is no longer in use
+     * anywhere it may be discarded. Lookups do not block one
+     * another.
+     */
+    public HttpResource get(URI uri) {
+        if (!inUse) startUsing();
+        long start = metered ? System.nanoTime() : 0L;
+        expungeCollectedResources();
+        if (!lifecycle.isActive()) return get(toHttpURL(uri), start);
+        long call = lifecycle.startCall();
+        long phaseStart = System.nanoTime();
+        HttpURL url = null;
+        try {
+            url = toHttpURL(uri);
+        } finally {
+            lifecycle.phaseCompleted(RequestLifecycleEvent.Phase.CANONICALIZATION, call, url,
+                    null, phaseStart);
+        }
+        phaseStart = System.nanoTime();
+        try {
+            return get(url, start);
+        } finally {
+            lifecycle.phaseCompleted(RequestLifecycleEvent.Phase.LOOKUP, call, url, null,
+                    phaseStart);
+        }
+    }
+
+    /**
+     * Registers a listener to be told about the phases of calls on
+     * this factory's resources, including ones created before the
+     * listener was added. Phases are only timed while at least one
+     * listener is registered.
+     */
+    public void addLifecycleListener(RequestLifecycleListener listener) {
+        lifecycle.add(listener);
+    }
+
+    public void removeLifecycleListener(RequestLifecycleListener listener) {
+        lifecycle.remove(listener);
+    }
+
+    private HttpURL toHttpURL(URI uri) {
+        return (urlPool != null) ? urlPool.get(uri) : new HttpURL(uri, normalization);
+    }
+
+    private HttpResource get(HttpURL url, long start) {
+        ResourceReference ref = directory.get(url);
+        HttpResource out = (ref == null) ? null : ref.get();
+        if (out != null) return lookedUp(out, false, start);
+        HttpResource created = newResource(url);
+        ResourceReference mine = new ResourceReference(url, created, collected);
+        while (true) {
+            if (ref == null) {
+                ref = directory.putIfAbsent(url, mine);
+                if (ref == null) return lookedUp(created, true, start);
+            } else if ((out = ref.get()) != null) {
+                return lookedUp(out, false, start);
+            } else if (directory.replace(url, ref, mine)) {
+                return lookedUp(created, true, start);
+            } else {
+                ref = directory.get(url);
+            }
         }
-        HttpResource out;
+    }
+
+    private HttpResource lookedUp(HttpResource resource, boolean created, long start) {
+        if (metered) metrics.resourceLookedUp(System.nanoTime() - start, created);
+        return resource;
+    }
+
+    /**
+     * Fetches and parses the values of the given resources in
+     * parallel, with the default concurrency limits.
+     * @see #getAll(Collection, ContentParser, int, int)
+     */
+    public <T> BatchGet<T> getAll(Collection<URI> uris, ContentParser<T> parser) {
+        return getAll(uris, parser, DEFAULT_BATCH_MAX_CONCURRENT, DEFAULT_BATCH_MAX_PER_HOST);
+    }
+
+    /**
+     * Fetches and parses the values of the given resources in
+     * parallel, as if by {@link HttpResource#valueAsync}. URIs that
+     * identify the same resource are only fetched once. Results are
+     * handed out by the returned batch as they complete.
+     * @param maxConcurrent maximum number of outstanding requests
+     * @param maxPerHost maximum number of outstanding requests to
+     *   any one host
+     * @throws IllegalArgumentException if any of the URIs is not
+     *   a valid <code>http</code> or <code>https</code> URL; no
+     *   requests are made in that case
+     */
+    public <T> BatchGet<T> getAll(Collection<URI> uris, ContentParser<T> parser,
+            int maxConcurrent, int maxPerHost) {
+        if (!inUse) startUsing();
+        expungeCollectedResources();
+        Map<HttpURL, URI> distinct = new LinkedHashMap<HttpURL, URI>();
+        for(URI uri : uris) {
+            HttpURL url = toHttpURL(uri);
+            if (!distinct.containsKey(url)) distinct.put(url, uri);
+        }
+        Map<HttpURL, HttpResource> resources = new HashMap<HttpURL, HttpResource>();
+        for(HttpURL url : distinct.keySet()) {
+            resources.put(url, get(url, metered ? System.nanoTime() : 0L));
+        }
+        BatchGet<T> batch = new BatchGet<T>(distinct, resources, parser,
+                maxConcurrent, maxPerHost);
+        batch.start();
+        return batch;
+    }
+
+    private HttpResource newResource(HttpURL url) {
         try {
-            out = new HttpResource(url.getCanonicalURL().toURI(), httpClient);
+            return new HttpResource(url.getCanonicalURL().toURI(), url, httpClient, cache,
+                    revalidator, asyncExecutor, metrics, lifecycle);
         } catch (URISyntaxException e) {
             throw new IllegalStateException("URL to URI conversion failed", e);
         }
-        directory.put(url, out);
-        return out;
+    }
+
+    private void expungeCollectedResources() {
+        ResourceReference ref;
+        while ((ref = (ResourceReference)collected.poll()) != null) {
+            directory.remove(ref.url, ref);
+        }
+    }
+
+    /*
+     * Directory entries only weakly reference their resources, so
+     * that resources nobody is using can be garbage collected; the
+     * entry remembers its key so it can be removed afterwards.
+     */
+    private static class ResourceReference extends WeakReference<HttpResource> {
+        final HttpURL url;
+
+        ResourceReference(HttpURL url, HttpResource resource,
+                ReferenceQueue<HttpResource> queue) {
+            super(resource, queue);
+            this.url = url;
+        }
     }
 
 }
@@ -17,95 +17,87 @@
  */
 package org.chaplib;
 
-import java.io.UnsupportedEncodingException;
 import java.net.MalformedURLException;
 import java.net.URI;
 import java.net.URL;
-import java.net.URLDecoder;
 
 public class HttpURL {
     
-    private final static String UNRESERVED = 
-        "ABCDEFGHIJKLMNOPQRSTUVWXYZabcdefghijklmnopqrstuvwxyz" + "0123456789" + "-_.!~*'()"; 
-    
-    private URL url;
+    private final String canonical;
+    private final int hostEnd;
+    private final int port;
+    private final int fileStart;
+    private final long hash64;
+    private final URLNormalization normalization;
+    private volatile URL url;
     
     public HttpURL(String s) {
-        try {
-            URL url = new URL(s);
-            String scheme = url.getProtocol();
-            if (!scheme.equalsIgnoreCase("http") && !scheme.equalsIgnoreCase("https")) {
-                throw new IllegalArgumentException("can only be created with http or https URI schemes");
-            }
-            this.url = canonicalURL(url);
-        } catch (MalformedURLException e) {
-            throw new IllegalArgumentException("must be created with valid URL syntax", e);
+        this(s, URLNormalization.RFC_2616);
+    }
+
+    /**
+     * Creates an <code>HttpURL</code> that is normalized according
+     * to the given rules.
+     */
+    public HttpURL(String s, URLNormalization normalization) {
+        this.normalization = normalization;
+        canonical = URLCanonicalizer.canonicalize(s, normalization);
+        int hostStart = hostStart();
+        int portStart = canonical.charAt(hostStart) == '[' ?
+                canonical.indexOf(']', hostStart) + 1 : canonical.indexOf(':', hostStart);
+        hostEnd = portStart;
+        int i = portStart + 1;
+        int port = 0;
+        for(char c; i < canonical.length() && (c = canonical.charAt(i)) != '/'; i++) {
+            port = port * 10 + (c - '0');
         }
+        this.port = port;
+        fileStart = i;
+        hash64 = hash64(canonical);
     }
 
     public HttpURL(URI uri) {
         this(uri.toString());
     }
 
+    public HttpURL(URI uri, URLNormalization normalization) {
+        this(uri.toString(), normalization);
+    }
+
     public HttpURL(URL url) {
         this(url.toString());
     }
 
-    private URL canonicalURL(URL url) {
-        String protocol = url.getProtocol().toLowerCase();
-        String host = url.getHost().toLowerCase();
-        int port = url.getPort();
-        if (port == -1 && "http".equals(protocol)) port = 80;
-        if (port == -1 && "https".equals(protocol)) port = 443;
-        String file = url.getFile();
-        if ("".equals(file)) file = "/";
-        file = normalizeFile(file);
-        try {
-            return new URL(protocol, host, port, file);
-        } catch (MalformedURLException e) {
-            throw new IllegalStateException("canonicalization error", e);
-        }
+    private int hostStart() {
+        return canonical.startsWith("https:") ? 8 : 7;
     }
 
-    private String normalizeFile(String file) {
-        StringBuilder out = new StringBuilder();
-        for(int i=0; i<file.length(); i++) {
-            Character c = file.charAt(i);
-            if (c != '%') {
-                out.append(c);
-                continue;
-            }
-            String hexcode = file.substring(i, i+3);
-            String unescaped;
-            try {
-                unescaped = URLDecoder.decode(hexcode, "utf-8");
-            } catch (UnsupportedEncodingException e) {
-                throw new IllegalStateException("no utf-8 decoder", e);
-            }
-            if (UNRESERVED.indexOf(unescaped) != -1) {
-                out.append(unescaped);
-            } else {
-                out.append(hexcode);
-            }
-            i += 2;
+    /*
+     * 64-bit FNV-1a over the canonical form; computed once so that
+     * hashing never touches java.net.URL, whose hashCode() and
+     * equals() may resolve the host name.
+     */
+    private static long hash64(String s) {
+        long h = 0xcbf29ce484222325L;
+        for(int i=0; i<s.length(); i++) {
+            h ^= s.charAt(i);
+            h *= 0x100000001b3L;
         }
-        return out.toString();
+        return h;
     }
 
-    /* (non-Javadoc)
-     * @see java.lang.Object#hashCode()
+    /**
+     * Returns a 64-bit hash of the canonical form of this URL.
      */
+    public long longHashCode() {
+        return hash64;
+    }
+
     @Override
     public int hashCode() {
-        final int prime = 31;
-        int result = 1;
-        result = prime * result + ((url == null) ? 0 : url.hashCode());
-        return result;
+        return (int)(hash64 ^ (hash64 >>> 32));
     }
 
-    /* (non-Javadoc)
-     * @see java.lang.Object#equals(java.lang.Object)
-     */
     @Override
     public boolean equals(Object obj) {
         if (this == obj)
@@ -115,19 +107,51 @@ public class HttpURL {
         if (getClass() != obj.getClass())
             return false;
         HttpURL other = (HttpURL) obj;
-        if (url == null) {
-            if (other.url != null)
-                return false;
-        }
-        return (url.getProtocol().equals(other.url.getProtocol())
-                && url.getHost().equals(other.url.getHost())
-                && url.getPort() == other.url.getPort()
-                && url.getFile().equals(other.url.getFile()));
+        return (hash64 == other.hash64 && canonical.equals(other.canonical));
+    }
+
+    public String getScheme() {
+        return canonical.startsWith("https:") ? "https" : "http";
+    }
+
+    public String getHost() {
+        return canonical.substring(hostStart(), hostEnd);
+    }
+
+    public int getPort() {
+        return port;
+    }
+
+    /**
+     * Returns the canonical path and query of this URL.
+     */
+    public String getFile() {
+        return canonical.substring(fileStart);
+    }
+
+    public URLNormalization getNormalization() {
+        return normalization;
     }
 
     public URL getCanonicalURL() {
-        return url;
+        URL out = url;
+        if (out == null) {
+            try {
+                out = new URL(canonical);
+            } catch (MalformedURLException e) {
+                throw new IllegalStateException("canonicalization error", e);
+            }
+            url = out;
+        }
+        return out;
     }
 
-    
+    /**
+     * Returns the canonical form of this URL, which always
+     * includes an explicit port.
+     */
+    @Override
+    public String toString() {
+        return canonical;
+    }
 }
@@ -0,0 +1,99 @@
+package org.chaplib;
+/*
+ * HttpURLPool.java
+ *
+ * Copyright (C) 2012 Jonathan Moore
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+import java.net.URI;
+
+/**
+ * A bounded pool of interned {@link HttpURL}s. Looking up a URL
+ * string that was seen recently returns the existing instance
+ * without parsing it again, and the spellings of a canonical URL
+ * map to a single instance, so comparing pooled URLs is normally
+ * settled by the identity check in {@link HttpURL#equals}.
+ * <p>
+ * The pool keeps two generations of entries. New entries go into
+ * the current generation; once it holds half of the maximum, it
+ * becomes the previous generation and the old previous generation
+ * is dropped. Entries found in the previous generation are copied
+ * forward, so URLs that stay in use stay in the pool. Lookups
+ * never block.
+ */
+public class HttpURLPool {
+
+    public static final int DEFAULT_MAX_ENTRIES = 10000;
+
+    private final URLNormalization normalization;
+    private final GenerationalCache<String, HttpURL> urls;
+
+    public HttpURLPool() {
+        this(DEFAULT_MAX_ENTRIES, URLNormalization.RFC_2616);
+    }
+
+    /**
+     * Creates a pool holding at most (roughly) the given number of
+     * URL strings, whose <code>HttpURL</code>s are normalized with
+     * the given rules.
+     */
+    public HttpURLPool(int maxEntries, URLNormalization normalization) {
+        this.normalization = normalization;
+        this.urls = new GenerationalCache<String, HttpURL>(maxEntries);
+    }
+
+    public URLNormalization getNormalization() {
+        return normalization;
+    }
+
+    public HttpURL get(URI uri) {
+        return get(uri.toString());
+    }
+
+    /**
+     * Returns the pooled <code>HttpURL</code> for the given URL
+     * string, creating and pooling it if necessary.
+     * @throws IllegalArgumentException if the string is not a
+     *   valid <code>http</code> or <code>https</code> URL
+     */
+    public HttpURL get(String s) {
+        HttpURL url = urls.get(s);
+        if (url != null) return url;
+        url = canonicalInstance(new HttpURL(s, normalization));
+        urls.put(s, url);
+        return url;
+    }
+
+    /*
+     * Distinct spellings of one URL share the instance pooled
+     * under its canonical form.
+     */
+    private HttpURL canonicalInstance(HttpURL created) {
+        String canonical = created.toString();
+        HttpURL url = urls.get(canonical);
+        if (url != null) return url;
+        urls.put(canonical, created);
+        return created;
+    }
+
+    /**
+     * Returns the number of pool entries, which stays within the
+     * maximum apart from concurrent insertions. A URL string that
+     * was just copied forward from the previous generation is
+     * counted twice.
+     */
+    public int size() {
+        return urls.size();
+    }
+}
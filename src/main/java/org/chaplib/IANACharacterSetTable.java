@@ -0,0 +1,248 @@
+/* 
+ * IANACharacterSetTable.java
+ * 
+ * Copyright (C) 2012 Jonathan Moore
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *   
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.chaplib;
+
+import java.nio.charset.Charset;
+import java.nio.charset.IllegalCharsetNameException;
+import java.nio.charset.UnsupportedCharsetException;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * A precomputed, case-insensitive hash table over
+ * {@link IANACharacterSets#CHARACTER_SETS}, so that character set
+ * names can be looked up without allocating (in particular,
+ * without lowercasing them first). The table is open-addressed
+ * with linear probing; {@link #SLOTS} is generated source, and a
+ * unit test checks that it matches the registry list.
+ * <p>
+ * Each registered name can also be resolved to the
+ * {@link Charset} it denotes. Charsets are looked up on first use
+ * and then remembered.
+ */
+final class IANACharacterSetTable {
+
+    static final int SIZE = 2048;
+
+    /*
+     * Generated from CHARACTER_SETS (TestIANACharacterSetTable fails
+     * with the new contents when it changes): index into
+     * CHARACTER_SETS plus one, or zero for an empty slot.
+     */
+    static final short[] SLOTS = {
+        0, 0, 0, 0, 0, 0, 240, 699, 0, 0, 0, 0, 0, 0, 0, 0,
+        0, 0, 0, 0, 0, 0, 314, 0, 0, 0, 0, 0, 33, 524, 0, 0,
+        0, 0, 0, 0, 0, 306, 468, 651, 0, 0, 0, 0, 0, 0, 0, 780,
+        327, 666, 0, 0, 0, 0, 349, 792, 765, 0, 0, 0, 551, 0, 0, 0,
+        308, 0, 0, 160, 570, 430, 433, 442, 263, 635, 702, 738, 0, 0, 0, 233,
+        182, 260, 357, 424, 0, 0, 0, 94, 0, 0, 264, 0, 449, 0, 0, 482,
+        0, 0, 0, 141, 407, 490, 784, 380, 541, 584, 648, 252, 0, 0, 0, 0,
+        0, 0, 587, 604, 0, 662, 0, 0, 0, 0, 0, 383, 0, 0, 782, 726,
+        532, 591, 0, 154, 0, 187, 356, 764, 108, 411, 794, 806, 0, 0, 660, 0,
+        0, 228, 0, 0, 0, 120, 0, 0, 0, 698, 158, 638, 0, 0, 0, 437,
+        100, 0, 385, 0, 163, 0, 186, 0, 0, 569, 0, 791, 0, 0, 196, 0,
+        478, 0, 0, 0, 286, 0, 615, 708, 755, 243, 0, 80, 244, 0, 614, 0,
+        293, 0, 0, 0, 193, 463, 337, 0, 0, 0, 296, 0, 658, 101, 171, 0,
+        238, 256, 389, 19, 0, 0, 622, 542, 0, 46, 0, 114, 0, 371, 0, 458,
+        0, 0, 0, 192, 302, 0, 0, 0, 0, 504, 727, 178, 0, 0, 0, 22,
+        0, 0, 0, 415, 553, 689, 142, 703, 144, 0, 303, 0, 0, 643, 0, 0,
+        0, 0, 0, 715, 0, 728, 399, 0, 549, 79, 414, 122, 0, 673, 801, 0,
+        0, 0, 261, 0, 0, 0, 0, 0, 147, 209, 0, 0, 0, 400, 0, 0,
+        0, 0, 0, 560, 0, 0, 0, 0, 0, 247, 0, 0, 195, 370, 0, 0,
+        0, 166, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0,
+        0, 0, 0, 0, 711, 0, 269, 0, 0, 139, 394, 0, 0, 317, 185, 568,
+        429, 597, 0, 0, 0, 0, 0, 0, 172, 719, 250, 0, 455, 0, 0, 0,
+        335, 661, 0, 0, 0, 0, 0, 0, 705, 0, 0, 485, 0, 0, 0, 289,
+        734, 0, 0, 0, 0, 0, 746, 0, 0, 0, 0, 0, 179, 372, 245, 0,
+        0, 0, 0, 375, 0, 678, 0, 270, 234, 0, 0, 0, 0, 629, 47, 95,
+        0, 0, 0, 0, 0, 0, 0, 0, 753, 0, 818, 0, 581, 0, 0, 0,
+        0, 0, 0, 169, 760, 0, 273, 332, 267, 471, 0, 488, 0, 0, 0, 452,
+        0, 0, 577, 0, 0, 0, 0, 0, 0, 0, 0, 418, 0, 0, 265, 0,
+        0, 508, 0, 526, 423, 401, 0, 539, 0, 0, 799, 505, 135, 625, 725, 181,
+        739, 0, 0, 683, 0, 0, 0, 0, 0, 0, 50, 384, 823, 0, 319, 659,
+        10, 0, 390, 0, 0, 0, 833, 361, 387, 0, 498, 0, 132, 697, 0, 311,
+        0, 0, 0, 0, 131, 603, 601, 0, 0, 0, 60, 0, 89, 565, 473, 752,
+        0, 454, 97, 0, 0, 266, 8, 0, 0, 0, 0, 0, 0, 0, 0, 128,
+        0, 0, 0, 70, 0, 0, 66, 529, 0, 750, 0, 0, 0, 0, 0, 0,
+        0, 0, 0, 480, 610, 729, 0, 0, 759, 0, 0, 0, 262, 214, 377, 513,
+        525, 0, 0, 0, 336, 133, 783, 0, 200, 0, 153, 740, 359, 834, 0, 656,
+        0, 0, 0, 0, 0, 36, 636, 453, 0, 0, 0, 0, 684, 536, 0, 0,
+        0, 781, 0, 388, 0, 362, 0, 0, 0, 0, 0, 0, 0, 0, 578, 0,
+        0, 0, 0, 0, 633, 0, 0, 514, 0, 0, 0, 294, 824, 621, 460, 0,
+        0, 0, 0, 74, 0, 0, 412, 358, 445, 793, 763, 0, 350, 0, 0, 0,
+        0, 0, 173, 64, 0, 224, 297, 832, 91, 83, 285, 365, 775, 333, 0, 0,
+        0, 554, 0, 595, 0, 0, 0, 326, 574, 0, 0, 589, 67, 628, 0, 594,
+        0, 0, 495, 0, 81, 0, 0, 253, 439, 552, 0, 435, 0, 467, 0, 0,
+        0, 340, 376, 282, 431, 0, 0, 0, 0, 434, 138, 0, 0, 0, 215, 645,
+        0, 0, 0, 472, 0, 428, 0, 0, 0, 88, 762, 0, 0, 609, 733, 0,
+        15, 277, 405, 99, 655, 290, 30, 42, 406, 487, 588, 0, 654, 0, 0, 0,
+        425, 0, 0, 0, 0, 420, 0, 0, 427, 0, 649, 0, 527, 0, 0, 0,
+        0, 0, 119, 259, 0, 87, 0, 0, 104, 567, 0, 0, 0, 29, 0, 0,
+        805, 0, 0, 0, 0, 754, 0, 0, 0, 586, 236, 558, 575, 0, 0, 0,
+        0, 0, 0, 0, 170, 0, 198, 123, 226, 0, 470, 693, 790, 0, 0, 0,
+        0, 0, 0, 0, 48, 707, 798, 484, 304, 0, 0, 0, 0, 0, 0, 0,
+        0, 0, 0, 0, 0, 466, 0, 0, 0, 0, 0, 183, 281, 0, 0, 0,
+        0, 0, 743, 329, 0, 720, 410, 583, 795, 0, 16, 58, 475, 0, 0, 443,
+        0, 724, 0, 0, 0, 208, 0, 0, 0, 0, 0, 0, 0, 397, 0, 0,
+        90, 320, 0, 0, 0, 334, 507, 0, 0, 0, 0, 0, 0, 51, 301, 0,
+        0, 450, 0, 113, 462, 280, 744, 422, 0, 111, 617, 701, 0, 0, 0, 0,
+        757, 0, 0, 0, 0, 0, 668, 0, 0, 0, 646, 788, 71, 0, 0, 145,
+        258, 479, 0, 0, 0, 0, 0, 0, 0, 0, 0, 563, 0, 0, 829, 0,
+        2, 105, 831, 511, 0, 0, 353, 324, 772, 0, 43, 0, 205, 538, 0, 0,
+        257, 291, 644, 787, 309, 800, 159, 461, 0, 0, 0, 211, 305, 0, 714, 0,
+        0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 242, 0, 0, 0, 0, 0,
+        203, 585, 0, 0, 0, 0, 251, 0, 0, 826, 0, 0, 0, 566, 0, 57,
+        766, 612, 219, 817, 0, 627, 0, 0, 0, 223, 392, 5, 797, 0, 0, 0,
+        0, 0, 0, 0, 0, 227, 0, 62, 712, 343, 718, 0, 0, 0, 0, 0,
+        0, 0, 26, 0, 0, 544, 564, 0, 0, 0, 0, 523, 441, 0, 54, 0,
+        827, 710, 543, 736, 0, 0, 0, 0, 0, 0, 0, 0, 502, 0, 0, 0,
+        0, 0, 0, 0, 0, 0, 0, 600, 0, 0, 0, 0, 0, 0, 641, 548,
+        0, 40, 167, 545, 796, 515, 0, 239, 373, 0, 0, 194, 220, 778, 0, 0,
+        0, 0, 559, 0, 331, 0, 0, 0, 0, 342, 0, 0, 0, 149, 299, 276,
+        0, 0, 0, 0, 0, 0, 747, 0, 0, 0, 0, 0, 0, 176, 808, 0,
+        395, 0, 382, 476, 640, 351, 0, 769, 0, 810, 0, 0, 98, 592, 0, 288,
+        379, 0, 11, 0, 206, 364, 0, 0, 241, 0, 321, 546, 274, 117, 0, 84,
+        188, 398, 618, 363, 713, 0, 150, 393, 562, 0, 237, 202, 0, 0, 39, 446,
+        0, 758, 255, 77, 700, 0, 21, 0, 0, 0, 0, 0, 0, 0, 4, 637,
+        0, 164, 579, 0, 109, 204, 748, 0, 184, 0, 0, 0, 0, 76, 670, 0,
+        0, 0, 0, 0, 0, 0, 0, 0, 313, 112, 0, 679, 0, 0, 0, 828,
+        0, 0, 0, 0, 221, 0, 0, 216, 576, 316, 687, 0, 0, 0, 0, 28,
+        616, 330, 672, 0, 0, 0, 344, 338, 85, 721, 0, 0, 0, 0, 0, 12,
+        63, 386, 613, 0, 0, 218, 0, 0, 0, 0, 0, 0, 381, 0, 177, 318,
+        121, 477, 770, 0, 497, 681, 416, 0, 517, 0, 0, 53, 126, 295, 537, 0,
+        0, 0, 34, 494, 0, 0, 0, 106, 630, 0, 0, 0, 213, 0, 0, 0,
+        0, 161, 0, 0, 663, 438, 768, 0, 0, 789, 341, 0, 0, 0, 756, 469,
+        0, 704, 0, 0, 0, 0, 0, 174, 0, 0, 0, 0, 0, 346, 0, 191,
+        0, 0, 0, 0, 268, 0, 0, 722, 86, 0, 0, 72, 0, 0, 593, 0,
+        110, 0, 0, 409, 0, 688, 0, 650, 535, 0, 825, 0, 835, 0, 607, 686,
+        116, 217, 674, 0, 165, 531, 0, 3, 0, 0, 0, 0, 0, 771, 730, 0,
+        107, 152, 0, 0, 0, 0, 0, 0, 52, 0, 0, 519, 404, 1, 0, 0,
+        0, 520, 421, 189, 68, 345, 0, 0, 0, 124, 547, 0, 0, 352, 201, 0,
+        136, 521, 0, 61, 0, 822, 0, 0, 0, 0, 0, 0, 426, 0, 0, 0,
+        0, 55, 355, 0, 0, 0, 0, 518, 0, 0, 0, 0, 328, 501, 0, 0,
+        229, 608, 0, 0, 0, 0, 0, 0, 580, 0, 0, 0, 0, 0, 225, 275,
+        0, 115, 0, 573, 0, 0, 310, 605, 0, 7, 155, 440, 0, 0, 481, 0,
+        503, 0, 0, 0, 0, 0, 0, 0, 279, 0, 0, 148, 809, 0, 0, 134,
+        0, 819, 0, 0, 0, 582, 0, 0, 0, 0, 249, 0, 534, 0, 0, 0,
+        396, 483, 665, 0, 464, 0, 0, 127, 37, 0, 0, 0, 0, 0, 804, 0,
+        199, 634, 657, 0, 0, 0, 0, 0, 368, 0, 0, 0, 0, 0, 284, 444,
+        631, 180, 369, 486, 0, 0, 0, 102, 322, 419, 0, 0, 0, 0, 25, 0,
+        0, 0, 0, 0, 0, 0, 0, 137, 0, 0, 287, 0, 0, 436, 685, 540,
+        0, 0, 0, 0, 737, 0, 723, 803, 0, 0, 0, 0, 557, 0, 0, 0,
+        0, 0, 0, 366, 103, 0, 0, 0, 402, 254, 0, 773, 69, 298, 598, 0,
+        0, 235, 767, 447, 0, 0, 354, 0, 0, 830, 667, 0, 56, 676, 156, 0,
+        0, 0, 0, 0, 0, 0, 0, 0, 457, 0, 230, 45, 732, 745, 0, 0,
+        0, 0, 325, 624, 671, 0, 197, 0, 0, 0, 606, 561, 652, 0, 0, 348,
+        0, 0, 0, 0, 807, 0, 0, 0, 0, 367, 0, 0, 0, 0, 24, 696,
+        786, 0, 0, 811, 0, 522, 774, 0, 0, 0, 0, 0, 283, 0, 0, 0,
+        0, 717, 619, 9, 716, 0, 374, 0, 0, 0, 408, 0, 0, 0, 0, 0,
+        0, 0, 0, 0, 0, 0, 0, 82, 0, 675, 639, 0, 0, 0, 0, 0,
+        0, 0, 0, 0, 0, 465, 0, 49, 0, 0, 0, 512, 692, 0, 0, 474,
+        0, 6, 0, 0, 0, 0, 0, 207, 695, 0, 118, 0, 0, 459, 0, 151,
+        0, 0, 35, 0, 802, 0, 0, 0, 611, 0, 78, 0, 0, 44, 0, 0,
+        0, 0, 93, 360, 572, 0, 0, 0, 248, 626, 0, 0, 0, 125, 162, 0,
+        0, 0, 691, 292, 0, 0, 812, 814, 821, 0, 59, 706, 0, 339, 0, 0,
+        0, 0, 0, 0, 0, 146, 0, 0, 0, 0, 0, 677, 0, 0, 0, 0,
+        65, 403, 571, 785, 0, 307, 0, 0, 0, 448, 0, 38, 92, 222, 300, 32,
+        456, 432, 776, 556, 0, 20, 31, 129, 555, 0, 0, 0, 0, 0, 709, 0,
+        0, 0, 0, 391, 0, 0, 0, 0, 0, 0, 596, 0, 232, 0, 492, 813,
+        0, 0, 550, 0, 0, 278, 489, 0, 18, 653, 499, 530, 777, 599, 816, 96,
+        0, 0, 0, 0, 761, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0,
+        0, 690, 0, 0, 0, 0, 0, 0, 0, 378, 0, 0, 0, 17, 0, 210,
+        246, 272, 323, 506, 528, 0, 0, 0, 0, 0, 0, 0, 0, 0, 510, 0,
+        0, 0, 0, 0, 0, 143, 0, 0, 0, 0, 451, 749, 533, 0, 0, 0,
+        0, 509, 0, 815, 0, 312, 590, 0, 0, 413, 0, 168, 642, 0, 742, 0,
+        0, 0, 14, 0, 41, 602, 0, 0, 0, 0, 0, 0, 0, 0, 0, 190,
+        493, 0, 0, 0, 0, 0, 0, 0, 0, 623, 0, 27, 0, 0, 13, 315,
+        130, 682, 0, 751, 0, 0, 0, 0, 175, 731, 0, 0, 620, 496, 0, 0,
+        417, 0, 664, 0, 647, 741, 0, 0, 680, 0, 0, 632, 140, 500, 0, 75,
+        0, 212, 779, 735, 0, 0, 0, 0, 0, 0, 271, 0, 0, 23, 0, 73,
+        347, 669, 694, 231, 516, 157, 820, 491, 0, 0, 0, 0, 0, 0, 0, 0
+    };
+
+    private static final Object UNSUPPORTED = new Object();
+    private static final AtomicReferenceArray<Object> charsets =
+        new AtomicReferenceArray<Object>(IANACharacterSets.CHARACTER_SETS.length);
+
+    private IANACharacterSetTable() {
+    }
+
+    /**
+     * Returns the index in {@link IANACharacterSets#CHARACTER_SETS}
+     * of the given name, ignoring ASCII case, or -1 if it is not a
+     * registered name.
+     */
+    static int indexOf(String name) {
+        int slot = slotOf(hash(name));
+        while (true) {
+            int entry = SLOTS[slot];
+            if (entry == 0) return -1;
+            if (equalsIgnoreAsciiCase(IANACharacterSets.CHARACTER_SETS[entry - 1], name)) {
+                return entry - 1;
+            }
+            slot = (slot + 1) & (SIZE - 1);
+        }
+    }
+
+    /**
+     * Returns the charset denoted by the registered name at the
+     * given index, or <code>null</code> if this JVM does not
+     * support it.
+     */
+    static Charset charsetOf(int index) {
+        Object cs = charsets.get(index);
+        if (cs == null) {
+            try {
+                cs = Charset.forName(IANACharacterSets.CHARACTER_SETS[index]);
+            } catch (IllegalCharsetNameException e) {
+                cs = UNSUPPORTED;
+            } catch (UnsupportedCharsetException e) {
+                cs = UNSUPPORTED;
+            }
+            charsets.set(index, cs);
+        }
+        return (cs == UNSUPPORTED) ? null : (Charset)cs;
+    }
+
+    /*
+     * FNV-1a over the characters with ASCII letters lowercased.
+     */
+    static int hash(String s) {
+        int h = 0x811c9dc5;
+        for(int i = 0; i < s.length(); i++) {
+            h ^= fold(s.charAt(i));
+            h *= 0x01000193;
+        }
+        return h;
+    }
+
+    static int slotOf(int hash) {
+        return (hash ^ (hash >>> 16)) & (SIZE - 1);
+    }
+
+    private static char fold(char c) {
+        return (c >= 'A' && c <= 'Z') ? (char)(c + ('a' - 'A')) : c;
+    }
+
+    private static boolean equalsIgnoreAsciiCase(String a, String b) {
+        if (a.length() != b.length()) return false;
+        for(int i = 0; i < a.length(); i++) {
+            if (fold(a.charAt(i)) != fold(b.charAt(i))) return false;
+        }
+        return true;
+    }
+}
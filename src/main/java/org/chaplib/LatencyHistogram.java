@@ -0,0 +1,105 @@
+/* 
+ * LatencyHistogram.java
+ * 
+ * Copyright (C) 2012 Jonathan Moore
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *   
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.chaplib;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A histogram of non-negative values (typically latencies in
+ * nanoseconds) with log-linear buckets: each power of two is split
+ * into 32 equal buckets, so any recorded value is known to within
+ * about 3%. Recording is lock-free and does not allocate; reads
+ * taken while values are being recorded are only approximately
+ * consistent with each other.
+ */
+public class LatencyHistogram {
+
+    private static final int SUB_BUCKET_BITS = 5;
+    private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+    private static final int BUCKETS = SUB_BUCKETS * (64 - SUB_BUCKET_BITS);
+
+    private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+    private final AtomicLong count = new AtomicLong(0L);
+    private final AtomicLong sum = new AtomicLong(0L);
+    private final AtomicLong max = new AtomicLong(0L);
+
+    /**
+     * Records a value; negative values are recorded as zero.
+     */
+    public void record(long value) {
+        if (value < 0L) value = 0L;
+        counts.incrementAndGet(bucketOf(value));
+        count.incrementAndGet();
+        sum.addAndGet(value);
+        long m;
+        while ((m = max.get()) < value && !max.compareAndSet(m, value)) {
+            // lost a race with another recording; try again
+        }
+    }
+
+    static int bucketOf(long value) {
+        if (value < SUB_BUCKETS) return (int)value;
+        int shift = 63 - Long.numberOfLeadingZeros(value) - SUB_BUCKET_BITS;
+        return SUB_BUCKETS * (shift + 1) + (int)((value >>> shift) - SUB_BUCKETS);
+    }
+
+    /*
+     * Largest value that falls in the given bucket.
+     */
+    static long highestValueIn(int bucket) {
+        if (bucket < SUB_BUCKETS) return bucket;
+        int shift = bucket / SUB_BUCKETS - 1;
+        long lowest = (long)(SUB_BUCKETS + bucket % SUB_BUCKETS) << shift;
+        return lowest + (1L << shift) - 1;
+    }
+
+    public long getCount() {
+        return count.get();
+    }
+
+    public long getMax() {
+        return max.get();
+    }
+
+    public double getMean() {
+        long n = count.get();
+        return (n == 0L) ? 0.0 : (double)sum.get() / n;
+    }
+
+    /**
+     * Returns a value that the given percentage of recorded values
+     * do not exceed, accurate to the bucket resolution.
+     * @param percentile between 0 and 100
+     */
+    public long getValueAtPercentile(double percentile) {
+        if (percentile < 0.0 || percentile > 100.0) {
+            throw new IllegalArgumentException("percentile must be between 0 and 100");
+        }
+        long total = 0L;
+        for(int i = 0; i < BUCKETS; i++) total += counts.get(i);
+        if (total == 0L) return 0L;
+        long target = Math.max(1L, (long)Math.ceil(total * percentile / 100.0));
+        long seen = 0L;
+        for(int i = 0; i < BUCKETS; i++) {
+            seen += counts.get(i);
+            if (seen >= target) return Math.min(highestValueIn(i), getMax());
+        }
+        return getMax();
+    }
+}
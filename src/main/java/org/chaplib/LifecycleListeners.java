@@ -0,0 +1,82 @@
+/* 
+ * LifecycleListeners.java
+ * 
+ * Copyright (C) 2012 Jonathan Moore
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *   
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.chaplib;
+
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * The lifecycle listeners registered with a factory, shared by
+ * the factory and its resources so that listeners added later
+ * also hear about existing resources.
+ */
+final class LifecycleListeners {
+
+    private final CopyOnWriteArrayList<RequestLifecycleListener> listeners =
+        new CopyOnWriteArrayList<RequestLifecycleListener>();
+    private final AtomicLong lastCallId = new AtomicLong();
+
+    void add(RequestLifecycleListener listener) {
+        listeners.addIfAbsent(listener);
+    }
+
+    void remove(RequestLifecycleListener listener) {
+        listeners.remove(listener);
+    }
+
+    /**
+     * Returns whether anyone is listening; phases are only timed
+     * if so.
+     */
+    boolean isActive() {
+        return !listeners.isEmpty();
+    }
+
+    /**
+     * Returns the id for a call that is starting, or 0 if nobody
+     * is listening.
+     */
+    long startCall() {
+        return isActive() ? lastCallId.incrementAndGet() : 0L;
+    }
+
+    /**
+     * Tells the listeners that a phase of the given call which
+     * started at the given {@link System#nanoTime} reading has just
+     * completed.
+     */
+    void phaseCompleted(RequestLifecycleEvent.Phase phase, long callId, HttpURL url,
+            String method, long startNanos) {
+        phaseCompleted(phase, callId, false, url, method, startNanos);
+    }
+
+    void phaseCompleted(RequestLifecycleEvent.Phase phase, long callId, boolean shared,
+            HttpURL url, String method, long startNanos) {
+        long duration = System.nanoTime() - startNanos;
+        long timestamp = System.currentTimeMillis() - duration / 1000000L;
+        RequestLifecycleEvent event = new RequestLifecycleEvent(phase, callId, shared, url,
+                method, timestamp, startNanos, duration);
+        for(RequestLifecycleListener listener : listeners) {
+            try {
+                listener.phaseCompleted(event);
+            } catch (RuntimeException e) {
+                // a broken listener must not break the request
+            }
+        }
+    }
+}
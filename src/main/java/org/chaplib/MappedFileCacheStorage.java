@@ -0,0 +1,604 @@
+package org.chaplib;
+/*
+ * MappedFileCacheStorage.java
+ *
+ * Copyright (C) 2012 Jonathan Moore
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.lang.reflect.Method;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.CRC32;
+
+import org.apache.http.Header;
+import org.apache.http.ProtocolVersion;
+import org.apache.http.StatusLine;
+import org.apache.http.client.cache.HttpCacheEntry;
+import org.apache.http.client.cache.HttpCacheStorage;
+import org.apache.http.client.cache.HttpCacheUpdateCallback;
+import org.apache.http.client.cache.Resource;
+import org.apache.http.message.BasicHeader;
+import org.apache.http.message.BasicStatusLine;
+
+/**
+ * A <code>MappedFileCacheStorage</code> keeps cache entries in
+ * memory-mapped segment files in a directory, so that a
+ * {@link ResponseCache} built over it starts out warm after a
+ * restart: entries found on disk are served, or revalidated with
+ * a conditional request, instead of being downloaded again.
+ * <p>
+ * Entries are appended to the current segment as checksummed
+ * records; when it fills up a new segment is started, and once
+ * the total size limit is exceeded the oldest segment is deleted
+ * along with the entries in it. On startup the segments are
+ * scanned to rebuild the index, stopping at the first record of a
+ * segment whose header checksum does not match, so a write torn by
+ * an unclean shutdown is simply dropped. The scan skips over
+ * bodies; each has a checksum of its own, checked the first time
+ * the entry is read back, and an entry whose body fails it is
+ * treated as missing. Bodies are read straight from the mapped
+ * files without copying.
+ * <p>
+ * A deleted segment is unmapped once the bodies read from it have
+ * been disposed of and their streams closed; a body that never is
+ * keeps the mapping until it is garbage collected.
+ */
+public class MappedFileCacheStorage implements HttpCacheStorage {
+
+    public static final int DEFAULT_SEGMENT_SIZE = 16 * 1024 * 1024;
+
+    private static final int MAGIC = 0x43484c43;
+    private static final int VERSION = 2;
+    private static final int SEGMENT_HEADER_SIZE = 8;
+    private static final int RECORD_HEADER_SIZE = 16;
+    private static final byte ENTRY = 1;
+    private static final byte REMOVAL = 2;
+    private static final String SEGMENT_PREFIX = "segment-";
+    private static final String SEGMENT_SUFFIX = ".dat";
+
+    private final File directory;
+    private final int segmentSize;
+    private final int maxSegments;
+    private final ConcurrentHashMap<String, Location> index =
+        new ConcurrentHashMap<String, Location>();
+    private final LinkedList<Segment> segments = new LinkedList<Segment>();
+    private Segment active;
+    private boolean closed = false;
+
+    /**
+     * Opens (or creates) a store in the given directory, using
+     * segments of the default size.
+     * @param directory where segment files are kept
+     * @param maxBytes maximum total size of the segment files
+     * @throws IOException if the directory cannot be read or the
+     *   segments cannot be mapped
+     */
+    public MappedFileCacheStorage(File directory, long maxBytes) throws IOException {
+        this(directory, maxBytes, DEFAULT_SEGMENT_SIZE);
+    }
+
+    /**
+     * @param directory where segment files are kept
+     * @param maxBytes maximum total size of the segment files; at
+     *   least two segments are always kept
+     * @param segmentSize size of each segment file, which also
+     *   bounds the size of a single stored entry
+     * @throws IOException if the directory cannot be read or the
+     *   segments cannot be mapped
+     */
+    public MappedFileCacheStorage(File directory, long maxBytes, int segmentSize)
+            throws IOException {
+        if (maxBytes < 0 || segmentSize <= SEGMENT_HEADER_SIZE + RECORD_HEADER_SIZE) {
+            throw new IllegalArgumentException("invalid storage limits");
+        }
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            throw new IOException("cannot create cache directory " + directory);
+        }
+        this.directory = directory;
+        this.segmentSize = segmentSize;
+        this.maxSegments = (int)Math.max(2L, Math.min(Integer.MAX_VALUE, maxBytes / segmentSize));
+        recover();
+    }
+
+    private void recover() throws IOException {
+        File[] files = directory.listFiles();
+        if (files == null) throw new IOException("cannot list cache directory " + directory);
+        Arrays.sort(files);
+        for(File f : files) {
+            long id = segmentIdOf(f);
+            if (id < 0) continue;
+            Segment seg = Segment.open(f, id, segmentSize);
+            if (seg == null) {
+                f.delete();
+                continue;
+            }
+            segments.add(seg);
+            scan(seg);
+        }
+        while (segments.size() > maxSegments) dropOldest();
+        if (segments.isEmpty()) {
+            active = newSegment(0L);
+        } else {
+            active = segments.getLast();
+        }
+    }
+
+    private static long segmentIdOf(File f) {
+        String name = f.getName();
+        if (!name.startsWith(SEGMENT_PREFIX) || !name.endsWith(SEGMENT_SUFFIX)) return -1L;
+        try {
+            return Long.parseLong(name.substring(SEGMENT_PREFIX.length(),
+                    name.length() - SEGMENT_SUFFIX.length()), 16);
+        } catch (NumberFormatException e) {
+            return -1L;
+        }
+    }
+
+    /*
+     * Replays the records of a segment into the index, and leaves
+     * the segment's write position just after its last valid one.
+     * Only the record headers and metadata are read; bodies are
+     * checked when first asked for.
+     */
+    private void scan(Segment seg) {
+        ByteBuffer buf = seg.map.duplicate();
+        int pos = SEGMENT_HEADER_SIZE;
+        byte[] metadata = new byte[0];
+        while (pos + RECORD_HEADER_SIZE <= segmentSize) {
+            buf.position(pos);
+            int length = buf.getInt();
+            int checksum = buf.getInt();
+            int metadataLength = buf.getInt();
+            int bodyChecksum = buf.getInt();
+            if (length <= 0 || length > segmentSize - pos - RECORD_HEADER_SIZE) break;
+            if (metadataLength <= 0 || metadataLength > length) break;
+            if (metadata.length < metadataLength) metadata = new byte[metadataLength];
+            buf.get(metadata, 0, metadataLength);
+            if (headerChecksum(length, metadataLength, bodyChecksum, metadata,
+                    metadataLength) != checksum) break;
+            ByteBuffer in = ByteBuffer.wrap(metadata, 0, metadataLength);
+            byte type = in.get();
+            String key = readString(in);
+            if (type == ENTRY) {
+                index.put(key, new Location(seg, pos, false));
+            } else {
+                index.remove(key);
+            }
+            pos += RECORD_HEADER_SIZE + length;
+        }
+        seg.writePosition = pos;
+    }
+
+    private static int headerChecksum(int length, int metadataLength, int bodyChecksum,
+            byte[] metadata, int n) {
+        CRC32 crc = new CRC32();
+        crc.update(ByteBuffer.allocate(12).putInt(length).putInt(metadataLength)
+                .putInt(bodyChecksum).array());
+        crc.update(metadata, 0, n);
+        return (int)crc.getValue();
+    }
+
+    /**
+     * Returns the entry stored under the given key, or
+     * <code>null</code> if there is none or its body turns out to
+     * be damaged. The returned entry's body reads from the segment
+     * mapping, which it keeps alive until it is disposed of.
+     */
+    public synchronized HttpCacheEntry getEntry(String key) throws IOException {
+        Location loc = index.get(key);
+        if (loc == null) return null;
+        ByteBuffer buf = loc.segment.map.duplicate();
+        buf.position(loc.offset);
+        int length = buf.getInt();
+        buf.getInt();
+        int metadataLength = buf.getInt();
+        int bodyChecksum = buf.getInt();
+        buf.limit(buf.position() + length);
+        ByteBuffer in = buf.slice();
+        in.position(metadataLength);
+        ByteBuffer body = in.slice();
+        if (!loc.checked) {
+            if (checksumOf(body.duplicate()) != bodyChecksum) {
+                index.remove(key);
+                return null;
+            }
+            loc.checked = true;
+        }
+        in.position(0);
+        in.get();
+        readString(in);
+        Date requestDate = new Date(in.getLong());
+        Date responseDate = new Date(in.getLong());
+        ProtocolVersion version = new ProtocolVersion(readString(in), in.getInt(), in.getInt());
+        int status = in.getInt();
+        String reason = (in.get() != 0) ? readString(in) : null;
+        StatusLine statusLine = new BasicStatusLine(version, status, reason);
+        Header[] headers = new Header[in.getInt()];
+        for(int i = 0; i < headers.length; i++) {
+            headers[i] = new BasicHeader(readString(in), readString(in));
+        }
+        loc.segment.retain();
+        return new HttpCacheEntry(requestDate, responseDate, statusLine, headers,
+                new MappedResource(loc.segment, body));
+    }
+
+    private static int checksumOf(ByteBuffer in) {
+        CRC32 crc = new CRC32();
+        byte[] chunk = new byte[4096];
+        while (in.hasRemaining()) {
+            int n = Math.min(chunk.length, in.remaining());
+            in.get(chunk, 0, n);
+            crc.update(chunk, 0, n);
+        }
+        return (int)crc.getValue();
+    }
+
+    public void putEntry(String key, HttpCacheEntry entry) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        out.writeByte(ENTRY);
+        writeString(out, key);
+        out.writeLong(entry.getRequestDate().getTime());
+        out.writeLong(entry.getResponseDate().getTime());
+        StatusLine statusLine = entry.getStatusLine();
+        ProtocolVersion version = statusLine.getProtocolVersion();
+        writeString(out, version.getProtocol());
+        out.writeInt(version.getMajor());
+        out.writeInt(version.getMinor());
+        out.writeInt(statusLine.getStatusCode());
+        String reason = statusLine.getReasonPhrase();
+        out.writeByte(reason != null ? 1 : 0);
+        if (reason != null) writeString(out, reason);
+        Header[] headers = entry.getAllHeaders();
+        out.writeInt(headers.length);
+        for(Header h : headers) {
+            writeString(out, h.getName());
+            writeString(out, h.getValue());
+        }
+        out.flush();
+        Resource body = entry.getResource();
+        append(key, bytes.toByteArray(), body, (body == null) ? 0L : body.length(), true);
+    }
+
+    public void removeEntry(String key) throws IOException {
+        if (!index.containsKey(key)) return;
+        append(key, removalOf(key), null, 0L, false);
+    }
+
+    private static byte[] removalOf(String key) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        out.writeByte(REMOVAL);
+        writeString(out, key);
+        out.flush();
+        return bytes.toByteArray();
+    }
+
+    public synchronized void updateEntry(String key, HttpCacheUpdateCallback callback)
+            throws IOException {
+        HttpCacheEntry updated = callback.update(getEntry(key));
+        if (updated == null) {
+            removeEntry(key);
+        } else {
+            putEntry(key, updated);
+        }
+    }
+
+    /*
+     * Writes a record straight into the active segment: the
+     * (small) serialized metadata, then, for an entry, the body
+     * copied from its resource. The record header goes in last, so
+     * a record cut short by a failing resource never passes the
+     * header checksum on recovery; one whose body was torn by a
+     * crash fails the body checksum when it is read.
+     */
+    private synchronized void append(String key, byte[] metadata, Resource body,
+            long bodyLength, boolean isEntry) throws IOException {
+        if (closed) throw new IOException("cache storage is closed");
+        long payloadLength = metadata.length + (isEntry ? bodyLength : 0L);
+        if (RECORD_HEADER_SIZE + payloadLength > segmentSize - SEGMENT_HEADER_SIZE) {
+            /* too big to store, but must not leave an older version behind */
+            if (isEntry && index.containsKey(key)) {
+                append(key, removalOf(key), null, 0L, false);
+            } else {
+                index.remove(key);
+            }
+            return;
+        }
+        int recordSize = (int)(RECORD_HEADER_SIZE + payloadLength);
+        if (recordSize > segmentSize - active.writePosition) {
+            active.map.force();
+            active = newSegment(active.id + 1);
+            while (segments.size() > maxSegments) dropOldest();
+        }
+        int start = active.writePosition;
+        ByteBuffer buf = active.map.duplicate();
+        buf.position(start + RECORD_HEADER_SIZE);
+        buf.put(metadata);
+        CRC32 crc = new CRC32();
+        if (isEntry && body != null) copy(body, bodyLength, buf, crc);
+        int bodyChecksum = (int)crc.getValue();
+        buf.putInt(start + 8, metadata.length);
+        buf.putInt(start + 12, bodyChecksum);
+        buf.putInt(start + 4, headerChecksum((int)payloadLength, metadata.length,
+                bodyChecksum, metadata, metadata.length));
+        buf.putInt(start, (int)payloadLength);
+        active.writePosition += recordSize;
+        if (isEntry) {
+            index.put(key, new Location(active, start, true));
+        } else {
+            index.remove(key);
+        }
+    }
+
+    private static void copy(Resource body, long length, ByteBuffer out, CRC32 crc)
+            throws IOException {
+        InputStream in = body.getInputStream();
+        try {
+            byte[] chunk = new byte[4096];
+            long remaining = length;
+            while (remaining > 0) {
+                int n = in.read(chunk, 0, (int)Math.min(chunk.length, remaining));
+                if (n == -1) break;
+                crc.update(chunk, 0, n);
+                out.put(chunk, 0, n);
+                remaining -= n;
+            }
+            if (remaining > 0 || in.read() != -1) {
+                throw new IOException("body does not match its resource length");
+            }
+        } finally {
+            in.close();
+        }
+    }
+
+    private Segment newSegment(long id) throws IOException {
+        File f = new File(directory, String.format("%s%016x%s", SEGMENT_PREFIX, id,
+                SEGMENT_SUFFIX));
+        Segment seg = Segment.create(f, id, segmentSize);
+        segments.add(seg);
+        return seg;
+    }
+
+    private void dropOldest() throws IOException {
+        Segment oldest = segments.removeFirst();
+        Iterator<Map.Entry<String, Location>> it = index.entrySet().iterator();
+        while (it.hasNext()) {
+            if (it.next().getValue().segment == oldest) it.remove();
+        }
+        /*
+         * Bodies already handed out keep reading the mapping, which
+         * stays valid after the file is closed and deleted; it is
+         * unmapped as soon as the last of them lets go.
+         */
+        oldest.channel.close();
+        oldest.release();
+        oldest.file.delete();
+    }
+
+    /**
+     * Returns the number of entries in the store.
+     */
+    public int size() {
+        return index.size();
+    }
+
+    /**
+     * Forces everything written so far out to disk. Without this,
+     * writes reach the disk whenever the operating system gets
+     * around to it, which survives the process crashing but not
+     * necessarily the machine. Segments that have filled up were
+     * already forced when the next one was started.
+     */
+    public synchronized void sync() {
+        active.map.force();
+    }
+
+    /**
+     * Writes everything out to disk and closes the segment files.
+     * Entries already read from the store remain readable.
+     */
+    public synchronized void close() throws IOException {
+        if (closed) return;
+        closed = true;
+        for(Segment seg : segments) {
+            seg.map.force();
+            seg.channel.close();
+        }
+    }
+
+    private static void writeString(DataOutputStream out, String s) throws IOException {
+        byte[] b = s.getBytes("UTF-8");
+        out.writeInt(b.length);
+        out.write(b);
+    }
+
+    private static String readString(ByteBuffer in) {
+        byte[] b = new byte[in.getInt()];
+        in.get(b);
+        try {
+            return new String(b, "UTF-8");
+        } catch (java.io.UnsupportedEncodingException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    private static class Location {
+        final Segment segment;
+        final int offset;
+        boolean checked;
+
+        Location(Segment segment, int offset, boolean checked) {
+            this.segment = segment;
+            this.offset = offset;
+            this.checked = checked;
+        }
+    }
+
+    private static class Segment {
+        final File file;
+        final long id;
+        final FileChannel channel;
+        final MappedByteBuffer map;
+        final AtomicInteger refs = new AtomicInteger(1);
+        int writePosition = SEGMENT_HEADER_SIZE;
+
+        private Segment(File file, long id, FileChannel channel, MappedByteBuffer map) {
+            this.file = file;
+            this.id = id;
+            this.channel = channel;
+            this.map = map;
+        }
+
+        /*
+         * Keeps the mapping alive for a body read from it; fails
+         * once the segment has been dropped and unmapped.
+         */
+        boolean retain() {
+            while (true) {
+                int n = refs.get();
+                if (n == 0) return false;
+                if (refs.compareAndSet(n, n + 1)) return true;
+            }
+        }
+
+        void release() {
+            if (refs.decrementAndGet() == 0) unmap(map);
+        }
+
+        static Segment create(File file, long id, int size) throws IOException {
+            Segment seg = map(file, id, size);
+            seg.map.putInt(0, MAGIC);
+            seg.map.putInt(4, VERSION);
+            return seg;
+        }
+
+        /*
+         * Returns null if the file is not a segment of this format
+         * and size.
+         */
+        static Segment open(File file, long id, int size) throws IOException {
+            if (file.length() != size) return null;
+            Segment seg = map(file, id, size);
+            if (seg.map.getInt(0) != MAGIC || seg.map.getInt(4) != VERSION) {
+                seg.channel.close();
+                return null;
+            }
+            return seg;
+        }
+
+        private static Segment map(File file, long id, int size) throws IOException {
+            FileChannel channel = new RandomAccessFile(file, "rw").getChannel();
+            try {
+                return new Segment(file, id, channel,
+                        channel.map(FileChannel.MapMode.READ_WRITE, 0, size));
+            } catch (IOException e) {
+                channel.close();
+                throw e;
+            }
+        }
+    }
+
+    /*
+     * Releases a mapping without waiting for it to be garbage
+     * collected, where the runtime lets us; otherwise it goes when
+     * it is collected.
+     */
+    private static void unmap(MappedByteBuffer map) {
+        try {
+            Method cleaner = map.getClass().getMethod("cleaner");
+            cleaner.setAccessible(true);
+            Object c = cleaner.invoke(map);
+            if (c != null) c.getClass().getMethod("clean").invoke(c);
+        } catch (Exception e) {
+            // not supported by this runtime
+        }
+    }
+
+    /*
+     * A body read directly from a segment mapping. It, and each
+     * stream open on it, holds a reference to the segment.
+     */
+    private static class MappedResource implements Resource {
+
+        private static final long serialVersionUID = 1L;
+
+        private final transient Segment segment;
+        private final transient ByteBuffer body;
+        private final AtomicBoolean disposed = new AtomicBoolean(false);
+
+        MappedResource(Segment segment, ByteBuffer body) {
+            this.segment = segment;
+            this.body = body;
+        }
+
+        public InputStream getInputStream() throws IOException {
+            if (disposed.get() || !segment.retain()) {
+                throw new IOException("resource has been disposed");
+            }
+            final ByteBuffer buf = body.duplicate();
+            final AtomicBoolean closed = new AtomicBoolean(false);
+            return new InputStream() {
+                @Override
+                public int read() throws IOException {
+                    if (closed.get()) throw new IOException("stream closed");
+                    return buf.hasRemaining() ? (buf.get() & 0xff) : -1;
+                }
+
+                @Override
+                public int read(byte[] b, int off, int len) throws IOException {
+                    if (closed.get()) throw new IOException("stream closed");
+                    if (len == 0) return 0;
+                    if (!buf.hasRemaining()) return -1;
+                    int n = Math.min(len, buf.remaining());
+                    buf.get(b, off, n);
+                    return n;
+                }
+
+                @Override
+                public int available() {
+                    return closed.get() ? 0 : buf.remaining();
+                }
+
+                @Override
+                public void close() {
+                    if (closed.compareAndSet(false, true)) segment.release();
+                }
+            };
+        }
+
+        public long length() {
+            return body.remaining();
+        }
+
+        public void dispose() {
+            if (disposed.compareAndSet(false, true)) segment.release();
+        }
+    }
+}
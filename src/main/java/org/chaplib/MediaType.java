@@ -0,0 +1,165 @@
+/* 
+ * MediaType.java
+ * 
+ * Copyright (C) 2012 Jonathan Moore
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *   
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.chaplib;
+
+import java.nio.charset.Charset;
+import java.nio.charset.IllegalCharsetNameException;
+import java.nio.charset.UnsupportedCharsetException;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+
+import org.apache.http.HeaderElement;
+import org.apache.http.NameValuePair;
+import org.apache.http.message.BasicHeaderValueParser;
+
+/**
+ * A parsed, normalized Content-Type, as produced by
+ * {@link ContentTypeNormalizer#parse}. The type, subtype and
+ * parameter names are lowercased; parameter values are kept as
+ * given, minus any quoting. A missing charset parameter is taken
+ * to be ISO-8859-1, the HTTP/1.1 default. Instances are immutable.
+ */
+public final class MediaType {
+
+    static final String DEFAULT_CHARSET = "iso-8859-1";
+    private static final String CHARSET = "charset";
+
+    private final String type;
+    private final String subtype;
+    private final Map<String, String> parameters;
+    private final Charset charset;
+    private final String normalized;
+
+    private MediaType(String type, String subtype, Map<String, String> parameters,
+            Charset charset, String normalized) {
+        this.type = type;
+        this.subtype = subtype;
+        this.parameters = parameters;
+        this.charset = charset;
+        this.normalized = normalized;
+    }
+
+    /*
+     * Does the actual parsing; ContentTypeNormalizer makes sure
+     * this happens once per distinct header value.
+     */
+    static MediaType parse(String contentType) {
+        HeaderElement elt = BasicHeaderValueParser.parseHeaderElement(contentType, null);
+        String name = elt.getName().trim().toLowerCase(Locale.ENGLISH);
+        int slash = name.indexOf('/');
+        String type = (slash < 0) ? name : name.substring(0, slash).trim();
+        String subtype = (slash < 0) ? "" : name.substring(slash + 1).trim();
+        Map<String, String> params = new LinkedHashMap<String, String>();
+        for(NameValuePair param : elt.getParameters()) {
+            String paramName = param.getName().toLowerCase(Locale.ENGLISH);
+            if (!params.containsKey(paramName)) params.put(paramName, param.getValue());
+        }
+        String normalized = contentType;
+        if (params.get(CHARSET) == null) {
+            if (elt.getParameterByName(CHARSET) == null) normalized += ";charset=" + DEFAULT_CHARSET;
+            params.put(CHARSET, DEFAULT_CHARSET);
+        }
+        return new MediaType(type, subtype, Collections.unmodifiableMap(params),
+                resolve(params.get(CHARSET)), normalized);
+    }
+
+    private static Charset resolve(String name) {
+        int index = IANACharacterSetTable.indexOf(name);
+        if (index >= 0) return IANACharacterSetTable.charsetOf(index);
+        try {
+            return Charset.forName(name);
+        } catch (IllegalCharsetNameException e) {
+            return null;
+        } catch (UnsupportedCharsetException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Returns the top-level type, such as <code>"text"</code>.
+     */
+    public String getType() {
+        return type;
+    }
+
+    /**
+     * Returns the subtype, such as <code>"html"</code>, or the
+     * empty string if the Content-Type had none.
+     */
+    public String getSubtype() {
+        return subtype;
+    }
+
+    /**
+     * Returns the parameters by lowercased name, in the order they
+     * appeared; only the first of repeated parameters is kept.
+     */
+    public Map<String, String> getParameters() {
+        return parameters;
+    }
+
+    /**
+     * Returns the value of the named parameter, or <code>null</code>.
+     * @param name lowercase parameter name
+     */
+    public String getParameter(String name) {
+        return parameters.get(name);
+    }
+
+    /**
+     * Returns the name of the character set, which is the default
+     * one if the Content-Type did not give one.
+     */
+    public String getCharsetName() {
+        return parameters.get(CHARSET);
+    }
+
+    /**
+     * Returns the character set, or <code>null</code> if it is not
+     * supported by this JVM.
+     */
+    public Charset getCharset() {
+        return charset;
+    }
+
+    /**
+     * Returns the normalized Content-Type header value, that is,
+     * the original one with the default charset parameter added if
+     * it had none.
+     */
+    @Override
+    public String toString() {
+        return normalized;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) return true;
+        if (!(o instanceof MediaType)) return false;
+        MediaType other = (MediaType)o;
+        return type.equals(other.type) && subtype.equals(other.subtype)
+            && parameters.equals(other.parameters);
+    }
+
+    @Override
+    public int hashCode() {
+        return 31 * (31 * type.hashCode() + subtype.hashCode()) + parameters.hashCode();
+    }
+}
@@ -0,0 +1,39 @@
+/* 
+ * NullHttpMetrics.java
+ * 
+ * Copyright (C) 2012 Jonathan Moore
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *   
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.chaplib;
+
+/**
+ * {@link HttpMetrics} that records nothing. Subclasses can
+ * override just the measurements they are interested in.
+ */
+public class NullHttpMetrics implements HttpMetrics {
+
+    public void operationCompleted(String host, String method, long elapsedNanos,
+            boolean succeeded) {}
+
+    public void exchangeCompleted(String host, String method, int statusCode,
+            long elapsedNanos, long bytesSent) {}
+
+    public void responseBodyRead(String host, String method, long bytesReceived) {}
+
+    public void resourceLookedUp(long elapsedNanos, boolean created) {}
+
+    public void requestCollapsed(boolean leader) {}
+
+    public void collapsedRequestWaited(long elapsedNanos) {}
+}
@@ -1,20 +1,36 @@
 package org.chaplib;
 
-import java.util.concurrent.CountDownLatch;
+import java.util.Locale;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
 
 /**
  * A <code>RequestCollapser</code> allows multiple threads
  * to coordinate and share the result of a single,
  * presumably long-running request.
  *
+ * <p>A collapser is either single-use, in which case the request
+ * is executed at most once, or reusable, in which case a new
+ * <em>generation</em> of the request is started automatically
+ * by the first caller to arrive after the previous one has
+ * completed.</p>
+ *
+ * <p>Callers may either block in {@link #get()} or use
+ * {@link #getAsync()} and attach callbacks to the returned
+ * future. When the backend request is an {@link AsyncComputation},
+ * no thread at all is held while it is outstanding.</p>
+ *
  * @param <T> the type of result generated by the request
  */
 public class RequestCollapser<T> {
 
-    private Computation<T> request;
-    private T result;
-    private boolean finished = false;
-    private CountDownLatch latch = null;
+    private AsyncComputation<T> request;
+    private boolean reusable;
+    private long resultTtlNanos;
+    private HttpMetrics metrics;
+    private boolean metered;
+    private Generation<T> current = null;
     
     /**
      * Creates a <code>RequestCollapser</code> that will
@@ -27,7 +43,102 @@ public class RequestCollapser<T> {
      *   whose result is to be shared
      */
     public RequestCollapser(Computation<T> request) {
+        this(new SynchronousComputation<T>(request));
+    }
+
+    /**
+     * Creates a single-use <code>RequestCollapser</code> for an
+     * asynchronous backend request.
+     * @param request the (long-running) backend request
+     *   whose result is to be shared
+     * @see #RequestCollapser(Computation)
+     */
+    public RequestCollapser(AsyncComputation<T> request) {
+        this(request, (HttpMetrics)null);
+    }
+
+    /**
+     * Creates a single-use <code>RequestCollapser</code> that
+     * reports how callers share the request to the given metrics.
+     * @see #RequestCollapser(Computation)
+     */
+    public RequestCollapser(Computation<T> request, HttpMetrics metrics) {
+        this(new SynchronousComputation<T>(request), metrics);
+    }
+
+    /**
+     * Creates a single-use <code>RequestCollapser</code> for an
+     * asynchronous backend request that reports how callers share
+     * the request to the given metrics.
+     * @see #RequestCollapser(Computation)
+     */
+    public RequestCollapser(AsyncComputation<T> request, HttpMetrics metrics) {
+        this.request = request;
+        this.reusable = false;
+        setMetrics(metrics);
+    }
+
+    /**
+     * Creates a reusable <code>RequestCollapser</code>. Threads
+     * that show up while the request is outstanding share its
+     * result, as do threads that show up within
+     * <code>resultTtlMillis</code> milliseconds of its
+     * completion; after that, the next thread to arrive starts
+     * a new execution of the request. Failed executions are never
+     * shared with later arrivals.
+     * @param request the (long-running) backend request
+     *   whose result is to be shared
+     * @param resultTtlMillis how long a completed result may
+     *   still be handed out; zero means results are only shared
+     *   with threads that arrived while the request was outstanding
+     */
+    public RequestCollapser(Computation<T> request, long resultTtlMillis) {
+        this(new SynchronousComputation<T>(request), resultTtlMillis);
+    }
+
+    /**
+     * Creates a reusable <code>RequestCollapser</code> for an
+     * asynchronous backend request.
+     * @param request the (long-running) backend request
+     *   whose result is to be shared
+     * @param resultTtlMillis how long a completed result may
+     *   still be handed out
+     * @see #RequestCollapser(Computation, long)
+     */
+    public RequestCollapser(AsyncComputation<T> request, long resultTtlMillis) {
+        this(request, resultTtlMillis, null);
+    }
+
+    /**
+     * Creates a reusable <code>RequestCollapser</code> that
+     * reports how callers share the request to the given metrics.
+     * @see #RequestCollapser(Computation, long)
+     */
+    public RequestCollapser(Computation<T> request, long resultTtlMillis,
+            HttpMetrics metrics) {
+        this(new SynchronousComputation<T>(request), resultTtlMillis, metrics);
+    }
+
+    /**
+     * Creates a reusable <code>RequestCollapser</code> for an
+     * asynchronous backend request that reports how callers share
+     * the request to the given metrics.
+     * @see #RequestCollapser(Computation, long)
+     */
+    public RequestCollapser(AsyncComputation<T> request, long resultTtlMillis,
+            HttpMetrics metrics) {
+        if (resultTtlMillis < 0) {
+            throw new IllegalArgumentException("result TTL must not be negative");
+        }
         this.request = request;
+        this.reusable = true;
+        this.resultTtlNanos = TimeUnit.MILLISECONDS.toNanos(resultTtlMillis);
+        setMetrics(metrics);
+    }
+
+    private void setMetrics(HttpMetrics metrics) {
+        this.metrics = metrics;
+        this.metered = (metrics != null);
     }
     
     /**
@@ -35,48 +146,199 @@ public class RequestCollapser<T> {
      * or waits to share the result if another thread is
      * already executing the request. As many threads as
      * desired may share the result as long as the backend
-     * request is still outstanding.
+     * request is still outstanding. If the backend request
+     * fails, every thread sharing it receives the same exception.
      * @return result of the request
-     * @throws TooLateException if the request has
-     *   already been completed
+     * @throws TooLateException if this is a single-use collapser
+     *   and the request has already been completed
+     * @throws RequestInterruptedException if the calling thread
+     *   is interrupted while waiting
      */
     public T get() {
-        if (firstOneToCreateLatch()) {
-            performRequestInThisThread();
-        } else {
-            waitForOtherThreadToFinishRequest();
+        Generation<T> gen = join();
+        long start = metered ? System.nanoTime() : 0L;
+        try {
+            return gen.future.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RequestInterruptedException(e);
+        } catch (ExecutionException e) {
+            throw asUnchecked(e.getCause());
+        } finally {
+            if (metered) recordWait(gen, start);
         }
-        return result;
     }
-    
-    private synchronized boolean firstOneToCreateLatch() {
-        if (finished) {
+
+    /**
+     * Like {@link #get()}, but gives up waiting once the given
+     * timeout has elapsed. The deadline bounds only the time spent
+     * waiting for a request being executed elsewhere; a caller that
+     * ends up executing a synchronous {@link Computation} itself
+     * runs it to completion. Giving up does not affect the request
+     * or the other threads sharing it.
+     * @param timeout maximum time to wait
+     * @param unit unit of <code>timeout</code>
+     * @return result of the request
+     * @throws TooLateException if this is a single-use collapser
+     *   and the request has already been completed
+     * @throws RequestTimeoutException if the request did not
+     *   complete in time
+     * @throws RequestInterruptedException if the calling thread
+     *   is interrupted while waiting
+     */
+    public T get(long timeout, TimeUnit unit) {
+        Generation<T> gen = join();
+        long start = metered ? System.nanoTime() : 0L;
+        try {
+            return gen.future.get(timeout, unit);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RequestInterruptedException(e);
+        } catch (ExecutionException e) {
+            throw asUnchecked(e.getCause());
+        } catch (TimeoutException e) {
+            throw new RequestTimeoutException("request did not complete within "
+                    + timeout + " " + unit.toString().toLowerCase(Locale.ENGLISH));
+        } finally {
+            if (metered) recordWait(gen, start);
+        }
+    }
+
+    private void recordWait(Generation<T> gen, long start) {
+        if (gen.leader != Thread.currentThread()) {
+            metrics.collapsedRequestWaited(System.nanoTime() - start);
+        }
+    }
+
+    /**
+     * Starts the backend request, or joins the one already
+     * outstanding, without waiting for it to complete. If the
+     * backend request is a (synchronous) {@link Computation} and
+     * the caller is the one to start it, it runs in the calling
+     * thread before this method returns.
+     * @return a future for the shared result of the request
+     * @throws TooLateException if this is a single-use collapser
+     *   and the request has already been completed
+     */
+    public ResultFuture<T> getAsync() {
+        return join().future;
+    }
+
+    private Generation<T> join() {
+        Generation<T> gen;
+        boolean leader = false;
+        synchronized(this) {
+            gen = joinCurrentGeneration();
+            if (gen == null) {
+                gen = new Generation<T>(this);
+                current = gen;
+                leader = true;
+            }
+        }
+        if (metered) metrics.requestCollapsed(leader);
+        if (leader) {
+            performRequest(gen);
+        }
+        return gen;
+    }
+
+    /*
+     * Returns the generation the caller should share, or null if
+     * the caller should start a new one.
+     */
+    private Generation<T> joinCurrentGeneration() {
+        if (current == null) return null;
+        if (!current.finished) return current;
+        if (!reusable) {
             throw new TooLateException("cannot collapse requests after " +
                     "actual backend request has already completed");
         }
-        if (latch != null) return false;
-        latch = new CountDownLatch(1);
-        return true;
+        if (!current.failed
+                && System.nanoTime() - current.completedAt < resultTtlNanos) {
+            return current;
+        }
+        return null;
     }
 
-    private void performRequestInThisThread() {
-        result = request.execute();
-        recordRequestWasCompleted();
+    private void performRequest(Generation<T> gen) {
+        try {
+            request.execute(gen);
+        } catch (RuntimeException e) {
+            gen.failed(e);
+        } catch (Error e) {
+            gen.failed(e);
+        }
     }
 
-    private void waitForOtherThreadToFinishRequest() {
-        while(true) {
-            try {
-                latch.await();
-                break;
-            } catch (InterruptedException e) {
+    private static RuntimeException asUnchecked(Throwable t) {
+        if (t instanceof RuntimeException) return (RuntimeException)t;
+        if (t instanceof Error) throw (Error)t;
+        return new RuntimeException(t);
+    }
+
+    private synchronized boolean recordRequestWasCompleted(Generation<T> gen,
+            boolean failed) {
+        if (gen.finished) return false;
+        gen.completedAt = System.nanoTime();
+        gen.failed = failed;
+        gen.finished = true;
+        return true;
+    }
+
+    /*
+     * One execution of the backend request. The generation is
+     * marked finished before its future is completed, so no caller
+     * can join a generation whose waiters have already been released
+     * except within the result TTL.
+     */
+    private static class Generation<T> implements ResultCallback<T> {
+        final RequestCollapser<T> owner;
+        final ResultFuture<T> future = new ResultFuture<T>();
+        final Thread leader = Thread.currentThread();
+        boolean finished = false;
+        boolean failed = false;
+        long completedAt;
+
+        Generation(RequestCollapser<T> owner) {
+            this.owner = owner;
+        }
+
+        public void completed(T result) {
+            if (owner.recordRequestWasCompleted(this, false)) {
+                future.completed(result);
+            }
+        }
+
+        public void failed(Throwable failure) {
+            if (owner.recordRequestWasCompleted(this, true)) {
+                future.failed(failure);
             }
         }
     }
 
-    private synchronized void recordRequestWasCompleted() {
-        finished = true;
-        latch.countDown();
+    /*
+     * Adapts a Computation to run in the calling thread.
+     */
+    private static class SynchronousComputation<T> implements AsyncComputation<T> {
+        private final Computation<T> computation;
+
+        SynchronousComputation(Computation<T> computation) {
+            this.computation = computation;
+        }
+
+        public void execute(ResultCallback<T> callback) {
+            T result;
+            try {
+                result = computation.execute();
+            } catch (RuntimeException e) {
+                callback.failed(e);
+                return;
+            } catch (Error e) {
+                callback.failed(e);
+                return;
+            }
+            callback.completed(result);
+        }
     }
 
 }
@@ -0,0 +1,134 @@
+/* 
+ * RequestLifecycleEvent.java
+ * 
+ * Copyright (C) 2012 Jonathan Moore
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *   
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.chaplib;
+
+/**
+ * Reports that one phase of handling a call on a resource has
+ * completed, and how long it took. The phases of one call, such
+ * as a lookup or a single {@link HttpResource#value}, carry the
+ * same call id.
+ */
+public final class RequestLifecycleEvent {
+
+    /**
+     * The phases that are reported, in the order they occur.
+     */
+    public enum Phase {
+        /** Parsing and normalizing a URI into an {@link HttpURL}. */
+        CANONICALIZATION,
+        /** Finding or creating the resource for an <code>HttpURL</code>. */
+        LOOKUP,
+        /**
+         * Exchanging a request with the origin, up to receiving the
+         * response headers: leasing a connection, sending the
+         * request and waiting for the first byte of the response.
+         * For a call that shared another call's exchange, this is
+         * {@linkplain RequestLifecycleEvent#isShared shared} and
+         * covers the time it waited for that exchange's result.
+         */
+        EXCHANGE,
+        /** Running the {@link ContentParser} over a response body. */
+        PARSE,
+        /** Reading out and releasing whatever is left of a body. */
+        CONSUME
+    }
+
+    private final Phase phase;
+    private final long callId;
+    private final boolean shared;
+    private final HttpURL url;
+    private final String method;
+    private final long timestamp;
+    private final long startNanos;
+    private final long durationNanos;
+
+    RequestLifecycleEvent(Phase phase, long callId, boolean shared, HttpURL url,
+            String method, long timestamp, long startNanos, long durationNanos) {
+        this.phase = phase;
+        this.callId = callId;
+        this.shared = shared;
+        this.url = url;
+        this.method = method;
+        this.timestamp = timestamp;
+        this.startNanos = startNanos;
+        this.durationNanos = durationNanos;
+    }
+
+    public Phase getPhase() {
+        return phase;
+    }
+
+    /**
+     * Returns the id of the call the phase belongs to, unique
+     * among the calls of one factory's resources. Calls that
+     * started before any listener was registered have id 0.
+     */
+    public long getCallId() {
+        return callId;
+    }
+
+    /**
+     * Returns whether the phase was carried out on behalf of
+     * another call as well, and only waited for by this one.
+     */
+    public boolean isShared() {
+        return shared;
+    }
+
+    /**
+     * Returns the URL the phase concerned, or <code>null</code> for
+     * a canonicalization that failed.
+     */
+    public HttpURL getURL() {
+        return url;
+    }
+
+    /**
+     * Returns the HTTP method of the call, or <code>null</code> for
+     * the phases that are not part of a call on a resource.
+     */
+    public String getMethod() {
+        return method;
+    }
+
+    /**
+     * Returns when the phase started, in milliseconds since the
+     * epoch.
+     */
+    public long getTimestamp() {
+        return timestamp;
+    }
+
+    /**
+     * Returns when the phase started, as a {@link System#nanoTime}
+     * reading, for ordering events precisely.
+     */
+    public long getStartNanos() {
+        return startNanos;
+    }
+
+    public long getDurationNanos() {
+        return durationNanos;
+    }
+
+    @Override
+    public String toString() {
+        return "#" + callId + " " + phase + (shared ? " (shared) " : " ")
+            + ((method == null) ? "" : method + " ") + url + " " + durationNanos + "ns";
+    }
+}
@@ -0,0 +1,32 @@
+/* 
+ * RequestLifecycleListener.java
+ * 
+ * Copyright (C) 2012 Jonathan Moore
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *   
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.chaplib;
+
+/**
+ * Receives a {@link RequestLifecycleEvent} as each phase of a call
+ * on a resource completes, for finding out where the time goes.
+ * Listeners are registered with
+ * {@link HttpResourceFactory#addLifecycleListener}; they are
+ * called synchronously in the thread that ran the phase, so they
+ * must be thread-safe and quick. Exceptions they throw are
+ * ignored.
+ */
+public interface RequestLifecycleListener {
+
+    void phaseCompleted(RequestLifecycleEvent event);
+}
@@ -0,0 +1,36 @@
+/* 
+ * RequestTimeoutException.java
+ * 
+ * Copyright (C) 2012 Jonathan Moore
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *   
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.chaplib;
+
+/**
+ * Exception thrown when a caller gives up waiting for a request
+ * because its deadline has passed. The request itself may still
+ * complete later.
+ */
+public class RequestTimeoutException extends RuntimeException {
+
+    private static final long serialVersionUID = 1L;
+
+    /**
+     * Creates a <code>RequestTimeoutException</code> with the given
+     * message as explanatory text.
+     */
+    public RequestTimeoutException(String message) {
+        super(message);
+    }
+}
@@ -8,44 +8,164 @@ import org.apache.http.HttpRequest;
 import org.apache.http.HttpResponse;
 import org.apache.http.client.cache.HeaderConstants;
 import org.apache.http.client.cache.HttpCacheEntry;
+import org.apache.http.client.cache.Resource;
 import org.apache.http.impl.cookie.DateParseException;
 import org.apache.http.impl.cookie.DateUtils;
+import org.apache.http.message.BasicHttpResponse;
 import org.apache.http.protocol.HTTP;
 
+/**
+ * A <code>Response</code> captures an HTTP response along with
+ * the times at which its request was sent and it was received,
+ * so that its age and freshness can be evaluated later. All of
+ * the relevant headers are parsed exactly once, when the
+ * <code>Response</code> is created, so freshness queries are
+ * simple arithmetic on the snapshot.
+ */
 public class Response {
 
     private static final String STALE_WHILE_REVALIDATE = "stale-while-revalidate";
     private static final String STALE_IF_ERROR = "stale-if-error";
     private static final long MAX_AGE = 2147483648L;
-    private HttpCacheEntry entry;
+    private static final long NO_DATE = Long.MIN_VALUE;
+    private static final long NO_DIRECTIVE = -1L;
+
+    private final HttpCacheEntry entry;
+
+    private final long responseDateMillis;
+    private final long dateMillis;
+    private final long lastModifiedMillis;
+    private final long maxAgeSecs;
+    private final long staleWhileRevalidateSecs;
+    private final long staleIfErrorSecs;
+    private final boolean mustRevalidate;
+    private final boolean proxyRevalidate;
+    private final boolean noCache;
+    private final boolean revalidatable;
+    private final long correctedInitialAgeSecs;
+    private final long freshnessLifetimeSecs;
     
     public Response(Date requestSent, Date responseReceived, HttpResponse response) {
+        this(requestSent, responseReceived, response, new NullCacheEntryResource());
+    }
+
+    /**
+     * Creates a <code>Response</code> that retains the given
+     * body along with the response metadata.
+     * @param requestSent when the request was sent
+     * @param responseReceived when the response was received
+     * @param response the response itself
+     * @param body the stored response body
+     */
+    public Response(Date requestSent, Date responseReceived, HttpResponse response,
+            Resource body) {
         entry = new HttpCacheEntry(requestSent, responseReceived, response.getStatusLine(),
-                response.getAllHeaders(), new NullCacheEntryResource());
+                response.getAllHeaders(), body);
+
+        responseDateMillis = responseReceived.getTime();
+        dateMillis = parseDateHeader(HTTP.DATE_HEADER);
+        lastModifiedMillis = parseDateHeader(HeaderConstants.LAST_MODIFIED);
+        revalidatable = entry.getFirstHeader(HeaderConstants.ETAG) != null
+            || entry.getFirstHeader(HeaderConstants.LAST_MODIFIED) != null;
+
+        long maxage = NO_DIRECTIVE;
+        long swr = NO_DIRECTIVE;
+        long sie = NO_DIRECTIVE;
+        boolean mustReval = false;
+        boolean proxyReval = false;
+        boolean noCacheSeen = false;
+        for (Header hdr : entry.getHeaders(HeaderConstants.CACHE_CONTROL)) {
+            for (HeaderElement elt : hdr.getElements()) {
+                String name = elt.getName();
+                /*
+                 * "...the maximum age specified by this [s-maxage]
+                 * directive overrides the maximum age specified by
+                 * either the max-age directive or the Expires header.
+                 * The s-maxage directive ... is always ignored by a
+                 * private cache."
+                 * http://www.w3.org/Protocols/rfc2616/rfc2616-sec14.html#sec14.9.3
+                 */
+                if (HeaderConstants.CACHE_CONTROL_MAX_AGE.equals(name)) {
+                    try {
+                        long currMaxAge = Long.parseLong(elt.getValue());
+                        if (maxage == NO_DIRECTIVE || currMaxAge < maxage) {
+                            maxage = currMaxAge;
+                        }
+                    } catch (NumberFormatException nfe) {
+                        // be conservative if can't parse
+                        maxage = 0;
+                    }
+                } else if (STALE_WHILE_REVALIDATE.equalsIgnoreCase(name)) {
+                    swr = Math.max(swr, parseDirectiveSecs(elt));
+                } else if (STALE_IF_ERROR.equals(name)) {
+                    sie = Math.max(sie, parseDirectiveSecs(elt));
+                }
+                if (HeaderConstants.CACHE_CONTROL_MUST_REVALIDATE.equalsIgnoreCase(name)) {
+                    mustReval = true;
+                }
+                if (HeaderConstants.CACHE_CONTROL_PROXY_REVALIDATE.equalsIgnoreCase(name)) {
+                    proxyReval = true;
+                }
+                if (HeaderConstants.CACHE_CONTROL_NO_CACHE.equalsIgnoreCase(name)) {
+                    noCacheSeen = true;
+                }
+            }
+        }
+        maxAgeSecs = maxage;
+        staleWhileRevalidateSecs = swr;
+        staleIfErrorSecs = sie;
+        mustRevalidate = mustReval;
+        proxyRevalidate = proxyReval;
+        noCache = noCacheSeen || hasPragmaNoCache();
+
+        long responseDelaySecs = (responseDateMillis - requestSent.getTime()) / 1000L;
+        correctedInitialAgeSecs = getCorrectedReceivedAgeSecs() + responseDelaySecs;
+        freshnessLifetimeSecs = computeFreshnessLifetimeSecs();
     }
     
+    /**
+     * Recreates a <code>Response</code> from a stored cache entry,
+     * such as one read back from a {@link MappedFileCacheStorage}.
+     */
+    public Response(HttpCacheEntry entry) {
+        this(entry.getRequestDate(), entry.getResponseDate(), responseOf(entry),
+                entry.getResource());
+    }
+
+    private static HttpResponse responseOf(HttpCacheEntry entry) {
+        HttpResponse out = new BasicHttpResponse(entry.getStatusLine());
+        out.setHeaders(entry.getAllHeaders());
+        return out;
+    }
+
+    HttpCacheEntry getCacheEntry() {
+        return entry;
+    }
+
     public long getCurrentAgeSecs(Date now) {
-        return getCorrectedInitialAgeSecs() + getResidentTimeSecs(now);
+        return correctedInitialAgeSecs + getResidentTimeSecs(now);
     }
 
     public long getFreshnessLifetimeSecs() {
-        long maxage = getMaxAge();
-        if (maxage > -1)
-            return maxage;
+        return freshnessLifetimeSecs;
+    }
 
-        Date dateValue = getDateValue();
-        if (dateValue == null)
+    private long computeFreshnessLifetimeSecs() {
+        if (maxAgeSecs > -1)
+            return maxAgeSecs;
+
+        if (dateMillis == NO_DATE)
             return 0L;
 
-        Date expiry = getExpirationDate();
-        if (expiry == null)
+        long expiresMillis = parseDateHeader(HeaderConstants.EXPIRES);
+        if (expiresMillis == NO_DATE)
             return 0;
-        long diff = expiry.getTime() - dateValue.getTime();
+        long diff = expiresMillis - dateMillis;
         return (diff / 1000);
     }
 
     public boolean isResponseFresh(Date now) {
-        return (getCurrentAgeSecs(now) < getFreshnessLifetimeSecs());
+        return (getCurrentAgeSecs(now) < freshnessLifetimeSecs);
     }
 
     /**
@@ -67,11 +187,8 @@ public class Response {
     }
 
     public long getHeuristicFreshnessLifetimeSecs(float coefficient, long defaultLifetime) {
-        Date dateValue = getDateValue();
-        Date lastModifiedValue = getLastModifiedValue();
-
-        if (dateValue != null && lastModifiedValue != null) {
-            long diff = dateValue.getTime() - lastModifiedValue.getTime();
+        if (dateMillis != NO_DATE && lastModifiedMillis != NO_DATE) {
+            long diff = dateMillis - lastModifiedMillis;
             if (diff < 0)
                 return 0;
             return (long)(coefficient * (diff / 1000));
@@ -81,43 +198,98 @@ public class Response {
     }
 
     public boolean isRevalidatable() {
-        return entry.getFirstHeader(HeaderConstants.ETAG) != null
-                || entry.getFirstHeader(HeaderConstants.LAST_MODIFIED) != null;
+        return revalidatable;
     }
 
     public boolean mustRevalidate() {
-        return hasCacheControlDirective(HeaderConstants.CACHE_CONTROL_MUST_REVALIDATE);
+        return mustRevalidate;
     }
 
     public boolean proxyRevalidate() {
-        return hasCacheControlDirective(HeaderConstants.CACHE_CONTROL_PROXY_REVALIDATE);
+        return proxyRevalidate;
     }
 
-    public boolean mayReturnStaleWhileRevalidating(Date now) {
-        for (Header h : entry.getHeaders(HeaderConstants.CACHE_CONTROL)) {
-            for(HeaderElement elt : h.getElements()) {
-                if (STALE_WHILE_REVALIDATE.equalsIgnoreCase(elt.getName())) {
-                    try {
-                        int allowedStalenessLifetime = Integer.parseInt(elt.getValue());
-                        if (getStalenessSecs(now) <= allowedStalenessLifetime) {
-                            return true;
-                        }
-                    } catch (NumberFormatException nfe) {
-                        // skip malformed directive
-                    }
+    /**
+     * Returns <code>true</code> if this response may not be used
+     * to satisfy a request without first revalidating it with the
+     * origin server, regardless of its freshness.
+     */
+    public boolean noCache() {
+        return noCache;
+    }
+
+    private boolean hasPragmaNoCache() {
+        for (Header h : entry.getHeaders(HeaderConstants.PRAGMA)) {
+            for (HeaderElement elt : h.getElements()) {
+                if (HeaderConstants.CACHE_CONTROL_NO_CACHE.equalsIgnoreCase(elt.getName())) {
+                    return true;
                 }
             }
         }
-
         return false;
     }
 
+    /**
+     * Returns a copy of this response updated with the headers
+     * from a <code>304 Not Modified</code> response to a
+     * conditional request. The stored body is shared with the
+     * returned response.
+     *
+     * "If a cache uses a received 304 response to update a cache
+     * entry, the cache MUST update the entry to reflect any new
+     * field values given in the response."
+     * http://www.w3.org/Protocols/rfc2616/rfc2616-sec10.html#sec10.3.5
+     *
+     * @param requestSent when the conditional request was sent
+     * @param responseReceived when the 304 response was received
+     * @param notModified the 304 response
+     */
+    public Response updatedWith(Date requestSent, Date responseReceived,
+            HttpResponse notModified) {
+        Header dateHdr = notModified.getFirstHeader(HTTP.DATE_HEADER);
+        if (dateHdr != null && dateMillis != NO_DATE) {
+            try {
+                if (DateUtils.parseDate(dateHdr.getValue()).getTime() < dateMillis) {
+                    return this;
+                }
+            } catch (DateParseException dpe) {
+                // treat as current
+            }
+        }
+        HttpResponse merged = new BasicHttpResponse(entry.getStatusLine());
+        merged.setHeaders(entry.getAllHeaders());
+        for (Header h : notModified.getAllHeaders()) {
+            if (!isEntityFramingHeader(h)) merged.removeHeaders(h.getName());
+        }
+        for (Header h : notModified.getAllHeaders()) {
+            if (!isEntityFramingHeader(h)) merged.addHeader(h);
+        }
+        /*
+         * "Warnings with warn-codes of 1xx... MUST be deleted from the
+         * cache entry after a successful revalidation."
+         * http://www.w3.org/Protocols/rfc2616/rfc2616-sec13.html#sec13.1.2
+         */
+        for (Header h : merged.getHeaders(HeaderConstants.WARNING)) {
+            if (h.getValue().trim().startsWith("1")) merged.removeHeader(h);
+        }
+        return new Response(requestSent, responseReceived, merged, entry.getResource());
+    }
+
+    private static boolean isEntityFramingHeader(Header h) {
+        return HTTP.CONTENT_LEN.equalsIgnoreCase(h.getName())
+            || HTTP.TRANSFER_ENCODING.equalsIgnoreCase(h.getName());
+    }
+
+    public boolean mayReturnStaleWhileRevalidating(Date now) {
+        return staleWhileRevalidateSecs != NO_DIRECTIVE
+            && getStalenessSecs(now) <= staleWhileRevalidateSecs;
+    }
+
     public boolean mayReturnStaleIfError(HttpRequest request, Date now) {
         long stalenessSecs = getStalenessSecs(now);
         return mayReturnStaleIfError(request.getHeaders(HeaderConstants.CACHE_CONTROL),
                                      stalenessSecs)
-                || mayReturnStaleIfError(entry.getHeaders(HeaderConstants.CACHE_CONTROL),
-                                         stalenessSecs);
+                || (staleIfErrorSecs != NO_DIRECTIVE && stalenessSecs <= staleIfErrorSecs);
     }
 
     private boolean mayReturnStaleIfError(Header[] headers, long stalenessSecs) {
@@ -140,35 +312,31 @@ public class Response {
         return result;
     }
 
-    private Date getDateValue() {
-        Header dateHdr = entry.getFirstHeader(HTTP.DATE_HEADER);
-        if (dateHdr == null)
-            return null;
+    private long parseDirectiveSecs(HeaderElement elt) {
         try {
-            return DateUtils.parseDate(dateHdr.getValue());
-        } catch (DateParseException dpe) {
-            // ignore malformed date
+            return Integer.parseInt(elt.getValue());
+        } catch (NumberFormatException nfe) {
+            // skip malformed directive
         }
-        return null;
+        return NO_DIRECTIVE;
     }
 
-    private Date getLastModifiedValue() {
-        Header dateHdr = entry.getFirstHeader(HeaderConstants.LAST_MODIFIED);
+    private long parseDateHeader(String name) {
+        Header dateHdr = entry.getFirstHeader(name);
         if (dateHdr == null)
-            return null;
+            return NO_DATE;
         try {
-            return DateUtils.parseDate(dateHdr.getValue());
+            return DateUtils.parseDate(dateHdr.getValue()).getTime();
         } catch (DateParseException dpe) {
             // ignore malformed date
         }
-        return null;
+        return NO_DATE;
     }
 
     private long getApparentAgeSecs() {
-        Date dateValue = getDateValue();
-        if (dateValue == null)
+        if (dateMillis == NO_DATE)
             return MAX_AGE;
-        long diff = entry.getResponseDate().getTime() - dateValue.getTime();
+        long diff = responseDateMillis - dateMillis;
         if (diff < 0L)
             return 0;
         return (diff / 1000);
@@ -197,53 +365,11 @@ public class Response {
         return (apparentAge > ageValue) ? apparentAge : ageValue;
     }
 
-    private long getResponseDelaySecs() {
-        long diff = entry.getResponseDate().getTime() - entry.getRequestDate().getTime();
-        return (diff / 1000L);
-    }
-
-    private long getCorrectedInitialAgeSecs() {
-        return getCorrectedReceivedAgeSecs() + getResponseDelaySecs();
-    }
-
     private long getResidentTimeSecs(Date now) {
-        long diff = now.getTime() - entry.getResponseDate().getTime();
+        long diff = now.getTime() - responseDateMillis;
         return (diff / 1000L);
     }
 
-    private long getMaxAge() {
-        long maxage = -1;
-        for (Header hdr : entry.getHeaders(HeaderConstants.CACHE_CONTROL)) {
-            for (HeaderElement elt : hdr.getElements()) {
-                if (HeaderConstants.CACHE_CONTROL_MAX_AGE.equals(elt.getName())
-                        || "s-maxage".equals(elt.getName())) {
-                    try {
-                        long currMaxAge = Long.parseLong(elt.getValue());
-                        if (maxage == -1 || currMaxAge < maxage) {
-                            maxage = currMaxAge;
-                        }
-                    } catch (NumberFormatException nfe) {
-                        // be conservative if can't parse
-                        maxage = 0;
-                    }
-                }
-            }
-        }
-        return maxage;
-    }
-
-    private Date getExpirationDate() {
-        Header expiresHeader = entry.getFirstHeader(HeaderConstants.EXPIRES);
-        if (expiresHeader == null)
-            return null;
-        try {
-            return DateUtils.parseDate(expiresHeader.getValue());
-        } catch (DateParseException dpe) {
-            // malformed expires header
-        }
-        return null;
-    }
-
     public boolean hasCacheControlDirective(final String directive) {
         for (Header h : entry.getHeaders(HeaderConstants.CACHE_CONTROL)) {
             for(HeaderElement elt : h.getElements()) {
@@ -257,9 +383,8 @@ public class Response {
 
     public long getStalenessSecs(Date now) {
         long age = getCurrentAgeSecs(now);
-        long freshness = getFreshnessLifetimeSecs();
-        if (age <= freshness) return 0L;
-        return (age - freshness);
+        if (age <= freshnessLifetimeSecs) return 0L;
+        return (age - freshnessLifetimeSecs);
     }
 
 }
@@ -0,0 +1,586 @@
+/* 
+ * ResponseCache.java
+ * 
+ * Copyright (C) 2012 Jonathan Moore
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *   
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.chaplib;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.SequenceInputStream;
+import java.util.Date;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import org.apache.http.Header;
+import org.apache.http.HeaderElement;
+import org.apache.http.HttpEntity;
+import org.apache.http.HttpResponse;
+import org.apache.http.HttpStatus;
+import org.apache.http.client.cache.HeaderConstants;
+import org.apache.http.client.cache.HttpCacheEntry;
+import org.apache.http.client.cache.HttpCacheStorage;
+import org.apache.http.client.cache.InputLimit;
+import org.apache.http.client.cache.Resource;
+import org.apache.http.client.cache.ResourceFactory;
+import org.apache.http.entity.InputStreamEntity;
+import org.apache.http.impl.client.cache.HeapResourceFactory;
+
+/**
+ * A <code>ResponseCache</code> is a private (non-shared),
+ * in-memory HTTP/1.1 cache of <code>GET</code> responses, keyed
+ * by canonical {@link HttpURL}. It is bounded both by the number
+ * of entries and by the total size of the stored bodies.
+ * <p>
+ * Eviction follows the W-TinyLFU scheme. New entries go into a
+ * small LRU window (1% of the limits); entries leaving the window
+ * only displace entries of the main area if they have been used
+ * more often recently, as estimated by a {@link FrequencySketch}.
+ * The main area is a segmented LRU: entries used again while on
+ * probation move to a protected segment (80% of the main area).
+ * Since sizes are counted in body bytes, a scan of large, one-off
+ * responses cannot flush a working set of small, popular ones.
+ * <p>
+ * A <code>ResponseCache</code> may also write its entries through
+ * to a second-tier {@link HttpCacheStorage}, such as a
+ * {@link MappedFileCacheStorage}, which is consulted on a miss.
+ * Entries evicted from memory stay in the second tier.
+ * <p>
+ * Cached bodies are reference counted. Every response handed out
+ * by {@link #get}, {@link #cacheResponse} or {@link #revalidated}
+ * holds its own reference to its body, so the body stays readable
+ * even if the entry is evicted or replaced in the meantime; callers
+ * give the reference back with {@link #release} when they are done
+ * with the response.
+ */
+public class ResponseCache {
+
+    public static final int DEFAULT_MAX_ENTRIES = 1000;
+    public static final long DEFAULT_MAX_BYTES = 8L * 1024 * 1024;
+
+    private final int maxEntries;
+    private final long maxBytes;
+    private final ResourceFactory resourceFactory;
+    private final HttpCacheStorage secondTier;
+    private final int windowMaxEntries;
+    private final long windowMaxBytes;
+    private final int protectedMaxEntries;
+    private final long protectedMaxBytes;
+    private final FrequencySketch sketch;
+    private final Region window = new Region();
+    private final Region probation = new Region();
+    private final Region protectedSegment = new Region();
+    private long hits = 0L;
+    private long misses = 0L;
+    private long evictions = 0L;
+
+    /**
+     * Creates a <code>ResponseCache</code> with the default
+     * size limits.
+     */
+    public ResponseCache() {
+        this(DEFAULT_MAX_ENTRIES, DEFAULT_MAX_BYTES);
+    }
+
+    /**
+     * Creates a <code>ResponseCache</code> with the given size
+     * limits. A limit of zero disables caching altogether.
+     * @param maxEntries maximum number of responses to retain
+     * @param maxBytes maximum total size of retained response
+     *   bodies; no single body larger than this is cached
+     */
+    public ResponseCache(int maxEntries, long maxBytes) {
+        this(maxEntries, maxBytes, new HeapResourceFactory());
+    }
+
+    /**
+     * Creates a <code>ResponseCache</code> with the given size
+     * limits that stores response bodies in resources from the
+     * given factory, for example a
+     * {@link DirectMemoryResourceFactory}.
+     */
+    public ResponseCache(int maxEntries, long maxBytes, ResourceFactory resourceFactory) {
+        this(maxEntries, maxBytes, resourceFactory, null);
+    }
+
+    /**
+     * Creates a <code>ResponseCache</code> with the given size
+     * limits that writes its entries through to the given storage
+     * and falls back to it on a miss. Failures of the storage are
+     * treated as misses.
+     * @param maxEntries maximum number of responses to retain in
+     *   memory
+     * @param maxBytes maximum total size of response bodies retained
+     *   in memory
+     * @param resourceFactory where response bodies are stored
+     * @param secondTier storage for entries, keyed by canonical URL;
+     *   may be <code>null</code>
+     */
+    public ResponseCache(int maxEntries, long maxBytes, ResourceFactory resourceFactory,
+            HttpCacheStorage secondTier) {
+        if (maxEntries < 0 || maxBytes < 0) {
+            throw new IllegalArgumentException("cache limits must not be negative");
+        }
+        this.maxEntries = maxEntries;
+        this.maxBytes = maxBytes;
+        this.resourceFactory = resourceFactory;
+        this.secondTier = secondTier;
+        this.windowMaxEntries = Math.max(1, maxEntries / 100);
+        this.windowMaxBytes = maxBytes / 100;
+        this.protectedMaxEntries = (int)(0.8 * (maxEntries - windowMaxEntries));
+        this.protectedMaxBytes = (long)(0.8 * (maxBytes - windowMaxBytes));
+        this.sketch = new FrequencySketch(maxEntries);
+    }
+
+    /**
+     * Returns the cached response for the given URL, or
+     * <code>null</code> if there is none. The returned response
+     * may be stale, and must be {@link #release released} after use.
+     */
+    public Response get(HttpURL url) {
+        synchronized(this) {
+            Response out = lookup(url);
+            if (out != null) {
+                hits++;
+                retain(out);
+            }
+            if (out != null || secondTier == null) {
+                if (out == null) misses++;
+                return out;
+            }
+        }
+        HttpCacheEntry stored = null;
+        try {
+            stored = secondTier.getEntry(url.toString());
+        } catch (IOException e) {
+            // treat as a miss
+        }
+        synchronized(this) {
+            if (stored == null) {
+                misses++;
+                return null;
+            }
+            hits++;
+            Response out = peek(url);
+            if (out != null) {
+                stored.getResource().dispose();
+                retain(out);
+                return out;
+            }
+            out = new Response(new HttpCacheEntry(stored.getRequestDate(),
+                    stored.getResponseDate(), stored.getStatusLine(), stored.getAllHeaders(),
+                    new SharedResource(stored.getResource())));
+            if (lengthOf(out) <= maxBytes && maxEntries > 0) {
+                retain(out);
+                store(url, out);
+            }
+            return out;
+        }
+    }
+
+    /**
+     * Gives back the reference to its body held by a response
+     * obtained from this cache. A <code>null</code> response is
+     * ignored.
+     */
+    public static void release(Response resp) {
+        if (resp == null) return;
+        Resource body = resourceOf(resp);
+        if (body instanceof SharedResource) body.dispose();
+    }
+
+    /*
+     * Takes another reference to a response's body, which must not
+     * have been released yet.
+     */
+    static void retain(Response resp) {
+        Resource body = resourceOf(resp);
+        if (body instanceof SharedResource && !((SharedResource)body).retain()) {
+            throw new IllegalStateException("response has already been released");
+        }
+    }
+
+    private Response lookup(HttpURL url) {
+        sketch.increment(url.longHashCode());
+        Response out = window.get(url);
+        if (out == null) out = protectedSegment.get(url);
+        if (out == null) {
+            out = probation.remove(url);
+            if (out != null) {
+                protectedSegment.put(url, out);
+                demoteAsNeeded();
+            }
+        }
+        return out;
+    }
+
+    private Response peek(HttpURL url) {
+        Response out = window.get(url);
+        if (out == null) out = protectedSegment.get(url);
+        if (out == null) out = probation.get(url);
+        return out;
+    }
+
+    /**
+     * Returns the number of lookups that found a cached response.
+     */
+    public synchronized long getHitCount() {
+        return hits;
+    }
+
+    /**
+     * Returns the number of lookups that found no cached response.
+     */
+    public synchronized long getMissCount() {
+        return misses;
+    }
+
+    /**
+     * Returns the number of responses evicted to keep the cache
+     * within its limits.
+     */
+    public synchronized long getEvictionCount() {
+        return evictions;
+    }
+
+    /**
+     * Returns the size of the largest response body this cache
+     * will hold.
+     */
+    public long getMaxBytes() {
+        return maxBytes;
+    }
+
+    /**
+     * Returns the number of responses held in memory.
+     */
+    public synchronized int size() {
+        return window.size() + probation.size() + protectedSegment.size();
+    }
+
+    /**
+     * Removes any cached response for the given URL.
+     */
+    public void invalidate(HttpURL url) {
+        synchronized(this) {
+            Response old = window.remove(url);
+            if (old == null) old = probation.remove(url);
+            if (old == null) old = protectedSegment.remove(url);
+            if (old != null) resourceOf(old).dispose();
+        }
+        if (secondTier != null) {
+            try {
+                secondTier.removeEntry(url.toString());
+            } catch (IOException e) {
+                // nothing more we can do; it is only a cache
+            }
+        }
+    }
+
+    /**
+     * Offers a newly received response to the cache. If the
+     * response is cacheable its body is read into the cache and
+     * the stored {@link Response} is returned, to be
+     * {@link #release released} after use; the original entity
+     * has then been fully consumed. Otherwise <code>null</code> is
+     * returned and the response's entity is left readable
+     * (although it may have been replaced with an equivalent one).
+     * @param url canonical URL the <code>GET</code> was issued to
+     * @param requestSent when the request was sent
+     * @param responseReceived when the response was received
+     * @param resp the response
+     * @throws IOException if the response body could not be read
+     */
+    public Response cacheResponse(HttpURL url, Date requestSent, Date responseReceived,
+            HttpResponse resp) throws IOException {
+        if (!isCacheable(resp)) return null;
+        HttpEntity entity = resp.getEntity();
+        if (entity == null) return null;
+        long length = entity.getContentLength();
+        if (length > maxBytes) return null;
+        InputStream instream = entity.getContent();
+        InputLimit limit = new InputLimit(maxBytes);
+        Resource body = resourceFactory.generate(url.toString(),
+                instream, limit);
+        if (limit.isReached()) {
+            resp.setEntity(remainderOf(entity, body, instream));
+            return null;
+        }
+        instream.close();
+        Response out = new Response(requestSent, responseReceived, resp,
+                new SharedResource(body));
+        synchronized(this) {
+            retain(out);
+            store(url, out);
+        }
+        writeThrough(url, out);
+        return out;
+    }
+
+    private HttpEntity remainderOf(HttpEntity orig, Resource partial, InputStream rest)
+        throws IOException {
+        InputStreamEntity out = new InputStreamEntity(
+                new SequenceInputStream(partial.getInputStream(), rest), -1);
+        // the open stream keeps what it needs of the partial body
+        partial.dispose();
+        out.setContentType(orig.getContentType());
+        out.setContentEncoding(orig.getContentEncoding());
+        out.setChunked(orig.isChunked());
+        return out;
+    }
+
+    /**
+     * Updates a cached response after the origin has confirmed,
+     * with a <code>304 Not Modified</code>, that its stored body is
+     * still current.
+     * @param url canonical URL the conditional <code>GET</code> was
+     *   issued to
+     * @param stale the cached response that was revalidated, which
+     *   the caller has not released yet
+     * @param requestSent when the conditional request was sent
+     * @param responseReceived when the 304 response was received
+     * @param notModified the 304 response
+     * @return the updated response, sharing the stored body; it
+     *   holds a reference of its own, and must be
+     *   {@link #release released} after use
+     */
+    public Response revalidated(HttpURL url, Response stale, Date requestSent,
+            Date responseReceived, HttpResponse notModified) {
+        Response out = stale.updatedWith(requestSent, responseReceived, notModified);
+        synchronized(this) {
+            retain(out);
+            if (peek(url) != stale) return out;
+            store(url, out);
+        }
+        writeThrough(url, out);
+        return out;
+    }
+
+    private void writeThrough(HttpURL url, Response resp) {
+        if (secondTier == null) return;
+        try {
+            secondTier.putEntry(url.toString(), resp.getCacheEntry());
+        } catch (IOException e) {
+            // nothing more we can do; it is only a cache
+        }
+    }
+
+    private synchronized void store(HttpURL url, Response resp) {
+        Response old;
+        if (window.get(url) != null) {
+            old = window.put(url, resp);
+        } else if (probation.get(url) != null) {
+            old = probation.put(url, resp);
+        } else if (protectedSegment.get(url) != null) {
+            old = protectedSegment.put(url, resp);
+        } else {
+            sketch.increment(url.longHashCode());
+            old = window.put(url, resp);
+        }
+        if (old != null && resourceOf(old) != resourceOf(resp)) resourceOf(old).dispose();
+        evictAsNeeded();
+        demoteAsNeeded();
+    }
+
+    /*
+     * An entry too large for the window, even the newest, goes
+     * straight to admission, so that a large one-off response has
+     * to be used as often as the entries it would displace. The
+     * newest entry wins ties, so that a small cache still behaves
+     * like an LRU one among entries used equally often.
+     */
+    private void evictAsNeeded() {
+        while (window.size() > 0
+                && (window.size() > windowMaxEntries || window.bytes > windowMaxBytes)) {
+            Map.Entry<HttpURL, Response> eldest = window.eldest();
+            window.remove(eldest.getKey());
+            admit(eldest.getKey(), eldest.getValue(), window.size() == 0);
+        }
+        while (mainOverLimit()) {
+            Region victims = victimRegion(null);
+            if (victims == null) break;
+            evict(victims, victims.eldest().getKey());
+        }
+    }
+
+    /*
+     * A candidate leaving the window enters probation only by
+     * evicting main entries that are used less often than it is.
+     */
+    private void admit(HttpURL url, Response candidate, boolean winsTies) {
+        probation.put(url, candidate);
+        if (lengthOf(candidate) > maxBytes - window.bytes) {
+            evict(probation, url);
+            return;
+        }
+        int frequency = sketch.frequency(url.longHashCode());
+        while (mainOverLimit()) {
+            Region victims = victimRegion(url);
+            int victimFrequency = (victims == null) ? 0
+                : sketch.frequency(victims.eldest().getKey().longHashCode());
+            if (victims == null || frequency < victimFrequency
+                    || (frequency == victimFrequency && !winsTies)) {
+                evict(probation, url);
+                return;
+            }
+            evict(victims, victims.eldest().getKey());
+        }
+    }
+
+    private boolean mainOverLimit() {
+        return probation.size() + protectedSegment.size() > maxEntries - window.size()
+            || probation.bytes + protectedSegment.bytes > maxBytes - window.bytes;
+    }
+
+    private Region victimRegion(HttpURL exclude) {
+        Map.Entry<HttpURL, Response> eldest = probation.eldest();
+        if (eldest != null && !eldest.getKey().equals(exclude)) return probation;
+        if (protectedSegment.size() > 0) return protectedSegment;
+        return null;
+    }
+
+    private void evict(Region region, HttpURL url) {
+        resourceOf(region.remove(url)).dispose();
+        evictions++;
+    }
+
+    private void demoteAsNeeded() {
+        while (protectedSegment.size() > 1
+                && (protectedSegment.size() > protectedMaxEntries
+                    || protectedSegment.bytes > protectedMaxBytes)) {
+            Map.Entry<HttpURL, Response> eldest = protectedSegment.eldest();
+            protectedSegment.remove(eldest.getKey());
+            probation.put(eldest.getKey(), eldest.getValue());
+        }
+    }
+
+    private static Resource resourceOf(Response resp) {
+        return resp.getCacheEntry().getResource();
+    }
+
+    private static long lengthOf(Response resp) {
+        return resourceOf(resp).length();
+    }
+
+    /*
+     * One LRU-ordered part of the cache, tracking its body bytes.
+     */
+    private static class Region {
+        private final LinkedHashMap<HttpURL, Response> entries =
+            new LinkedHashMap<HttpURL, Response>(16, 0.75f, true);
+        long bytes = 0L;
+
+        Response get(HttpURL url) {
+            return entries.get(url);
+        }
+
+        Response put(HttpURL url, Response resp) {
+            Response old = entries.put(url, resp);
+            if (old != null) bytes -= lengthOf(old);
+            bytes += lengthOf(resp);
+            return old;
+        }
+
+        Response remove(HttpURL url) {
+            Response old = entries.remove(url);
+            if (old != null) bytes -= lengthOf(old);
+            return old;
+        }
+
+        Map.Entry<HttpURL, Response> eldest() {
+            if (entries.isEmpty()) return null;
+            return entries.entrySet().iterator().next();
+        }
+
+        int size() {
+            return entries.size();
+        }
+    }
+
+    /*
+     * "Unless specifically constrained by a cache-control (section
+     * 14.9) directive, a caching system MAY always store a successful
+     * response (see section 13.8) as a cache entry..."
+     * http://www.w3.org/Protocols/rfc2616/rfc2616-sec13.html#sec13.4
+     */
+    private boolean isCacheable(HttpResponse resp) {
+        if (maxEntries == 0 || maxBytes == 0) return false;
+        switch (resp.getStatusLine().getStatusCode()) {
+        case HttpStatus.SC_OK:
+        case HttpStatus.SC_NON_AUTHORITATIVE_INFORMATION:
+        case HttpStatus.SC_MULTIPLE_CHOICES:
+        case HttpStatus.SC_MOVED_PERMANENTLY:
+        case HttpStatus.SC_GONE:
+            break;
+        default:
+            return false;
+        }
+        boolean noCache = false;
+        for (Header h : resp.getHeaders(HeaderConstants.CACHE_CONTROL)) {
+            for (HeaderElement elt : h.getElements()) {
+                String name = elt.getName();
+                if (HeaderConstants.CACHE_CONTROL_NO_STORE.equalsIgnoreCase(name)) {
+                    return false;
+                }
+                if (HeaderConstants.CACHE_CONTROL_NO_CACHE.equalsIgnoreCase(name)) {
+                    noCache = true;
+                }
+            }
+        }
+        for (Header h : resp.getHeaders(HeaderConstants.PRAGMA)) {
+            for (HeaderElement elt : h.getElements()) {
+                if (HeaderConstants.CACHE_CONTROL_NO_CACHE.equalsIgnoreCase(elt.getName())) {
+                    noCache = true;
+                }
+            }
+        }
+        if (noCache && !hasValidator(resp)) return false;
+        /*
+         * We always send the same request headers for a given URL, so
+         * any selecting headers named by Vary will match on reuse;
+         * only "Vary: *" rules out reuse.
+         */
+        for (Header h : resp.getHeaders(HeaderConstants.VARY)) {
+            for (HeaderElement elt : h.getElements()) {
+                if ("*".equals(elt.getName())) return false;
+            }
+        }
+        /*
+         * Responses with validators are worth keeping even when they
+         * are stale (or no-cache) on arrival, since they can be
+         * revalidated with a conditional request.
+         */
+        return hasExplicitFreshness(resp) || hasValidator(resp);
+    }
+
+    private boolean hasValidator(HttpResponse resp) {
+        return resp.getFirstHeader(HeaderConstants.ETAG) != null
+            || resp.getFirstHeader(HeaderConstants.LAST_MODIFIED) != null;
+    }
+
+    private boolean hasExplicitFreshness(HttpResponse resp) {
+        if (resp.getFirstHeader(HeaderConstants.EXPIRES) != null) return true;
+        for (Header h : resp.getHeaders(HeaderConstants.CACHE_CONTROL)) {
+            for (HeaderElement elt : h.getElements()) {
+                // s-maxage only applies to shared caches
+                if (HeaderConstants.CACHE_CONTROL_MAX_AGE.equalsIgnoreCase(elt.getName())) {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
+}
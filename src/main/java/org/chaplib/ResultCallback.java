@@ -0,0 +1,39 @@
+/* 
+ * ResultCallback.java
+ * 
+ * Copyright (C) 2012 Jonathan Moore
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *   
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.chaplib;
+
+/**
+ * Receives the outcome of an asynchronous operation. Exactly
+ * one of the methods is called, exactly once.
+ *
+ * @param <T> the type of result produced by the operation
+ */
+public interface ResultCallback<T> {
+
+    /**
+     * Called when the operation completes successfully.
+     * @param result the operation's result
+     */
+    void completed(T result);
+
+    /**
+     * Called when the operation fails.
+     * @param failure the reason for the failure
+     */
+    void failed(Throwable failure);
+}
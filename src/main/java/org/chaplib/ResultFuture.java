@@ -0,0 +1,158 @@
+/* 
+ * ResultFuture.java
+ * 
+ * Copyright (C) 2012 Jonathan Moore
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *   
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.chaplib;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * A <code>ResultFuture</code> is a {@link Future} that is
+ * completed by calling its {@link ResultCallback} methods, and
+ * to which further callbacks can be attached. Callbacks let
+ * interested parties react to the outcome without tying up a
+ * thread waiting for it.
+ *
+ * <p>Callbacks attached before completion run in the thread that
+ * completes the future; callbacks attached afterwards run
+ * immediately in the attaching thread. Exceptions thrown by
+ * callbacks are not propagated, so that one misbehaving callback
+ * cannot keep the others from being notified. Cancellation is not
+ * supported.</p>
+ *
+ * @param <T> the type of result
+ */
+public class ResultFuture<T> implements Future<T>, ResultCallback<T> {
+
+    private final CountDownLatch latch = new CountDownLatch(1);
+    private List<ResultCallback<? super T>> callbacks =
+        new ArrayList<ResultCallback<? super T>>(2);
+    private boolean done = false;
+    private T result;
+    private Throwable failure;
+
+    /**
+     * Completes this future successfully, unless it is already
+     * complete.
+     */
+    public void completed(T result) {
+        List<ResultCallback<? super T>> toNotify;
+        synchronized(this) {
+            if (done) return;
+            this.result = result;
+            toNotify = finish();
+        }
+        for(ResultCallback<? super T> cb : toNotify) {
+            notifyCompleted(cb, result);
+        }
+    }
+
+    /**
+     * Completes this future with a failure, unless it is already
+     * complete.
+     */
+    public void failed(Throwable failure) {
+        if (failure == null) throw new IllegalArgumentException("failure must not be null");
+        List<ResultCallback<? super T>> toNotify;
+        synchronized(this) {
+            if (done) return;
+            this.failure = failure;
+            toNotify = finish();
+        }
+        for(ResultCallback<? super T> cb : toNotify) {
+            notifyFailed(cb, failure);
+        }
+    }
+
+    private List<ResultCallback<? super T>> finish() {
+        done = true;
+        latch.countDown();
+        List<ResultCallback<? super T>> out = callbacks;
+        callbacks = null;
+        return out;
+    }
+
+    /**
+     * Arranges for the given callback to be notified of the
+     * outcome of this future.
+     */
+    public void addCallback(ResultCallback<? super T> callback) {
+        synchronized(this) {
+            if (!done) {
+                callbacks.add(callback);
+                return;
+            }
+        }
+        if (failure != null) {
+            notifyFailed(callback, failure);
+        } else {
+            notifyCompleted(callback, result);
+        }
+    }
+
+    private static <T> void notifyCompleted(ResultCallback<? super T> cb, T result) {
+        try {
+            cb.completed(result);
+        } catch (RuntimeException e) {
+            // ignore misbehaving callback
+        }
+    }
+
+    private static void notifyFailed(ResultCallback<?> cb, Throwable failure) {
+        try {
+            cb.failed(failure);
+        } catch (RuntimeException e) {
+            // ignore misbehaving callback
+        }
+    }
+
+    public boolean cancel(boolean mayInterruptIfRunning) {
+        return false;
+    }
+
+    public boolean isCancelled() {
+        return false;
+    }
+
+    public synchronized boolean isDone() {
+        return done;
+    }
+
+    public T get() throws InterruptedException, ExecutionException {
+        latch.await();
+        return getResult();
+    }
+
+    public T get(long timeout, TimeUnit unit)
+        throws InterruptedException, ExecutionException, TimeoutException {
+        if (!latch.await(timeout, unit)) {
+            throw new TimeoutException();
+        }
+        return getResult();
+    }
+
+    private synchronized T getResult() throws ExecutionException {
+        if (failure != null) throw new ExecutionException(failure);
+        return result;
+    }
+
+}
@@ -0,0 +1,79 @@
+package org.chaplib;
+/*
+ * SharedResource.java
+ *
+ * Copyright (C) 2012 Jonathan Moore
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.http.client.cache.Resource;
+
+/**
+ * A reference-counted cached response body. A {@link ResponseCache}
+ * holds one reference while the body is cached, and every response
+ * it hands out holds another; {@link #dispose} gives up one
+ * reference, and the underlying resource is only disposed of along
+ * with the last one.
+ */
+final class SharedResource implements Resource {
+
+    private static final long serialVersionUID = 1L;
+
+    private final Resource resource;
+    private final AtomicInteger refs = new AtomicInteger(1);
+
+    /**
+     * Wraps the given resource, with a single reference held by
+     * the caller.
+     */
+    SharedResource(Resource resource) {
+        this.resource = resource;
+    }
+
+    /**
+     * Takes another reference to the body.
+     * @return <code>false</code> if the body has already been
+     *   disposed of
+     */
+    boolean retain() {
+        while (true) {
+            int n = refs.get();
+            if (n == 0) return false;
+            if (refs.compareAndSet(n, n + 1)) return true;
+        }
+    }
+
+    public InputStream getInputStream() throws IOException {
+        if (refs.get() == 0) throw new IOException("resource has been disposed");
+        return resource.getInputStream();
+    }
+
+    public long length() {
+        return resource.length();
+    }
+
+    public void dispose() {
+        while (true) {
+            int n = refs.get();
+            if (n == 0) return;
+            if (refs.compareAndSet(n, n - 1)) {
+                if (n == 1) resource.dispose();
+                return;
+            }
+        }
+    }
+}
@@ -0,0 +1,113 @@
+package org.chaplib;
+/*
+ * StreamingContentParsers.java
+ *
+ * Copyright (C) 2012 Jonathan Moore
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.nio.channels.Channels;
+import java.nio.charset.Charset;
+
+import org.apache.http.Header;
+import org.apache.http.HttpEntity;
+
+/**
+ * Adapts streaming parsers to {@link ContentParser}s, so that they
+ * can be passed to {@link HttpResource#value}. The parser reads the
+ * body straight from the connection when the response is not
+ * cached, so it can start work before the last byte arrives and
+ * never needs the whole body in memory.
+ * <p>
+ * When concurrent callers share one request for an uncached
+ * response, the body is read into memory once and each parser
+ * streams its own copy.
+ */
+public final class StreamingContentParsers {
+
+    private static final ContentTypeNormalizer normalizer = new ContentTypeNormalizer();
+    private static final Charset ISO_8859_1 = Charset.forName(MediaType.DEFAULT_CHARSET);
+
+    private StreamingContentParsers() {
+    }
+
+    public static <T> ContentParser<T> forChannel(final ChannelContentParser<T> parser) {
+        return new ContentParser<T>() {
+            public T parse(HttpEntity entity) {
+                try {
+                    InputStream in = entity.getContent();
+                    try {
+                        return parser.parse(Channels.newChannel(in),
+                                contentTypeOf(entity));
+                    } finally {
+                        in.close();
+                    }
+                } catch (IOException e) {
+                    throw new RuntimeException(e);
+                }
+            }
+        };
+    }
+
+    /**
+     * The body is decoded with the character set named by the
+     * normalized Content-Type, which is ISO-8859-1 unless the origin
+     * says otherwise.
+     * @throws InvalidCharacterSetException from the returned parser
+     *   if the named character set is not supported
+     */
+    public static <T> ContentParser<T> forReader(final ReaderContentParser<T> parser) {
+        return new ContentParser<T>() {
+            public T parse(HttpEntity entity) {
+                MediaType mediaType = mediaTypeOf(entity);
+                Charset charset = charsetOf(mediaType);
+                try {
+                    Reader in = new InputStreamReader(entity.getContent(), charset);
+                    try {
+                        return parser.parse(in,
+                                (mediaType == null) ? null : mediaType.toString());
+                    } finally {
+                        in.close();
+                    }
+                } catch (IOException e) {
+                    throw new RuntimeException(e);
+                }
+            }
+        };
+    }
+
+    private static String contentTypeOf(HttpEntity entity) {
+        MediaType mediaType = mediaTypeOf(entity);
+        return (mediaType == null) ? null : mediaType.toString();
+    }
+
+    private static MediaType mediaTypeOf(HttpEntity entity) {
+        Header hdr = entity.getContentType();
+        if (hdr == null) return null;
+        return normalizer.parse(hdr.getValue());
+    }
+
+    private static Charset charsetOf(MediaType mediaType) {
+        if (mediaType == null) return ISO_8859_1;
+        Charset out = mediaType.getCharset();
+        if (out == null) {
+            throw new InvalidCharacterSetException("unsupported character set: "
+                    + mediaType.getCharsetName());
+        }
+        return out;
+    }
+}
@@ -0,0 +1,348 @@
+package org.chaplib;
+/*
+ * URLCanonicalizer.java
+ *
+ * Copyright (C) 2012 Jonathan Moore
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+import java.net.IDN;
+import java.util.Arrays;
+import java.util.Comparator;
+
+/**
+ * Produces the canonical string form of <code>http</code> and
+ * <code>https</code> URLs as described in RFC 2616 section 3.2.3:
+ * lowercase scheme and host, an explicit port, a non-empty path,
+ * and unreserved characters unescaped in the path and query. The
+ * userinfo and fragment are dropped. The input is scanned once to
+ * find its components and decide whether anything changes; an
+ * input that is already canonical is returned as-is, and otherwise
+ * the result is written into a single buffer of exactly the right
+ * size. The further steps of {@link URLNormalization#RFC_3986}
+ * are applied afterwards, each only when it changes something.
+ */
+final class URLCanonicalizer {
+
+    private static final char[] HEX_DIGITS = "0123456789ABCDEF".toCharArray();
+    private static final boolean[] RFC_2396_UNRESERVED = unreservedTable("-_.!~*'()");
+    private static final boolean[] RFC_3986_UNRESERVED = unreservedTable("-._~");
+
+    private static boolean[] unreservedTable(String marks) {
+        boolean[] table = new boolean[128];
+        String unreserved = "ABCDEFGHIJKLMNOPQRSTUVWXYZabcdefghijklmnopqrstuvwxyz"
+            + "0123456789" + marks;
+        for(int i=0; i<unreserved.length(); i++) {
+            table[unreserved.charAt(i)] = true;
+        }
+        return table;
+    }
+
+    private URLCanonicalizer() {
+    }
+
+    /**
+     * Returns the canonical form of the given URL under RFC 2616
+     * comparison rules.
+     * @throws IllegalArgumentException if the URL is not a
+     *   syntactically valid <code>http</code> or <code>https</code>
+     *   URL
+     */
+    static String canonicalize(String s) {
+        return canonicalize(s, URLNormalization.RFC_2616);
+    }
+
+    /**
+     * Returns the canonical form of the given URL under the given
+     * normalization.
+     * @throws IllegalArgumentException if the URL is not a
+     *   syntactically valid <code>http</code> or <code>https</code>
+     *   URL
+     */
+    static String canonicalize(String s, URLNormalization normalization) {
+        boolean rfc3986 = normalization.isRFC3986();
+        String out = canonicalize(s, rfc3986 ? RFC_3986_UNRESERVED : RFC_2396_UNRESERVED,
+                rfc3986);
+        if (rfc3986) {
+            out = toASCIIHost(out);
+            out = removeDotSegments(out);
+            out = removeEmptyQuery(out);
+        }
+        if (normalization.sortsQueryParameters()) {
+            out = sortQueryParameters(out);
+        }
+        return out;
+    }
+
+    private static String canonicalize(String s, boolean[] unreserved,
+            boolean uppercaseEscapes) {
+        int len = s.length();
+        int schemeEnd = s.indexOf(':');
+        if (schemeEnd < 0) throw invalidSyntax();
+        String scheme;
+        if (schemeEnd == 4 && s.regionMatches(true, 0, "http", 0, 4)) {
+            scheme = "http";
+        } else if (schemeEnd == 5 && s.regionMatches(true, 0, "https", 0, 5)) {
+            scheme = "https";
+        } else {
+            throw new IllegalArgumentException("can only be created with http or https URI schemes");
+        }
+        if (!s.startsWith("//", schemeEnd + 1)) throw invalidSyntax();
+
+        int authorityStart = schemeEnd + 3;
+        int authorityEnd = authorityStart;
+        while (authorityEnd < len) {
+            char c = s.charAt(authorityEnd);
+            if (c == '/' || c == '?' || c == '#') break;
+            authorityEnd++;
+        }
+        int hostStart = Math.max(authorityStart, s.lastIndexOf('@', authorityEnd - 1) + 1);
+        int hostEnd;
+        if (hostStart < authorityEnd && s.charAt(hostStart) == '[') {
+            hostEnd = s.indexOf(']', hostStart);
+            if (hostEnd < 0 || hostEnd >= authorityEnd) throw invalidSyntax();
+            hostEnd++;
+        } else {
+            hostEnd = hostStart;
+            while (hostEnd < authorityEnd && s.charAt(hostEnd) != ':') hostEnd++;
+        }
+        if (hostEnd == hostStart) throw invalidSyntax();
+
+        int port = -1;
+        boolean portCanonical = false;
+        if (hostEnd < authorityEnd) {
+            if (s.charAt(hostEnd) != ':') throw invalidSyntax();
+            int digits = authorityEnd - hostEnd - 1;
+            if (digits > 5) throw invalidSyntax();
+            if (digits > 0) {
+                port = 0;
+                for(int i = hostEnd + 1; i < authorityEnd; i++) {
+                    char c = s.charAt(i);
+                    if (c < '0' || c > '9') throw invalidSyntax();
+                    port = port * 10 + (c - '0');
+                }
+                if (port > 65535) throw invalidSyntax();
+                portCanonical = (digits == 1 || s.charAt(hostEnd + 1) != '0');
+            }
+        }
+        if (port == -1) port = "http".equals(scheme) ? 80 : 443;
+        int portDigits = decimalLength(port);
+
+        int pathStart = authorityEnd;
+        int pathEnd = s.indexOf('#', pathStart);
+        if (pathEnd < 0) pathEnd = len;
+        boolean addSlash = (pathStart == pathEnd || s.charAt(pathStart) != '/');
+        int unescapes = 0;
+        boolean lowercaseEscapes = false;
+        for(int i = pathStart; i < pathEnd; i++) {
+            if (s.charAt(i) != '%') continue;
+            if (i + 2 >= pathEnd) throw invalidSyntax();
+            int b = (hexValue(s.charAt(i+1)) << 4) | hexValue(s.charAt(i+2));
+            if (b < 128 && unreserved[b]) {
+                unescapes++;
+            } else if (uppercaseEscapes && (isLowerCaseHex(s.charAt(i+1))
+                    || isLowerCaseHex(s.charAt(i+2)))) {
+                lowercaseEscapes = true;
+            }
+            i += 2;
+        }
+
+        boolean canonical = s.startsWith(scheme)
+            && hostStart == authorityStart
+            && isLowerCase(s, hostStart, hostEnd)
+            && portCanonical
+            && !addSlash
+            && pathEnd == len
+            && unescapes == 0
+            && !lowercaseEscapes;
+        if (canonical) return s;
+
+        int hostLength = hostEnd - hostStart;
+        char[] out = new char[scheme.length() + 3 + hostLength + 1 + portDigits
+                              + (addSlash ? 1 : 0) + (pathEnd - pathStart) - 2 * unescapes];
+        int o = 0;
+        scheme.getChars(0, scheme.length(), out, o);
+        o += scheme.length();
+        out[o++] = ':';
+        out[o++] = '/';
+        out[o++] = '/';
+        for(int i = hostStart; i < hostEnd; i++) {
+            out[o++] = toLowerCase(s.charAt(i));
+        }
+        out[o++] = ':';
+        o += portDigits;
+        for(int p = port, i = o - 1; i >= o - portDigits; i--, p /= 10) {
+            out[i] = (char)('0' + p % 10);
+        }
+        if (addSlash) out[o++] = '/';
+        for(int i = pathStart; i < pathEnd; i++) {
+            char c = s.charAt(i);
+            if (c == '%') {
+                int b = (hexValue(s.charAt(i+1)) << 4) | hexValue(s.charAt(i+2));
+                if (b < 128 && unreserved[b]) {
+                    out[o++] = (char)b;
+                } else if (uppercaseEscapes) {
+                    out[o++] = c;
+                    out[o++] = HEX_DIGITS[b >> 4];
+                    out[o++] = HEX_DIGITS[b & 0xf];
+                } else {
+                    out[o++] = c;
+                    out[o++] = s.charAt(i+1);
+                    out[o++] = s.charAt(i+2);
+                }
+                i += 2;
+            } else {
+                out[o++] = c;
+            }
+        }
+        return new String(out);
+    }
+
+    /*
+     * The remaining steps operate on URLs that are already in
+     * canonical form, so the host always starts right after the
+     * scheme and ends at the port, and the path starts at the
+     * first '/' after that.
+     */
+    private static int hostStart(String url) {
+        return url.indexOf(':') + 3;
+    }
+
+    private static int pathStart(String url) {
+        return url.indexOf('/', hostStart(url));
+    }
+
+    private static String toASCIIHost(String url) {
+        int hostStart = hostStart(url);
+        int pathStart = pathStart(url);
+        int hostEnd = url.lastIndexOf(':', pathStart);
+        boolean ascii = true;
+        for(int i = hostStart; i < hostEnd && ascii; i++) {
+            ascii = url.charAt(i) < 128;
+        }
+        if (ascii) return url;
+        /* the host is already lower case, and IDN keeps it that way */
+        String host = IDN.toASCII(url.substring(hostStart, hostEnd));
+        return url.substring(0, hostStart) + host + url.substring(hostEnd);
+    }
+
+    /*
+     * RFC 3986 section 5.2.4.
+     */
+    private static String removeDotSegments(String url) {
+        int pathStart = pathStart(url);
+        int pathEnd = url.indexOf('?', pathStart);
+        if (pathEnd < 0) pathEnd = url.length();
+        boolean dots = false;
+        for(int i = pathStart; i < pathEnd && !dots; i++) {
+            dots = (url.charAt(i) == '.' && url.charAt(i-1) == '/'
+                    && (i + 1 == pathEnd || url.charAt(i+1) == '/'
+                        || (url.charAt(i+1) == '.'
+                            && (i + 2 == pathEnd || url.charAt(i+2) == '/'))));
+        }
+        if (!dots) return url;
+        StringBuilder out = new StringBuilder(url.length());
+        out.append(url, 0, pathStart);
+        int segmentStart = pathStart;
+        while (segmentStart < pathEnd) {
+            int segmentEnd = url.indexOf('/', segmentStart + 1);
+            if (segmentEnd < 0 || segmentEnd > pathEnd) segmentEnd = pathEnd;
+            int length = segmentEnd - segmentStart;
+            boolean last = (segmentEnd == pathEnd);
+            if (length == 2 && url.charAt(segmentStart + 1) == '.') {
+                if (last) out.append('/');
+            } else if (length == 3 && url.startsWith("..", segmentStart + 1)) {
+                int previous = out.lastIndexOf("/");
+                if (previous >= pathStart) out.setLength(previous);
+                if (last) out.append('/');
+            } else {
+                out.append(url, segmentStart, segmentEnd);
+            }
+            segmentStart = segmentEnd;
+        }
+        if (out.length() == pathStart) out.append('/');
+        out.append(url, pathEnd, url.length());
+        return out.toString();
+    }
+
+    private static String removeEmptyQuery(String url) {
+        int query = url.indexOf('?', pathStart(url));
+        if (query != url.length() - 1) return url;
+        return url.substring(0, query);
+    }
+
+    private static String sortQueryParameters(String url) {
+        int query = url.indexOf('?', pathStart(url));
+        if (query < 0) return url;
+        String[] params = url.substring(query + 1).split("&");
+        Arrays.sort(params, PARAMETER_NAME_ORDER);
+        StringBuilder out = new StringBuilder(url.length());
+        out.append(url, 0, query + 1);
+        for(String param : params) {
+            if (param.length() == 0) continue;
+            if (out.length() > query + 1) out.append('&');
+            out.append(param);
+        }
+        if (out.length() == query + 1) out.setLength(query);
+        String sorted = out.toString();
+        return sorted.equals(url) ? url : sorted;
+    }
+
+    private static final Comparator<String> PARAMETER_NAME_ORDER = new Comparator<String>() {
+        public int compare(String p1, String p2) {
+            return parameterName(p1).compareTo(parameterName(p2));
+        }
+    };
+
+    private static String parameterName(String param) {
+        int eq = param.indexOf('=');
+        return (eq < 0) ? param : param.substring(0, eq);
+    }
+
+    private static boolean isLowerCaseHex(char c) {
+        return (c >= 'a' && c <= 'f');
+    }
+
+    private static boolean isLowerCase(String s, int start, int end) {
+        for(int i = start; i < end; i++) {
+            char c = s.charAt(i);
+            if (toLowerCase(c) != c) return false;
+        }
+        return true;
+    }
+
+    private static char toLowerCase(char c) {
+        if (c < 128) return (c >= 'A' && c <= 'Z') ? (char)(c + ('a' - 'A')) : c;
+        return Character.toLowerCase(c);
+    }
+
+    private static int hexValue(char c) {
+        if (c >= '0' && c <= '9') return c - '0';
+        if (c >= 'a' && c <= 'f') return c - 'a' + 10;
+        if (c >= 'A' && c <= 'F') return c - 'A' + 10;
+        throw invalidSyntax();
+    }
+
+    private static int decimalLength(int n) {
+        int digits = 1;
+        while (n >= 10) {
+            n /= 10;
+            digits++;
+        }
+        return digits;
+    }
+
+    private static IllegalArgumentException invalidSyntax() {
+        return new IllegalArgumentException("must be created with valid URL syntax");
+    }
+}
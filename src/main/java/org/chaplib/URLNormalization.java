@@ -0,0 +1,72 @@
+package org.chaplib;
+/*
+ * URLNormalization.java
+ *
+ * Copyright (C) 2012 Jonathan Moore
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+/**
+ * Selects how {@link HttpURL}s are normalized before they are
+ * compared. URLs that normalize to the same form share a single
+ * cache entry and a single {@link HttpResource}.
+ */
+public final class URLNormalization {
+
+    /**
+     * The comparison rules of RFC 2616 section 3.2.3: scheme and
+     * host are case-insensitive, an empty or missing port is the
+     * default port, an empty path is "/", and characters outside
+     * the RFC 2396 reserved and unsafe sets are equivalent to
+     * their escaped forms. This is the default.
+     */
+    public static final URLNormalization RFC_2616 = new URLNormalization(false, false);
+
+    /**
+     * The syntax-based normalization of RFC 3986 section 6.2.2,
+     * applied on top of the scheme, host and port rules above:
+     * only RFC 3986 unreserved characters are unescaped, the
+     * remaining escapes use uppercase hex digits, dot-segments are
+     * removed from the path, an empty query is dropped, and
+     * internationalized host names are converted to their ASCII
+     * form.
+     */
+    public static final URLNormalization RFC_3986 = new URLNormalization(true, false);
+
+    private final boolean rfc3986;
+    private final boolean sortQueryParameters;
+
+    private URLNormalization(boolean rfc3986, boolean sortQueryParameters) {
+        this.rfc3986 = rfc3986;
+        this.sortQueryParameters = sortQueryParameters;
+    }
+
+    /**
+     * Returns a normalization that additionally sorts query
+     * parameters by name. This is only appropriate when the
+     * origin does not assign meaning to parameter order; the
+     * relative order of repeated parameters is kept.
+     */
+    public URLNormalization withSortedQueryParameters() {
+        return new URLNormalization(rfc3986, true);
+    }
+
+    boolean isRFC3986() {
+        return rfc3986;
+    }
+
+    boolean sortsQueryParameters() {
+        return sortQueryParameters;
+    }
+}
@@ -17,6 +17,9 @@
  */
 package org.chaplib;
 
+import static org.junit.Assert.*;
+
+import java.nio.charset.Charset;
 import java.util.HashSet;
 import java.util.Random;
 import java.util.Set;
@@ -71,4 +74,26 @@ public class TestAllowOnlyIANACharacterSetsPolicy {
         impl.validateCharacterSet(charSet);
     }
 
+    @Test
+    public void permitsIANACharacterSetInAnyCase() {
+        impl.validateCharacterSet("uTf-8");
+        impl.validateCharacterSet("ISO-8859-1");
+    }
+
+    @Test
+    public void resolvesIANACharacterSetToCharset() {
+        assertEquals(Charset.forName("UTF-8"), impl.resolveCharacterSet("Utf-8"));
+    }
+
+    @Test
+    public void resolvesMissingCharacterSetToDefault() {
+        assertEquals(Charset.forName("ISO-8859-1"), impl.resolveCharacterSet(null));
+        assertEquals(Charset.forName("ISO-8859-1"), impl.resolveCharacterSet(""));
+    }
+
+    @Test(expected=InvalidCharacterSetException.class)
+    public void doesNotResolveUnregisteredCharacterSet() {
+        impl.resolveCharacterSet(generateUnregisteredCharacterSet());
+    }
+
 }
@@ -0,0 +1,98 @@
+/* 
+ * TestAsyncRequestExecutor.java
+ * 
+ * Copyright (C) 2012 Jonathan Moore
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *   
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.chaplib;
+
+import static org.junit.Assert.*;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class TestAsyncRequestExecutor {
+
+    private AsyncRequestExecutor impl;
+    private CountDownLatch release;
+
+    @Before
+    public void setUp() {
+        impl = new AsyncRequestExecutor(1, 1);
+        release = new CountDownLatch(1);
+    }
+
+    @After
+    public void tearDown() {
+        release.countDown();
+        impl.shutdown();
+    }
+
+    private Computation<String> blocking(final String result) {
+        return new Computation<String>() {
+            public String execute() {
+                try {
+                    release.await();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+                return result;
+            }
+        };
+    }
+
+    @Test
+    public void completesWithResult() throws Exception {
+        ResultFuture<String> future = impl.submit(blocking("foo"));
+        assertFalse(future.isDone());
+        release.countDown();
+        assertEquals("foo", future.get(1L, TimeUnit.SECONDS));
+    }
+
+    @Test
+    public void completesWithFailure() throws Exception {
+        final IllegalStateException failure = new IllegalStateException();
+        ResultFuture<String> future = impl.submit(new Computation<String>() {
+            public String execute() {
+                throw failure;
+            }
+        });
+        try {
+            future.get(1L, TimeUnit.SECONDS);
+            fail("should have thrown exception");
+        } catch (ExecutionException expected) {
+            assertSame(failure, expected.getCause());
+        }
+    }
+
+    @Test
+    public void failsRequestsWhenFull() throws Exception {
+        impl.submit(blocking("running"));
+        impl.submit(blocking("queued"));
+        ResultFuture<String> future = impl.submit(blocking("rejected"));
+        assertTrue(future.isDone());
+        try {
+            future.get();
+            fail("should have thrown exception");
+        } catch (ExecutionException expected) {
+            assertTrue(expected.getCause() instanceof RejectedExecutionException);
+        }
+    }
+}
@@ -0,0 +1,98 @@
+/* 
+ * TestBackgroundRevalidator.java
+ * 
+ * Copyright (C) 2012 Jonathan Moore
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *   
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.chaplib;
+
+import static org.junit.Assert.*;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class TestBackgroundRevalidator {
+
+    private BackgroundRevalidator impl;
+    private HttpURL url;
+    private CountDownLatch release;
+    private CountDownLatch ran;
+    private Runnable blockingRefresh;
+
+    @Before
+    public void setUp() {
+        impl = new BackgroundRevalidator(1, 1);
+        url = new HttpURL("http://www.example.com/");
+        release = new CountDownLatch(1);
+        ran = new CountDownLatch(1);
+        blockingRefresh = new Runnable() {
+            public void run() {
+                try {
+                    release.await();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+                ran.countDown();
+            }
+        };
+    }
+
+    @After
+    public void tearDown() {
+        release.countDown();
+        impl.shutdown();
+    }
+
+    @Test
+    public void runsRefresh() throws Exception {
+        assertTrue(impl.revalidate(url, blockingRefresh));
+        release.countDown();
+        assertTrue(ran.await(1L, TimeUnit.SECONDS));
+    }
+
+    @Test
+    public void onlyOneRefreshPerURLAtATime() {
+        assertTrue(impl.revalidate(url, blockingRefresh));
+        assertFalse(impl.revalidate(url, blockingRefresh));
+    }
+
+    @Test
+    public void canRefreshAgainAfterCompletion() throws Exception {
+        impl.revalidate(url, blockingRefresh);
+        release.countDown();
+        assertTrue(ran.await(1L, TimeUnit.SECONDS));
+        final CountDownLatch again = new CountDownLatch(1);
+        Runnable r = new Runnable() {
+            public void run() {
+                again.countDown();
+            }
+        };
+        long deadline = System.currentTimeMillis() + 1000L;
+        while (!impl.revalidate(url, r) && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10L);
+        }
+        assertTrue(again.await(1L, TimeUnit.SECONDS));
+    }
+
+    @Test
+    public void skipsRefreshesWhenSaturated() {
+        assertTrue(impl.revalidate(url, blockingRefresh));
+        assertTrue(impl.revalidate(new HttpURL("http://www.example.com/2"), blockingRefresh));
+        assertFalse(impl.revalidate(new HttpURL("http://www.example.com/3"), blockingRefresh));
+    }
+}
@@ -0,0 +1,242 @@
+/* 
+ * TestBatchGet.java
+ * 
+ * Copyright (C) 2012 Jonathan Moore
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *   
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.chaplib;
+
+import static org.junit.Assert.*;
+import static org.mockito.Mockito.*;
+
+import java.io.IOException;
+import java.net.URI;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.http.HttpEntity;
+import org.apache.http.HttpResponse;
+import org.apache.http.HttpStatus;
+import org.apache.http.HttpVersion;
+import org.apache.http.client.HttpClient;
+import org.apache.http.client.methods.HttpUriRequest;
+import org.apache.http.entity.StringEntity;
+import org.apache.http.message.BasicHttpResponse;
+import org.apache.http.util.EntityUtils;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.mockito.Mock;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.runners.MockitoJUnitRunner;
+import org.mockito.stubbing.Answer;
+
+@RunWith(MockitoJUnitRunner.class)
+public class TestBatchGet {
+
+    @Mock private HttpClient mockClient;
+    private AsyncRequestExecutor executor;
+    private HttpResourceFactory factory;
+    private ContentParser<String> parser;
+    private AtomicInteger running;
+    private AtomicInteger maxRunning;
+    private ConcurrentHashMap<String, AtomicInteger> runningPerHost;
+    private AtomicInteger maxRunningPerHost;
+
+    @Before
+    public void setUp() throws Exception {
+        executor = new AsyncRequestExecutor(32, 100);
+        factory = new HttpResourceFactory(mockClient);
+        factory.setAsyncRequestExecutor(executor);
+        running = new AtomicInteger(0);
+        maxRunning = new AtomicInteger(0);
+        runningPerHost = new ConcurrentHashMap<String, AtomicInteger>();
+        maxRunningPerHost = new AtomicInteger(0);
+        parser = new SlowParser();
+        when(mockClient.execute(any(HttpUriRequest.class))).thenAnswer(echoingURI());
+    }
+
+    @After
+    public void tearDown() {
+        factory.shutdown();
+        executor.shutdown();
+    }
+
+    private static void recordMax(AtomicInteger max, int n) {
+        int m;
+        while ((m = max.get()) < n && !max.compareAndSet(m, n)) { }
+    }
+
+    private Answer<HttpResponse> echoingURI() {
+        return new Answer<HttpResponse>() {
+            public HttpResponse answer(InvocationOnMock invocation) throws Throwable {
+                URI requested = ((HttpUriRequest)invocation.getArguments()[0]).getURI();
+                HttpResponse resp = new BasicHttpResponse(HttpVersion.HTTP_1_1,
+                        HttpStatus.SC_OK, "OK");
+                resp.setEntity(new StringEntity(requested.toString()));
+                return resp;
+            }
+        };
+    }
+
+    /*
+     * Parses the body slowly, keeping track of how many values are
+     * being worked on at once (mocked HttpClient answers are
+     * serialized, so they cannot be used for this).
+     */
+    private class SlowParser implements ContentParser<String> {
+        public String parse(HttpEntity entity) {
+            String body;
+            try {
+                body = EntityUtils.toString(entity);
+            } catch (IOException e) {
+                throw new RuntimeException(e);
+            }
+            String host = URI.create(body).getHost();
+            runningPerHost.putIfAbsent(host, new AtomicInteger(0));
+            AtomicInteger onHost = runningPerHost.get(host);
+            recordMax(maxRunning, running.incrementAndGet());
+            recordMax(maxRunningPerHost, onHost.incrementAndGet());
+            try {
+                Thread.sleep(20L);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            } finally {
+                onHost.decrementAndGet();
+                running.decrementAndGet();
+            }
+            return body;
+        }
+    }
+
+    private List<URI> uris(int hosts, int perHost) throws Exception {
+        List<URI> out = new ArrayList<URI>();
+        for(int h=0; h<hosts; h++) {
+            for(int i=0; i<perHost; i++) {
+                out.add(new URI("http://host" + h + ".example.com/" + i));
+            }
+        }
+        return out;
+    }
+
+    private Set<String> takeAll(BatchGet<String> batch) {
+        Set<String> values = new HashSet<String>();
+        while (batch.remaining() > 0) {
+            BatchGet.Result<String> result = batch.poll(5L, TimeUnit.SECONDS);
+            assertNotNull(result);
+            assertEquals(new HttpURL(result.getURI()).toString(), result.getValue());
+            values.add(result.getValue());
+        }
+        return values;
+    }
+
+    @Test
+    public void fetchesEveryResource() throws Exception {
+        BatchGet<String> batch = factory.getAll(uris(3, 4), parser);
+        assertEquals(12, batch.size());
+        assertEquals(12, takeAll(batch).size());
+    }
+
+    @Test
+    public void fetchesEquivalentURIsOnlyOnce() throws Exception {
+        List<URI> uris = new ArrayList<URI>();
+        uris.add(new URI("http://www.example.com/"));
+        uris.add(new URI("HTTP://www.example.com:80"));
+        uris.add(new URI("http://www.example.com/"));
+        BatchGet<String> batch = factory.getAll(uris, parser);
+        assertEquals(1, batch.size());
+        BatchGet.Result<String> result = batch.take();
+        assertEquals(uris.get(0), result.getURI());
+        verify(mockClient, times(1)).execute(any(HttpUriRequest.class));
+    }
+
+    @Test
+    public void respectsConcurrencyLimits() throws Exception {
+        BatchGet<String> batch = factory.getAll(uris(4, 6), parser, 6, 2);
+        assertEquals(24, takeAll(batch).size());
+        assertTrue(maxRunning.get() <= 6);
+        assertTrue(maxRunningPerHost.get() <= 2);
+    }
+
+    @Test
+    public void fetchesInParallel() throws Exception {
+        BatchGet<String> batch = factory.getAll(uris(4, 6), parser, 8, 4);
+        takeAll(batch);
+        assertTrue(maxRunning.get() > 1);
+    }
+
+    @Test
+    public void retriesRequestsTheExecutorRejects() throws Exception {
+        AsyncRequestExecutor small = new AsyncRequestExecutor(2, 1);
+        factory = new HttpResourceFactory(mockClient);
+        factory.setAsyncRequestExecutor(small);
+        try {
+            BatchGet<String> batch = factory.getAll(uris(3, 4), parser, 8, 4);
+            assertEquals(12, takeAll(batch).size());
+        } finally {
+            small.shutdown();
+        }
+    }
+
+    @Test
+    public void failsRequestsRejectedWithNothingElseRunning() throws Exception {
+        AsyncRequestExecutor stopped = new AsyncRequestExecutor(1, 1);
+        stopped.shutdown();
+        factory = new HttpResourceFactory(mockClient);
+        factory.setAsyncRequestExecutor(stopped);
+        BatchGet<String> batch = factory.getAll(uris(2, 2), parser);
+        for(int i=0; i<4; i++) {
+            BatchGet.Result<String> result = batch.poll(1L, TimeUnit.SECONDS);
+            assertNotNull(result);
+            assertTrue(result.getFailure() instanceof RejectedExecutionException);
+        }
+    }
+
+    @Test
+    public void reportsFailuresPerResource() throws Exception {
+        doThrow(new IOException()).when(mockClient).execute(any(HttpUriRequest.class));
+        BatchGet<String> batch = factory.getAll(uris(1, 2), parser);
+        for(int i=0; i<2; i++) {
+            BatchGet.Result<String> result = batch.take();
+            assertTrue(result.isFailed());
+            try {
+                result.getValue();
+                fail("should have thrown exception");
+            } catch (RuntimeException expected) {
+            }
+        }
+    }
+
+    @Test(expected=NoSuchElementException.class)
+    public void cannotTakeMoreResultsThanResources() throws Exception {
+        BatchGet<String> batch = factory.getAll(uris(1, 1), parser);
+        batch.take();
+        batch.take();
+    }
+
+    @Test(expected=IllegalArgumentException.class)
+    public void rejectsInvalidURIsUpFront() throws Exception {
+        List<URI> uris = uris(1, 1);
+        uris.add(new URI("ftp://www.example.com/"));
+        factory.getAll(uris, parser);
+    }
+}
@@ -19,6 +19,9 @@ package org.chaplib;
 
 import static org.junit.Assert.*;
 
+import java.nio.charset.Charset;
+import java.util.Locale;
+
 import org.apache.http.HeaderElement;
 import org.apache.http.NameValuePair;
 import org.apache.http.message.BasicHeaderValueParser;
@@ -72,4 +75,63 @@ public class TestContentTypeNormalizer {
         HeaderElement elt = BasicHeaderValueParser.parseHeaderElement(result, null);
         assertEquals("utf-8", elt.getParameterByName("charset").getValue());
     }
+
+    @Test
+    public void parsesComponentsOfMediaType() {
+        MediaType mt = impl.parse("Text/HTML; Charset=UTF-8; level=1");
+        assertEquals("text", mt.getType());
+        assertEquals("html", mt.getSubtype());
+        assertEquals("UTF-8", mt.getCharsetName());
+        assertEquals("1", mt.getParameter("level"));
+        assertEquals(Charset.forName("UTF-8"), mt.getCharset());
+    }
+
+    @Test
+    public void parsedMediaTypeHasDefaultCharset() {
+        MediaType mt = impl.parse("text/plain");
+        assertEquals("iso-8859-1", mt.getCharsetName());
+        assertEquals(Charset.forName("ISO-8859-1"), mt.getCharset());
+        assertEquals(impl.normalize("text/plain"), mt.toString());
+    }
+
+    @Test
+    public void unsupportedCharsetHasNoCharset() {
+        MediaType mt = impl.parse("text/plain;charset=x-no-such-charset");
+        assertEquals("x-no-such-charset", mt.getCharsetName());
+        assertNull(mt.getCharset());
+    }
+
+    @Test
+    public void reusesParsedMediaTypeForSameHeaderValue() {
+        assertSame(impl.parse("application/json"), impl.parse("application/json"));
+    }
+
+    @Test
+    public void remainsCorrectPastMemoCapacity() {
+        impl = new ContentTypeNormalizer(2);
+        for(int i = 0; i < 10; i++) {
+            MediaType mt = impl.parse("application/x-type" + i);
+            assertEquals("x-type" + i, mt.getSubtype());
+        }
+        assertEquals("x-type0", impl.parse("application/x-type0").getSubtype());
+    }
+
+    @Test
+    public void lowercasesIndependentlyOfDefaultLocale() {
+        Locale saved = Locale.getDefault();
+        Locale.setDefault(new Locale("tr", "TR"));
+        try {
+            MediaType mt = impl.parse("APPLICATION/JSON; CHARSET=UTF-8; VARIANT=1");
+            assertEquals("application", mt.getType());
+            assertEquals("UTF-8", mt.getCharsetName());
+            assertEquals("1", mt.getParameter("variant"));
+        } finally {
+            Locale.setDefault(saved);
+        }
+    }
+
+    @Test(expected=IllegalArgumentException.class)
+    public void cannotParseNullContentType() {
+        impl.parse(null);
+    }
 }
@@ -0,0 +1,166 @@
+/* 
+ * TestDirectMemoryResourceFactory.java
+ * 
+ * Copyright (C) 2012 Jonathan Moore
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *   
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.chaplib;
+
+import static org.junit.Assert.*;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+import org.apache.http.client.cache.InputLimit;
+import org.apache.http.client.cache.Resource;
+import org.apache.http.util.EntityUtils;
+import org.apache.http.entity.InputStreamEntity;
+import org.junit.Before;
+import org.junit.Test;
+
+public class TestDirectMemoryResourceFactory {
+
+    private DirectMemoryResourceFactory impl;
+
+    @Before
+    public void setUp() {
+        impl = new DirectMemoryResourceFactory(128, 64, 16);
+    }
+
+    private static byte[] bytes(int n) {
+        byte[] out = new byte[n];
+        for(int i=0; i<n; i++) {
+            out[i] = (byte)i;
+        }
+        return out;
+    }
+
+    private Resource generate(byte[] body) throws IOException {
+        return impl.generate("id", new ByteArrayInputStream(body), null);
+    }
+
+    private static byte[] contentsOf(Resource r) throws IOException {
+        InputStream in = r.getInputStream();
+        try {
+            return EntityUtils.toByteArray(new InputStreamEntity(in, -1));
+        } finally {
+            in.close();
+        }
+    }
+
+    @Test
+    public void storesBodySpanningSeveralChunks() throws Exception {
+        byte[] body = bytes(50);
+        Resource r = generate(body);
+        assertEquals(50L, r.length());
+        assertArrayEquals(body, contentsOf(r));
+        assertArrayEquals(body, contentsOf(r));
+    }
+
+    @Test
+    public void storesEmptyBody() throws Exception {
+        Resource r = generate(new byte[0]);
+        assertEquals(0L, r.length());
+        assertArrayEquals(new byte[0], contentsOf(r));
+    }
+
+    @Test
+    public void allocatesDirectMemoryBySlab() throws Exception {
+        generate(bytes(20));
+        assertEquals(64L, impl.getAllocatedBytes());
+        assertEquals(32L, impl.getFreeBytes());
+    }
+
+    @Test
+    public void disposeRecyclesMemory() throws Exception {
+        Resource r = generate(bytes(50));
+        r.dispose();
+        assertEquals(impl.getAllocatedBytes(), impl.getFreeBytes());
+    }
+
+    @Test(expected=IOException.class)
+    public void cannotReadDisposedResource() throws Exception {
+        Resource r = generate(bytes(10));
+        r.dispose();
+        r.getInputStream();
+    }
+
+    @Test
+    public void openStreamKeepsBodyAliveAfterDispose() throws Exception {
+        byte[] body = bytes(50);
+        Resource r = generate(body);
+        InputStream in = r.getInputStream();
+        r.dispose();
+        generate(bytes(60));
+        byte[] read = EntityUtils.toByteArray(new InputStreamEntity(in, -1));
+        assertArrayEquals(body, read);
+        assertTrue(impl.getFreeBytes() < impl.getAllocatedBytes());
+        in.close();
+    }
+
+    @Test
+    public void closingLastStreamRecyclesMemoryOfDisposedResource() throws Exception {
+        Resource r = generate(bytes(50));
+        InputStream in = r.getInputStream();
+        r.dispose();
+        in.close();
+        assertEquals(impl.getAllocatedBytes(), impl.getFreeBytes());
+    }
+
+    @Test
+    public void copiesShareBody() throws Exception {
+        byte[] body = bytes(30);
+        Resource r = generate(body);
+        Resource copy = impl.copy("id", r);
+        long free = impl.getFreeBytes();
+        r.dispose();
+        assertEquals(free, impl.getFreeBytes());
+        assertArrayEquals(body, contentsOf(copy));
+        copy.dispose();
+        assertEquals(impl.getAllocatedBytes(), impl.getFreeBytes());
+    }
+
+    @Test
+    public void disposingTwiceIsHarmless() throws Exception {
+        Resource r = generate(bytes(30));
+        Resource copy = impl.copy("id", r);
+        r.dispose();
+        r.dispose();
+        assertArrayEquals(bytes(30), contentsOf(copy));
+    }
+
+    @Test
+    public void fallsBackToHeapWhenDirectMemoryIsExhausted() throws Exception {
+        Resource held = generate(bytes(100));
+        byte[] body = bytes(50);
+        Resource r = generate(body);
+        assertFalse(r instanceof DirectMemoryResource);
+        assertArrayEquals(body, contentsOf(r));
+        assertArrayEquals(bytes(100), contentsOf(held));
+    }
+
+    @Test
+    public void stopsAtInputLimit() throws Exception {
+        InputLimit limit = new InputLimit(20);
+        Resource r = impl.generate("id", new ByteArrayInputStream(bytes(100)), limit);
+        assertTrue(limit.isReached());
+        assertTrue(r.length() > 20);
+    }
+
+    @Test(expected=IllegalArgumentException.class)
+    public void chunkSizeMustDivideSlabSize() {
+        new DirectMemoryResourceFactory(128, 64, 24);
+    }
+}
@@ -0,0 +1,73 @@
+/*
+ * TestFrequencySketch.java
+ *
+ * Copyright (C) 2012 Jonathan Moore
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.chaplib;
+
+import static org.junit.Assert.*;
+
+import org.junit.Before;
+import org.junit.Test;
+
+public class TestFrequencySketch {
+
+    private FrequencySketch impl;
+
+    @Before
+    public void setUp() {
+        impl = new FrequencySketch(64);
+    }
+
+    private static long hashOf(String s) {
+        return new HttpURL(s).longHashCode();
+    }
+
+    @Test
+    public void unseenKeyHasZeroFrequency() {
+        assertEquals(0, impl.frequency(hashOf("http://www.example.com/")));
+    }
+
+    @Test
+    public void countsOccurrences() {
+        long h = hashOf("http://www.example.com/");
+        for(int i=0; i<5; i++) impl.increment(h);
+        assertEquals(5, impl.frequency(h));
+    }
+
+    @Test
+    public void saturatesAtFifteen() {
+        long h = hashOf("http://www.example.com/");
+        for(int i=0; i<100; i++) impl.increment(h);
+        assertEquals(15, impl.frequency(h));
+    }
+
+    @Test
+    public void agesCountsAfterSample() {
+        long hot = hashOf("http://www.example.com/hot");
+        for(int i=0; i<8; i++) impl.increment(hot);
+        for(int i=0; i<640; i++) impl.increment(hashOf("http://www.example.com/" + i));
+        assertTrue(impl.frequency(hot) < 8);
+        assertTrue(impl.frequency(hot) > 0);
+    }
+
+    @Test
+    public void distinguishesPopularFromRareKeys() {
+        long popular = hashOf("http://www.example.com/popular");
+        for(int i=0; i<10; i++) impl.increment(popular);
+        for(int i=0; i<50; i++) impl.increment(hashOf("http://www.example.com/" + i));
+        assertTrue(impl.frequency(popular) > impl.frequency(hashOf("http://www.example.com/7")));
+    }
+}
@@ -0,0 +1,73 @@
+/*
+ * TestGenerationalCache.java
+ *
+ * Copyright (C) 2012 Jonathan Moore
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.chaplib;
+
+import static org.junit.Assert.*;
+
+import org.junit.Before;
+import org.junit.Test;
+
+public class TestGenerationalCache {
+
+    private GenerationalCache<String, Integer> impl;
+
+    @Before
+    public void setUp() {
+        impl = new GenerationalCache<String, Integer>(10);
+    }
+
+    @Test
+    public void returnsNullForUnknownKey() {
+        assertNull(impl.get("a"));
+    }
+
+    @Test
+    public void returnsCachedValue() {
+        impl.put("a", 1);
+        assertEquals(Integer.valueOf(1), impl.get("a"));
+    }
+
+    @Test
+    public void isBounded() {
+        for(int i=0; i<1000; i++) {
+            impl.put("k" + i, i);
+            assertTrue(impl.size() <= 10);
+        }
+    }
+
+    @Test
+    public void retainsRecentlyUsedEntries() {
+        impl.put("a", 1);
+        for(int i=0; i<1000; i++) {
+            assertEquals(Integer.valueOf(1), impl.get("a"));
+            impl.put("k" + i, i);
+        }
+    }
+
+    @Test
+    public void dropsEntriesThatAreNotUsed() {
+        impl.put("a", 1);
+        for(int i=0; i<10; i++) impl.put("k" + i, i);
+        assertNull(impl.get("a"));
+    }
+
+    @Test(expected=IllegalArgumentException.class)
+    public void requiresRoomForTwoGenerations() {
+        new GenerationalCache<String, Integer>(1);
+    }
+}
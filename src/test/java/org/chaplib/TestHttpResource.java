@@ -19,9 +19,20 @@ package org.chaplib;
 import static org.junit.Assert.*;
 import static org.mockito.Mockito.*;
 
+import java.io.ByteArrayInputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.net.URI;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashSet;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
 
 import org.apache.http.HttpEntity;
 import org.apache.http.HttpEntityEnclosingRequest;
@@ -33,12 +44,16 @@ import org.apache.http.client.HttpClient;
 import org.apache.http.client.methods.HttpUriRequest;
 import org.apache.http.entity.ByteArrayEntity;
 import org.apache.http.entity.InputStreamEntity;
+import org.apache.http.impl.cookie.DateUtils;
 import org.apache.http.message.BasicHttpResponse;
+import org.apache.http.util.EntityUtils;
 import org.junit.Before;
 import org.junit.Test;
 import org.junit.runner.RunWith;
 import org.mockito.ArgumentCaptor;
 import org.mockito.Mock;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
 import org.mockito.runners.MockitoJUnitRunner;
 
 @RunWith(MockitoJUnitRunner.class)
@@ -52,6 +67,7 @@ public class TestHttpResource {
     private HttpEntity entity;
     private HttpResponse response;
     private Object parsed;
+    private ResponseCache cache;
     
     @Before
     public void setUp() throws Exception {
@@ -60,7 +76,18 @@ public class TestHttpResource {
         response = new BasicHttpResponse(HttpVersion.HTTP_1_1, HttpStatus.SC_OK, "OK");
         response.setEntity(entity);
         parsed = new Object();
+        cache = new ResponseCache();
+        impl = new HttpResource(uri, mockHttpClient, cache);
+    }
+
+    @Test
+    public void standaloneResourceDoesNotCache() throws Exception {
         impl = new HttpResource(uri, mockHttpClient);
+        when(mockHttpClient.execute(any(HttpUriRequest.class)))
+            .thenReturn(cacheableResponse("max-age=3600"), cacheableResponse("max-age=3600"));
+        assertEquals("hello", impl.value(new StringParser()));
+        assertEquals("hello", impl.value(new StringParser()));
+        verify(mockHttpClient, times(2)).execute(any(HttpUriRequest.class));
     }
     
     @Test
@@ -213,4 +240,655 @@ public class TestHttpResource {
         assertFalse("".equals(ua.trim()));
     }
 
+    private static class StringParser implements ContentParser<String> {
+        public String parse(HttpEntity entity) {
+            try {
+                return EntityUtils.toString(entity);
+            } catch (IOException e) {
+                throw new RuntimeException(e);
+            }
+        }
+    }
+
+    private HttpResponse cacheableResponse(String cacheControl) {
+        HttpResponse resp = new BasicHttpResponse(HttpVersion.HTTP_1_1, HttpStatus.SC_OK, "OK");
+        resp.setHeader("Date", DateUtils.formatDate(new Date()));
+        resp.setHeader("Cache-Control", cacheControl);
+        resp.setEntity(new ByteArrayEntity("hello".getBytes()));
+        return resp;
+    }
+
+    @Test
+    public void servesFreshCachedValueWithoutRequest() throws Exception {
+        when(mockHttpClient.execute(any(HttpUriRequest.class)))
+            .thenReturn(cacheableResponse("max-age=3600"));
+        assertEquals("hello", impl.value(new StringParser()));
+        assertEquals("hello", impl.value(new StringParser()));
+        verify(mockHttpClient, times(1)).execute(any(HttpUriRequest.class));
+    }
+
+    @Test
+    public void refetchesStaleCachedValue() throws Exception {
+        when(mockHttpClient.execute(any(HttpUriRequest.class)))
+            .thenReturn(cacheableResponse("max-age=0"), cacheableResponse("max-age=0"));
+        assertEquals("hello", impl.value(new StringParser()));
+        assertEquals("hello", impl.value(new StringParser()));
+        verify(mockHttpClient, times(2)).execute(any(HttpUriRequest.class));
+    }
+
+    @Test
+    public void doesNotServeNoCacheResponseFromCache() throws Exception {
+        when(mockHttpClient.execute(any(HttpUriRequest.class)))
+            .thenReturn(cacheableResponse("max-age=3600, no-cache"),
+                        cacheableResponse("max-age=3600, no-cache"));
+        impl.value(new StringParser());
+        impl.value(new StringParser());
+        verify(mockHttpClient, times(2)).execute(any(HttpUriRequest.class));
+    }
+
+    @Test
+    public void postInvalidatesCachedValue() throws Exception {
+        when(mockHttpClient.execute(any(HttpUriRequest.class)))
+            .thenReturn(cacheableResponse("max-age=3600"), response,
+                        cacheableResponse("max-age=3600"));
+        impl.value(new StringParser());
+        impl.post(entity);
+        assertEquals("hello", impl.value(new StringParser()));
+        verify(mockHttpClient, times(3)).execute(any(HttpUriRequest.class));
+    }
+
+    @Test
+    public void deleteInvalidatesCachedValue() throws Exception {
+        when(mockHttpClient.execute(any(HttpUriRequest.class)))
+            .thenReturn(cacheableResponse("max-age=3600"), response,
+                        cacheableResponse("max-age=3600"));
+        impl.value(new StringParser());
+        impl.delete();
+        impl.value(new StringParser());
+        verify(mockHttpClient, times(3)).execute(any(HttpUriRequest.class));
+    }
+
+    @Test
+    public void putInvalidatesCachedValueAtContentLocation() throws Exception {
+        HttpResource other = new HttpResource(new URI("http://www.example.com/other"),
+                mockHttpClient, cache);
+        impl = new HttpResource(uri, mockHttpClient, cache);
+        response.setHeader("Content-Location", "/other");
+        when(mockHttpClient.execute(any(HttpUriRequest.class)))
+            .thenReturn(cacheableResponse("max-age=3600"), response,
+                        cacheableResponse("max-age=3600"));
+        other.value(new StringParser());
+        impl.replaceOrCreate(entity);
+        other.value(new StringParser());
+        verify(mockHttpClient, times(3)).execute(any(HttpUriRequest.class));
+    }
+
+    private HttpResponse notModifiedResponse(String cacheControl) {
+        HttpResponse resp = new BasicHttpResponse(HttpVersion.HTTP_1_1,
+                HttpStatus.SC_NOT_MODIFIED, "Not Modified");
+        resp.setHeader("Date", DateUtils.formatDate(new Date()));
+        resp.setHeader("Cache-Control", cacheControl);
+        return resp;
+    }
+
+    @Test
+    public void revalidatesStaleEntryWithETag() throws Exception {
+        HttpResponse first = cacheableResponse("max-age=0");
+        first.setHeader("ETag", "\"abc\"");
+        ArgumentCaptor<HttpUriRequest> arg = ArgumentCaptor.forClass(HttpUriRequest.class);
+        when(mockHttpClient.execute(arg.capture()))
+            .thenReturn(first, notModifiedResponse("max-age=0"));
+        impl.value(new StringParser());
+        assertEquals("hello", impl.value(new StringParser()));
+        assertEquals("\"abc\"", arg.getValue().getFirstHeader("If-None-Match").getValue());
+    }
+
+    @Test
+    public void revalidatesStaleEntryWithLastModified() throws Exception {
+        HttpResponse first = cacheableResponse("max-age=0");
+        String lastModified = DateUtils.formatDate(new Date(0L));
+        first.setHeader("Last-Modified", lastModified);
+        ArgumentCaptor<HttpUriRequest> arg = ArgumentCaptor.forClass(HttpUriRequest.class);
+        when(mockHttpClient.execute(arg.capture()))
+            .thenReturn(first, notModifiedResponse("max-age=0"));
+        impl.value(new StringParser());
+        assertEquals("hello", impl.value(new StringParser()));
+        assertEquals(lastModified, arg.getValue().getFirstHeader("If-Modified-Since").getValue());
+    }
+
+    @Test
+    public void notModifiedResponseRefreshesCachedEntry() throws Exception {
+        HttpResponse first = cacheableResponse("max-age=0");
+        first.setHeader("ETag", "\"abc\"");
+        when(mockHttpClient.execute(any(HttpUriRequest.class)))
+            .thenReturn(first, notModifiedResponse("max-age=3600"));
+        impl.value(new StringParser());
+        impl.value(new StringParser());
+        assertEquals("hello", impl.value(new StringParser()));
+        verify(mockHttpClient, times(2)).execute(any(HttpUriRequest.class));
+    }
+
+    @Test
+    public void revalidatesNoCacheEntryEvenIfFresh() throws Exception {
+        HttpResponse first = cacheableResponse("max-age=3600, no-cache");
+        first.setHeader("ETag", "\"abc\"");
+        when(mockHttpClient.execute(any(HttpUriRequest.class)))
+            .thenReturn(first, notModifiedResponse("max-age=3600, no-cache"));
+        impl.value(new StringParser());
+        assertEquals("hello", impl.value(new StringParser()));
+        verify(mockHttpClient, times(2)).execute(any(HttpUriRequest.class));
+    }
+
+    @Test
+    public void doesNotSendValidatorsIfEntryHasNone() throws Exception {
+        ArgumentCaptor<HttpUriRequest> arg = ArgumentCaptor.forClass(HttpUriRequest.class);
+        when(mockHttpClient.execute(arg.capture()))
+            .thenReturn(cacheableResponse("max-age=0"), cacheableResponse("max-age=0"));
+        impl.value(new StringParser());
+        impl.value(new StringParser());
+        assertNull(arg.getValue().getFirstHeader("If-None-Match"));
+        assertNull(arg.getValue().getFirstHeader("If-Modified-Since"));
+    }
+
+    @Test
+    public void servesStaleWhileRevalidatingInBackground() throws Exception {
+        HttpResponse second = cacheableResponse("max-age=3600");
+        second.setEntity(new ByteArrayEntity("world".getBytes()));
+        when(mockHttpClient.execute(any(HttpUriRequest.class)))
+            .thenReturn(cacheableResponse("max-age=0, stale-while-revalidate=60"), second);
+        impl.value(new StringParser());
+        assertEquals("hello", impl.value(new StringParser()));
+        verify(mockHttpClient, timeout(1000).times(2)).execute(any(HttpUriRequest.class));
+        long deadline = System.currentTimeMillis() + 1000L;
+        String result = null;
+        while (!"world".equals(result) && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10L);
+            result = impl.value(new StringParser());
+        }
+        assertEquals("world", result);
+    }
+
+    @Test
+    public void doesNotServeStaleWhileRevalidatingIfMustRevalidate() throws Exception {
+        when(mockHttpClient.execute(any(HttpUriRequest.class)))
+            .thenReturn(cacheableResponse("max-age=0, stale-while-revalidate=60, must-revalidate"),
+                        cacheableResponse("max-age=3600"));
+        impl.value(new StringParser());
+        impl.value(new StringParser());
+        verify(mockHttpClient, times(2)).execute(any(HttpUriRequest.class));
+    }
+
+    @Test
+    public void servesStaleIfErrorOnServerError() throws Exception {
+        HttpResponse error = new BasicHttpResponse(HttpVersion.HTTP_1_1,
+                HttpStatus.SC_SERVICE_UNAVAILABLE, "Service Unavailable");
+        error.setEntity(new ByteArrayEntity("oops".getBytes()));
+        when(mockHttpClient.execute(any(HttpUriRequest.class)))
+            .thenReturn(cacheableResponse("max-age=0, stale-if-error=60"), error);
+        impl.value(new StringParser());
+        assertEquals("hello", impl.value(new StringParser()));
+    }
+
+    @Test
+    public void servesStaleIfErrorOnIOException() throws Exception {
+        when(mockHttpClient.execute(any(HttpUriRequest.class)))
+            .thenReturn(cacheableResponse("max-age=0, stale-if-error=60"))
+            .thenThrow(new IOException());
+        impl.value(new StringParser());
+        assertEquals("hello", impl.value(new StringParser()));
+    }
+
+    @Test
+    public void servesStaleIfErrorWhenBodyCannotBeRead() throws Exception {
+        HttpResponse truncated = cacheableResponse("max-age=3600");
+        truncated.setEntity(new InputStreamEntity(mockInputStream, -1));
+        when(mockInputStream.read(any(byte[].class), anyInt(), anyInt()))
+            .thenThrow(new IOException());
+        when(mockInputStream.read(any(byte[].class))).thenThrow(new IOException());
+        when(mockInputStream.read()).thenThrow(new IOException());
+        when(mockHttpClient.execute(any(HttpUriRequest.class)))
+            .thenReturn(cacheableResponse("max-age=0, stale-if-error=60"), truncated);
+        impl.value(new StringParser());
+        assertEquals("hello", impl.value(new StringParser()));
+    }
+
+    @Test(expected=RuntimeException.class)
+    public void doesNotServeStaleOnUnreadableBodyWithoutStaleIfError() throws Exception {
+        HttpResponse truncated = cacheableResponse("max-age=3600");
+        truncated.setEntity(new InputStreamEntity(mockInputStream, -1));
+        when(mockInputStream.read(any(byte[].class), anyInt(), anyInt()))
+            .thenThrow(new IOException());
+        when(mockInputStream.read(any(byte[].class))).thenThrow(new IOException());
+        when(mockInputStream.read()).thenThrow(new IOException());
+        when(mockHttpClient.execute(any(HttpUriRequest.class)))
+            .thenReturn(cacheableResponse("max-age=0"), truncated);
+        impl.value(new StringParser());
+        impl.value(new StringParser());
+    }
+
+    @Test(expected=RuntimeException.class)
+    public void doesNotServeStaleOnErrorWithoutStaleIfError() throws Exception {
+        when(mockHttpClient.execute(any(HttpUriRequest.class)))
+            .thenReturn(cacheableResponse("max-age=0"))
+            .thenThrow(new IOException());
+        impl.value(new StringParser());
+        impl.value(new StringParser());
+    }
+
+    @Test(expected=RuntimeException.class)
+    public void doesNotServeStaleIfErrorIfMustRevalidate() throws Exception {
+        when(mockHttpClient.execute(any(HttpUriRequest.class)))
+            .thenReturn(cacheableResponse("max-age=0, stale-if-error=60, must-revalidate"))
+            .thenThrow(new IOException());
+        impl.value(new StringParser());
+        impl.value(new StringParser());
+    }
+
+    @Test
+    public void serverErrorDoesNotEvictStaleEntry() throws Exception {
+        HttpResponse error = new BasicHttpResponse(HttpVersion.HTTP_1_1,
+                HttpStatus.SC_SERVICE_UNAVAILABLE, "Service Unavailable");
+        error.setEntity(new ByteArrayEntity("oops".getBytes()));
+        impl = new HttpResource(uri, mockHttpClient, cache);
+        when(mockHttpClient.execute(any(HttpUriRequest.class)))
+            .thenReturn(cacheableResponse("max-age=0"), error);
+        impl.value(new StringParser());
+        assertEquals("oops", impl.value(new StringParser()));
+        assertNotNull(cache.get(new HttpURL(uri)));
+    }
+
+    private Answer<HttpResponse> slowly(final HttpResponse resp) {
+        return new Answer<HttpResponse>() {
+            public HttpResponse answer(InvocationOnMock invocation) throws Throwable {
+                Thread.sleep(100L);
+                return resp;
+            }
+        };
+    }
+
+    private void callValueConcurrently(int n, final AtomicReference<Object> result,
+            final AtomicReference<Throwable> failure) throws Exception {
+        final CountDownLatch done = new CountDownLatch(n);
+        Runnable r = new Runnable() {
+            public void run() {
+                try {
+                    Object out = impl.value(mockParser);
+                    if (!result.compareAndSet(null, out) && result.get() != out) {
+                        fail("different results");
+                    }
+                } catch (Throwable t) {
+                    failure.set(t);
+                } finally {
+                    done.countDown();
+                }
+            }
+        };
+        for(int i=0; i<n; i++) {
+            (new Thread(r)).start();
+        }
+        assertTrue(done.await(1L, TimeUnit.SECONDS));
+    }
+
+    @Test
+    public void concurrentValueCallsShareOneRequest() throws Exception {
+        when(mockHttpClient.execute(any(HttpUriRequest.class))).thenAnswer(slowly(response));
+        when(mockParser.parse(any(HttpEntity.class))).thenReturn(parsed);
+        AtomicReference<Object> result = new AtomicReference<Object>();
+        AtomicReference<Throwable> failure = new AtomicReference<Throwable>();
+        callValueConcurrently(4, result, failure);
+        assertNull(failure.get());
+        assertSame(parsed, result.get());
+        verify(mockHttpClient, times(1)).execute(any(HttpUriRequest.class));
+    }
+
+    @Test
+    public void concurrentValueCallsShareFailure() throws Exception {
+        when(mockHttpClient.execute(any(HttpUriRequest.class))).thenAnswer(slowly(response));
+        when(mockParser.parse(any(HttpEntity.class))).thenThrow(new IllegalStateException());
+        AtomicReference<Object> result = new AtomicReference<Object>();
+        AtomicReference<Throwable> failure = new AtomicReference<Throwable>();
+        callValueConcurrently(4, result, failure);
+        assertTrue(failure.get() instanceof IllegalStateException);
+        verify(mockHttpClient, times(1)).execute(any(HttpUriRequest.class));
+    }
+
+    private void callValueConcurrentlyWithOwnParsers(int n, final List<String> results)
+            throws Exception {
+        final CountDownLatch done = new CountDownLatch(n);
+        Runnable r = new Runnable() {
+            public void run() {
+                try {
+                    results.add(impl.value(new StringParser()));
+                } finally {
+                    done.countDown();
+                }
+            }
+        };
+        for(int i=0; i<n; i++) {
+            (new Thread(r)).start();
+        }
+        assertTrue(done.await(1L, TimeUnit.SECONDS));
+    }
+
+    @Test
+    public void concurrentCallersWithOwnParsersShareOneRequest() throws Exception {
+        response.setEntity(new ByteArrayEntity("hello".getBytes()));
+        when(mockHttpClient.execute(any(HttpUriRequest.class))).thenAnswer(slowly(response));
+        List<String> results = Collections.synchronizedList(new ArrayList<String>());
+        callValueConcurrentlyWithOwnParsers(8, results);
+        assertEquals(Collections.nCopies(8, "hello"), results);
+        verify(mockHttpClient, times(1)).execute(any(HttpUriRequest.class));
+    }
+
+    @Test
+    public void concurrentCallersShareOneCachedBody() throws Exception {
+        DirectMemoryResourceFactory memory = new DirectMemoryResourceFactory(64, 64, 16);
+        cache = new ResponseCache(10, 64, memory);
+        impl = new HttpResource(uri, mockHttpClient, cache);
+        when(mockHttpClient.execute(any(HttpUriRequest.class)))
+            .thenAnswer(slowly(cacheableResponse("max-age=3600")));
+        List<String> results = Collections.synchronizedList(new ArrayList<String>());
+        callValueConcurrentlyWithOwnParsers(8, results);
+        assertEquals(Collections.nCopies(8, "hello"), results);
+        verify(mockHttpClient, times(1)).execute(any(HttpUriRequest.class));
+        cache.invalidate(new HttpURL(uri));
+        assertEquals(memory.getAllocatedBytes(), memory.getFreeBytes());
+    }
+
+    private Answer<HttpResponse> slowlyStreaming(final String body) {
+        return new Answer<HttpResponse>() {
+            public HttpResponse answer(InvocationOnMock invocation) throws Throwable {
+                Thread.sleep(100L);
+                HttpResponse resp = new BasicHttpResponse(HttpVersion.HTTP_1_1,
+                        HttpStatus.SC_OK, "OK");
+                resp.setEntity(new InputStreamEntity(
+                        new ByteArrayInputStream(body.getBytes()), -1));
+                return resp;
+            }
+        };
+    }
+
+    @Test
+    public void doesNotBufferSharedBodiesTooLargeForCache() throws Exception {
+        cache = new ResponseCache(10, 4);
+        impl = new HttpResource(uri, mockHttpClient, cache);
+        when(mockHttpClient.execute(any(HttpUriRequest.class)))
+            .thenAnswer(slowlyStreaming("hello"));
+        List<String> results = Collections.synchronizedList(new ArrayList<String>());
+        callValueConcurrentlyWithOwnParsers(4, results);
+        assertEquals(Collections.nCopies(4, "hello"), results);
+        verify(mockHttpClient, atLeast(2)).execute(any(HttpUriRequest.class));
+    }
+
+    @Test
+    public void buffersSharedBodiesThatFitInCache() throws Exception {
+        cache = new ResponseCache(10, 5);
+        impl = new HttpResource(uri, mockHttpClient, cache);
+        when(mockHttpClient.execute(any(HttpUriRequest.class)))
+            .thenAnswer(slowlyStreaming("hello"));
+        List<String> results = Collections.synchronizedList(new ArrayList<String>());
+        callValueConcurrentlyWithOwnParsers(4, results);
+        assertEquals(Collections.nCopies(4, "hello"), results);
+        verify(mockHttpClient, times(1)).execute(any(HttpUriRequest.class));
+    }
+
+    @Test
+    public void sequentialValueCallsAreNotCollapsed() throws Exception {
+        when(mockHttpClient.execute(any(HttpUriRequest.class))).thenReturn(response);
+        impl.value(mockParser);
+        impl.value(mockParser);
+        verify(mockHttpClient, times(2)).execute(any(HttpUriRequest.class));
+    }
+
+    @Test
+    public void valueAsyncCompletesWithParsedValue() throws Exception {
+        when(mockHttpClient.execute(any(HttpUriRequest.class))).thenReturn(response);
+        when(mockParser.parse(entity)).thenReturn(parsed);
+        assertSame(parsed, impl.valueAsync(mockParser).get(1L, TimeUnit.SECONDS));
+    }
+
+    @Test
+    public void valueAsyncCompletesImmediatelyFromFreshCache() throws Exception {
+        when(mockHttpClient.execute(any(HttpUriRequest.class)))
+            .thenReturn(cacheableResponse("max-age=3600"));
+        StringParser parser = new StringParser();
+        impl.value(parser);
+        ResultFuture<String> future = impl.valueAsync(parser);
+        assertTrue(future.isDone());
+        assertEquals("hello", future.get());
+        verify(mockHttpClient, times(1)).execute(any(HttpUriRequest.class));
+    }
+
+    @Test
+    public void valueAsyncLooksUpCacheOnce() throws Exception {
+        impl = new HttpResource(uri, mockHttpClient, cache);
+        when(mockHttpClient.execute(any(HttpUriRequest.class))).thenReturn(response);
+        impl.valueAsync(mockParser).get(1L, TimeUnit.SECONDS);
+        assertEquals(0L, cache.getHitCount());
+        assertEquals(1L, cache.getMissCount());
+    }
+
+    @Test
+    public void concurrentValueAsyncCallsShareOneRequestOnOneThread() throws Exception {
+        impl = resourceWith(new AsyncRequestExecutor(1, 10), null);
+        response.setEntity(new ByteArrayEntity("hello".getBytes()));
+        when(mockHttpClient.execute(any(HttpUriRequest.class))).thenAnswer(slowly(response));
+        List<ResultFuture<String>> futures = new ArrayList<ResultFuture<String>>();
+        for(int i=0; i<4; i++) {
+            futures.add(impl.valueAsync(new StringParser()));
+        }
+        for(ResultFuture<String> future : futures) {
+            assertEquals("hello", future.get(1L, TimeUnit.SECONDS));
+        }
+        verify(mockHttpClient, times(1)).execute(any(HttpUriRequest.class));
+    }
+
+    @Test
+    public void callersSharingARequestEachHearOfTheExchange() throws Exception {
+        LifecycleListeners lifecycle = new LifecycleListeners();
+        final List<RequestLifecycleEvent> events =
+            Collections.synchronizedList(new ArrayList<RequestLifecycleEvent>());
+        lifecycle.add(new RequestLifecycleListener() {
+            public void phaseCompleted(RequestLifecycleEvent event) {
+                events.add(event);
+            }
+        });
+        impl = new HttpResource(uri, new HttpURL(uri), mockHttpClient, cache,
+                new BackgroundRevalidator(), new AsyncRequestExecutor(1, 10), null, lifecycle);
+        response.setEntity(new ByteArrayEntity("hello".getBytes()));
+        when(mockHttpClient.execute(any(HttpUriRequest.class))).thenAnswer(slowly(response));
+        List<ResultFuture<String>> futures = new ArrayList<ResultFuture<String>>();
+        for(int i=0; i<4; i++) {
+            futures.add(impl.valueAsync(new StringParser()));
+        }
+        for(ResultFuture<String> future : futures) {
+            assertEquals("hello", future.get(1L, TimeUnit.SECONDS));
+        }
+        List<Long> exchanged = new ArrayList<Long>();
+        List<Long> parsed = new ArrayList<Long>();
+        int shared = 0;
+        for(RequestLifecycleEvent e : events) {
+            if (e.getPhase() == RequestLifecycleEvent.Phase.EXCHANGE) {
+                exchanged.add(e.getCallId());
+                if (e.isShared()) shared++;
+            } else if (e.getPhase() == RequestLifecycleEvent.Phase.PARSE) {
+                parsed.add(e.getCallId());
+            }
+        }
+        assertEquals(4, exchanged.size());
+        assertEquals(3, shared);
+        Collections.sort(exchanged);
+        Collections.sort(parsed);
+        assertEquals(exchanged, parsed);
+        assertEquals(4, new HashSet<Long>(exchanged).size());
+    }
+
+    @Test
+    public void valueAsyncFailsIfExecutorRejectsRequest() throws Exception {
+        AsyncRequestExecutor executor = new AsyncRequestExecutor(1, 1);
+        executor.shutdown();
+        impl = resourceWith(executor, null);
+        try {
+            impl.valueAsync(mockParser).get(1L, TimeUnit.SECONDS);
+            fail("should have thrown exception");
+        } catch (ExecutionException expected) {
+            assertTrue(expected.getCause() instanceof RejectedExecutionException);
+        }
+        when(mockHttpClient.execute(any(HttpUriRequest.class))).thenReturn(response);
+        when(mockParser.parse(entity)).thenReturn(parsed);
+        assertSame(parsed, impl.value(mockParser));
+    }
+
+    @Test
+    public void valueAsyncReportsFailure() throws Exception {
+        when(mockHttpClient.execute(any(HttpUriRequest.class))).thenThrow(new IOException());
+        try {
+            impl.valueAsync(mockParser).get(1L, TimeUnit.SECONDS);
+            fail("should have thrown exception");
+        } catch (ExecutionException expected) {
+            assertTrue(expected.getCause() instanceof RuntimeException);
+        }
+    }
+
+    @Test
+    public void deleteAsyncIssuesDelete() throws Exception {
+        ArgumentCaptor<HttpUriRequest> arg = ArgumentCaptor.forClass(HttpUriRequest.class);
+        when(mockHttpClient.execute(arg.capture())).thenReturn(response);
+        impl.deleteAsync().get(1L, TimeUnit.SECONDS);
+        assertEquals("DELETE", arg.getValue().getMethod());
+    }
+
+    @Test
+    public void replaceOrCreateAsyncIssuesPut() throws Exception {
+        ArgumentCaptor<HttpUriRequest> arg = ArgumentCaptor.forClass(HttpUriRequest.class);
+        when(mockHttpClient.execute(arg.capture())).thenReturn(response);
+        impl.replaceOrCreateAsync(entity).get(1L, TimeUnit.SECONDS);
+        assertEquals("PUT", arg.getValue().getMethod());
+        assertSame(entity, ((HttpEntityEnclosingRequest)arg.getValue()).getEntity());
+    }
+
+    @Test
+    public void postAsyncIssuesPost() throws Exception {
+        ArgumentCaptor<HttpUriRequest> arg = ArgumentCaptor.forClass(HttpUriRequest.class);
+        when(mockHttpClient.execute(arg.capture())).thenReturn(response);
+        impl.postAsync(entity).get(1L, TimeUnit.SECONDS);
+        assertEquals("POST", arg.getValue().getMethod());
+        assertSame(entity, ((HttpEntityEnclosingRequest)arg.getValue()).getEntity());
+    }
+
+    @Test
+    public void releasesCachedBodyStreamsParsersLeaveOpen() throws Exception {
+        DirectMemoryResourceFactory memory = new DirectMemoryResourceFactory(64, 64, 16);
+        cache = new ResponseCache(10, 64, memory);
+        impl = new HttpResource(uri, mockHttpClient, cache);
+        when(mockHttpClient.execute(any(HttpUriRequest.class)))
+            .thenReturn(cacheableResponse("max-age=3600"));
+        ContentParser<Integer> careless = new ContentParser<Integer>() {
+            public Integer parse(HttpEntity entity) {
+                try {
+                    return entity.getContent().read();
+                } catch (IOException e) {
+                    throw new RuntimeException(e);
+                }
+            }
+        };
+        impl.value(careless);
+        assertEquals(Integer.valueOf('h'), impl.value(careless));
+        cache.invalidate(new HttpURL(uri));
+        assertEquals(memory.getAllocatedBytes(), memory.getFreeBytes());
+    }
+
+    private HttpResource resourceWith(AsyncRequestExecutor executor, HttpMetrics metrics) {
+        return new HttpResource(uri, new HttpURL(uri), mockHttpClient, cache,
+                new BackgroundRevalidator(), executor, metrics, new LifecycleListeners());
+    }
+
+    private HttpResource meteredResource(HttpMetrics metrics) {
+        return resourceWith(new AsyncRequestExecutor(), metrics);
+    }
+
+    @Test
+    public void reportsValueTrafficToMetrics() throws Exception {
+        HistogramHttpMetrics metrics = new HistogramHttpMetrics();
+        impl = meteredResource(metrics);
+        response.setEntity(new ByteArrayEntity("hello".getBytes()));
+        when(mockHttpClient.execute(any(HttpUriRequest.class))).thenReturn(response);
+        Object out = impl.value(new ContentParser<Object>() {
+            public Object parse(HttpEntity entity) {
+                try {
+                    return EntityUtils.toString(entity);
+                } catch (IOException e) {
+                    throw new RuntimeException(e);
+                }
+            }
+        });
+        assertEquals("hello", out);
+        assertEquals(1L, metrics.getLatencyForHost("www.example.com").getCount());
+        assertEquals(1L, metrics.getLatencyForMethod("GET").getCount());
+        assertEquals(1L, metrics.getOriginLatencyForHost("www.example.com").getCount());
+        assertEquals(1L, metrics.getStatusCount(HttpStatus.SC_OK));
+        assertEquals(5L, metrics.getBytesReceived());
+        assertEquals(1L, metrics.getCollapserLeaderCount());
+        assertEquals(0L, metrics.getFailedOperationCount());
+    }
+
+    @Test
+    public void reportsSharedRequestsToMetrics() throws Exception {
+        HistogramHttpMetrics metrics = new HistogramHttpMetrics();
+        impl = resourceWith(new AsyncRequestExecutor(1, 10), metrics);
+        response.setEntity(new ByteArrayEntity("hello".getBytes()));
+        when(mockHttpClient.execute(any(HttpUriRequest.class))).thenAnswer(slowly(response));
+        List<ResultFuture<String>> futures = new ArrayList<ResultFuture<String>>();
+        for(int i=0; i<3; i++) {
+            futures.add(impl.valueAsync(new StringParser()));
+        }
+        for(ResultFuture<String> future : futures) {
+            assertEquals("hello", future.get(1L, TimeUnit.SECONDS));
+        }
+        assertEquals(1L, metrics.getCollapserLeaderCount());
+        assertEquals(2L, metrics.getCollapserFollowerCount());
+        assertEquals(2L, metrics.getCollapserWaitLatency().getCount());
+    }
+
+    @Test
+    public void reportsBytesSentToMetrics() throws Exception {
+        HistogramHttpMetrics metrics = new HistogramHttpMetrics();
+        impl = meteredResource(metrics);
+        when(mockHttpClient.execute(any(HttpUriRequest.class))).thenReturn(response);
+        impl.post(new ByteArrayEntity("abc".getBytes()));
+        impl.replaceOrCreate(new ByteArrayEntity("defg".getBytes()));
+        impl.delete();
+        assertEquals(7L, metrics.getBytesSent());
+        assertEquals(1L, metrics.getLatencyForMethod("POST").getCount());
+        assertEquals(1L, metrics.getLatencyForMethod("PUT").getCount());
+        assertEquals(1L, metrics.getLatencyForMethod("DELETE").getCount());
+        assertEquals(3L, metrics.getStatusCount(HttpStatus.SC_OK));
+    }
+
+    @Test
+    public void reportsFailedRequestsToMetrics() throws Exception {
+        HistogramHttpMetrics metrics = new HistogramHttpMetrics();
+        impl = meteredResource(metrics);
+        when(mockHttpClient.execute(any(HttpUriRequest.class))).thenThrow(new IOException());
+        try {
+            impl.delete();
+            fail("should have thrown");
+        } catch (RuntimeException expected) {
+        }
+        assertEquals(1L, metrics.getFailedOperationCount());
+        assertEquals(1L, metrics.getStatusCount(0));
+    }
+
+    @Test
+    public void reportsCacheHitsAsOperationsWithoutExchanges() throws Exception {
+        HistogramHttpMetrics metrics = new HistogramHttpMetrics();
+        impl = meteredResource(metrics);
+        response.setHeader("Date", DateUtils.formatDate(new Date()));
+        response.setHeader("Cache-Control", "max-age=3600");
+        when(mockHttpClient.execute(any(HttpUriRequest.class))).thenReturn(response);
+        impl.value(mockParser);
+        impl.value(mockParser);
+        assertEquals(2L, metrics.getLatencyForMethod("GET").getCount());
+        assertEquals(1L, metrics.getOriginLatencyForHost("www.example.com").getCount());
+    }
 }
@@ -18,9 +18,26 @@
 package org.chaplib;
 
 import static org.junit.Assert.*;
+import static org.mockito.Mockito.*;
 
 import java.net.URI;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.http.HttpEntity;
+import org.apache.http.HttpResponse;
+import org.apache.http.HttpStatus;
+import org.apache.http.HttpVersion;
 import org.apache.http.client.HttpClient;
+import org.apache.http.client.methods.HttpUriRequest;
+import org.apache.http.entity.ByteArrayEntity;
+import org.apache.http.message.BasicHttpResponse;
+import org.junit.After;
 import org.junit.Before;
 import org.junit.Test;
 import org.junit.runner.RunWith;
@@ -39,6 +56,11 @@ public class TestHttpResourceFactory {
         uri = new URI("http://www.example.com/");
         impl = new HttpResourceFactory(mockClient);
     }
+
+    @After
+    public void tearDown() {
+        impl.shutdown();
+    }
     
     @Test
     public void canGetResourceFromString() {
@@ -61,4 +83,181 @@ public class TestHttpResourceFactory {
         URI uri2 = new URI("http://foo.example.com/bar/baz/quxx");
         assertFalse(impl.get(uri) == impl.get(uri2));
     }
+
+    @Test
+    public void retainsResourceWhileInUse() {
+        HttpResource r = impl.get(uri);
+        for(int i=0; i<3; i++) {
+            System.gc();
+        }
+        assertSame(r, impl.get(uri));
+    }
+
+    @Test
+    public void concurrentCallersGetSameHttpResource() throws Exception {
+        final HttpResource expected = impl.get(uri);
+        final AtomicInteger mismatches = new AtomicInteger(0);
+        final CountDownLatch done = new CountDownLatch(8);
+        for(int i=0; i<8; i++) {
+            (new Thread(new Runnable() {
+                public void run() {
+                    for(int j=0; j<1000; j++) {
+                        if (impl.get(uri) != expected) mismatches.incrementAndGet();
+                    }
+                    done.countDown();
+                }
+            })).start();
+        }
+        assertTrue(done.await(5L, TimeUnit.SECONDS));
+        assertEquals(0, mismatches.get());
+    }
+
+    @Test
+    public void equivalentURIsUnderConfiguredNormalizationShareHttpResource() throws Exception {
+        impl.setURLNormalization(URLNormalization.RFC_3986);
+        URI uri2 = new URI("http://foo.example.com/bar/./baz/qux/../quux");
+        assertSame(impl.get(new URI("http://foo.example.com/bar/baz/quux")), impl.get(uri2));
+    }
+
+    @Test
+    public void canLookUpURLsInPool() throws Exception {
+        impl.setURLPool(new HttpURLPool());
+        assertSame(impl.get(uri), impl.get(new URI("HTTP://www.example.com:80")));
+    }
+
+    @Test
+    public void reportsLookupsToMetrics() throws Exception {
+        HistogramHttpMetrics metrics = new HistogramHttpMetrics();
+        impl.setMetrics(metrics);
+        HttpResource r = impl.get(new URI("http://www.example.com/"));
+        assertSame(r, impl.get(new URI("http://WWW.EXAMPLE.COM/")));
+        assertEquals(2L, metrics.getLookupLatency().getCount());
+        assertEquals(1L, metrics.getResourcesCreated());
+    }
+
+    @Test(expected=IllegalStateException.class)
+    public void cannotBeReconfiguredOnceResourcesAreLookedUp() throws Exception {
+        impl.get(uri);
+        impl.setResponseCache(new ResponseCache());
+    }
+
+    @Test
+    public void shutdownStopsItsOwnExecutor() throws Exception {
+        HttpResource r = impl.get(uri);
+        impl.shutdown();
+        try {
+            r.deleteAsync().get(1L, TimeUnit.SECONDS);
+            fail("should have thrown exception");
+        } catch (ExecutionException expected) {
+            assertTrue(expected.getCause() instanceof RejectedExecutionException);
+        }
+    }
+
+    @Test
+    public void canShutDownUnusedFactory() throws Exception {
+        impl.shutdown();
+    }
+
+    @Test
+    public void shutdownLeavesGivenExecutorRunning() throws Exception {
+        AsyncRequestExecutor executor = new AsyncRequestExecutor();
+        impl.setAsyncRequestExecutor(executor);
+        HttpResponse resp = new BasicHttpResponse(HttpVersion.HTTP_1_1,
+                HttpStatus.SC_NO_CONTENT, "No Content");
+        when(mockClient.execute(any(HttpUriRequest.class))).thenReturn(resp);
+        HttpResource r = impl.get(uri);
+        impl.shutdown();
+        try {
+            r.deleteAsync().get(1L, TimeUnit.SECONDS);
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    private static class RecordingListener implements RequestLifecycleListener {
+        final List<RequestLifecycleEvent> events = new ArrayList<RequestLifecycleEvent>();
+
+        public synchronized void phaseCompleted(RequestLifecycleEvent event) {
+            events.add(event);
+        }
+
+        synchronized String phases() {
+            StringBuilder sb = new StringBuilder();
+            for(RequestLifecycleEvent e : events) {
+                if (sb.length() > 0) sb.append(",");
+                sb.append(e.getPhase());
+                if (e.getMethod() != null) sb.append(":").append(e.getMethod());
+            }
+            return sb.toString();
+        }
+    }
+
+    private void respondWith(String body) throws Exception {
+        HttpResponse resp = new BasicHttpResponse(HttpVersion.HTTP_1_1, HttpStatus.SC_OK, "OK");
+        resp.setEntity(new ByteArrayEntity(body.getBytes()));
+        when(mockClient.execute(any(HttpUriRequest.class))).thenReturn(resp);
+    }
+
+    private static final ContentParser<Object> IGNORE_BODY = new ContentParser<Object>() {
+        public Object parse(HttpEntity entity) {
+            return null;
+        }
+    };
+
+    @Test
+    public void reportsLifecyclePhasesToListeners() throws Exception {
+        RecordingListener listener = new RecordingListener();
+        impl.addLifecycleListener(listener);
+        respondWith("hello");
+        HttpResource r = impl.get(uri);
+        r.value(IGNORE_BODY);
+        r.delete();
+        assertEquals("CANONICALIZATION,LOOKUP,EXCHANGE:GET,PARSE:GET,CONSUME:GET,"
+                + "EXCHANGE:DELETE,CONSUME:DELETE", listener.phases());
+        long previous = Long.MIN_VALUE;
+        for(RequestLifecycleEvent e : listener.events) {
+            assertEquals(new HttpURL(uri), e.getURL());
+            assertTrue(e.getDurationNanos() >= 0L);
+            assertTrue(e.getStartNanos() >= previous);
+            assertTrue(e.getTimestamp() <= System.currentTimeMillis());
+            previous = e.getStartNanos();
+        }
+        List<RequestLifecycleEvent> events = listener.events;
+        assertEquals(events.get(0).getCallId(), events.get(1).getCallId());
+        assertEquals(events.get(2).getCallId(), events.get(4).getCallId());
+        assertEquals(events.get(5).getCallId(), events.get(6).getCallId());
+        assertTrue(events.get(1).getCallId() != events.get(2).getCallId());
+        assertTrue(events.get(4).getCallId() != events.get(5).getCallId());
+        assertFalse(events.get(2).isShared());
+    }
+
+    @Test
+    public void listenersHearAboutExistingResources() throws Exception {
+        respondWith("hello");
+        HttpResource r = impl.get(uri);
+        RecordingListener listener = new RecordingListener();
+        impl.addLifecycleListener(listener);
+        r.value(IGNORE_BODY);
+        assertEquals("EXCHANGE:GET,PARSE:GET,CONSUME:GET", listener.phases());
+    }
+
+    @Test
+    public void removedListenersHearNothing() throws Exception {
+        RecordingListener listener = new RecordingListener();
+        impl.addLifecycleListener(listener);
+        impl.removeLifecycleListener(listener);
+        impl.get(uri);
+        assertEquals("", listener.phases());
+    }
+
+    @Test
+    public void failingListenerDoesNotBreakRequests() throws Exception {
+        impl.addLifecycleListener(new RequestLifecycleListener() {
+            public void phaseCompleted(RequestLifecycleEvent event) {
+                throw new IllegalStateException();
+            }
+        });
+        respondWith("hello");
+        impl.get(uri).value(IGNORE_BODY);
+    }
 }
@@ -200,4 +200,88 @@ public class TestHttpURL {
         String s = "http://ABC.com:/%7esmith/home.html";
         assertEquals(new HttpURL(s), new HttpURL(new URL(s)));
     }
+
+    @Test
+    public void equivalentURLsHaveSameHashCodes() {
+        HttpURL url1 = new HttpURL("http://abc.com:80/~smith/home.html");
+        HttpURL url2 = new HttpURL("HTTP://ABC.com:/%7esmith/home.html");
+        assertEquals(url1.hashCode(), url2.hashCode());
+        assertEquals(url1.longHashCode(), url2.longHashCode());
+    }
+
+    @Test
+    public void exposesCanonicalComponents() {
+        HttpURL url = new HttpURL("HTTPS://WWW.Example.COM/%7Esmith/home.html?q=1");
+        assertEquals("https", url.getScheme());
+        assertEquals("www.example.com", url.getHost());
+        assertEquals(443, url.getPort());
+        assertEquals("/~smith/home.html?q=1", url.getFile());
+    }
+
+    @Test
+    public void stringFormIsCanonical() {
+        assertEquals("http://abc.com:80/~smith/home.html",
+                new HttpURL("HTTP://ABC.com:/%7esmith/home.html").toString());
+    }
+
+    private static HttpURL rfc3986(String s) {
+        return new HttpURL(s, URLNormalization.RFC_3986);
+    }
+
+    /*
+     * "For all URIs, the hexadecimal digits within a percent-encoding
+     * triplet (e.g., "%3a" versus "%3A") are case-insensitive and
+     * therefore should be normalized to use uppercase letters."
+     * http://tools.ietf.org/html/rfc3986#section-6.2.2.1
+     */
+    @Test
+    public void rfc3986UppercasesPercentEncodings() {
+        assertEquals(rfc3986("http://www.example.com/a%2Fb"),
+                rfc3986("http://www.example.com/a%2fb"));
+        assertFalse(new HttpURL("http://www.example.com/a%2Fb").equals(
+                new HttpURL("http://www.example.com/a%2fb")));
+    }
+
+    @Test
+    public void rfc3986OnlyUnescapesItsUnreservedCharacters() {
+        assertEquals("http://www.example.com:80/~a%21",
+                rfc3986("http://www.example.com/%7ea%21").toString());
+    }
+
+    @Test
+    public void rfc3986RemovesDotSegments() {
+        assertEquals("http://www.example.com:80/a/g",
+                rfc3986("http://www.example.com/a/b/c/./../../g").toString());
+        assertEquals("http://www.example.com:80/mid/6?x=./y",
+                rfc3986("http://www.example.com/mid/content=5/../6?x=./y").toString());
+        assertEquals("http://www.example.com:80/",
+                rfc3986("http://www.example.com/../..").toString());
+        assertEquals("http://www.example.com:80/a/",
+                rfc3986("http://www.example.com/a/b/%2E%2E").toString());
+    }
+
+    @Test
+    public void rfc3986DropsEmptyQuery() {
+        assertEquals(rfc3986("http://www.example.com/a"),
+                rfc3986("http://www.example.com/a?"));
+    }
+
+    @Test
+    public void rfc3986ConvertsInternationalizedHostNames() {
+        assertEquals("http://xn--bcher-kva.example:80/",
+                rfc3986("http://B\u00dccher.example/").toString());
+    }
+
+    @Test
+    public void queryParameterOrderMattersByDefault() {
+        assertFalse(rfc3986("http://www.example.com/?b=2&a=1").equals(
+                rfc3986("http://www.example.com/?a=1&b=2")));
+    }
+
+    @Test
+    public void canSortQueryParameters() {
+        URLNormalization sorted = URLNormalization.RFC_3986.withSortedQueryParameters();
+        assertEquals("http://www.example.com:80/?a=1&a=0&b=2",
+                new HttpURL("http://www.example.com/?b=2&a=1&&a=0", sorted).toString());
+    }
 }
@@ -0,0 +1,93 @@
+/* 
+ * TestHttpURLPool.java
+ * 
+ * Copyright (C) 2012 Jonathan Moore
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *   
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.chaplib;
+
+import static org.junit.Assert.*;
+
+import java.net.URI;
+
+import org.junit.Before;
+import org.junit.Test;
+
+public class TestHttpURLPool {
+
+    private HttpURLPool impl;
+
+    @Before
+    public void setUp() {
+        impl = new HttpURLPool(10, URLNormalization.RFC_2616);
+    }
+
+    @Test
+    public void returnsCanonicalHttpURL() {
+        assertEquals(new HttpURL("http://www.example.com/"),
+                impl.get("HTTP://WWW.EXAMPLE.COM"));
+    }
+
+    @Test
+    public void returnsSameInstanceForSameString() {
+        assertSame(impl.get("http://www.example.com/"),
+                impl.get("http://www.example.com/"));
+    }
+
+    @Test
+    public void returnsSameInstanceForEquivalentSpellings() {
+        assertSame(impl.get("http://www.example.com/~a"),
+                impl.get("HTTP://www.example.com:80/%7ea"));
+    }
+
+    @Test
+    public void canLookUpByURI() throws Exception {
+        assertSame(impl.get("http://www.example.com/"),
+                impl.get(new URI("http://www.example.com/")));
+    }
+
+    @Test
+    public void usesConfiguredNormalization() {
+        impl = new HttpURLPool(10, URLNormalization.RFC_3986);
+        assertSame(impl.get("http://www.example.com/a/b/.."),
+                impl.get("http://www.example.com/a/"));
+    }
+
+    @Test
+    public void isBounded() {
+        for(int i=0; i<1000; i++) {
+            impl.get("http://www.example.com/" + i);
+            assertTrue(impl.size() <= 10);
+        }
+    }
+
+    @Test
+    public void retainsRecentlyUsedEntries() {
+        HttpURL url = impl.get("http://www.example.com/");
+        for(int i=0; i<1000; i++) {
+            assertSame(url, impl.get("http://www.example.com/"));
+            impl.get("http://www.example.com/" + i);
+        }
+    }
+
+    @Test(expected=IllegalArgumentException.class)
+    public void rejectsInvalidURLs() {
+        impl.get("ftp://www.example.com/");
+    }
+
+    @Test(expected=IllegalArgumentException.class)
+    public void rejectsTooSmallBound() {
+        new HttpURLPool(1, URLNormalization.RFC_2616);
+    }
+}
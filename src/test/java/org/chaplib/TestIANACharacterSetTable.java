@@ -0,0 +1,107 @@
+/* 
+ * TestIANACharacterSetTable.java
+ * 
+ * Copyright (C) 2012 Jonathan Moore
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *   
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.chaplib;
+
+import static org.junit.Assert.*;
+
+import java.nio.charset.Charset;
+import java.util.Arrays;
+
+import org.junit.Test;
+
+public class TestIANACharacterSetTable {
+
+    /*
+     * Builds the table the same way its generated source was built.
+     */
+    private static short[] buildSlots() {
+        short[] slots = new short[IANACharacterSetTable.SIZE];
+        String[] names = IANACharacterSets.CHARACTER_SETS;
+        for(int i = 0; i < names.length; i++) {
+            int slot = IANACharacterSetTable.slotOf(IANACharacterSetTable.hash(names[i]));
+            while (slots[slot] != 0) {
+                slot = (slot + 1) & (IANACharacterSetTable.SIZE - 1);
+            }
+            slots[slot] = (short)(i + 1);
+        }
+        return slots;
+    }
+
+    /*
+     * Formats the table as the source of IANACharacterSetTable.SLOTS.
+     */
+    private static String sourceOf(short[] slots) {
+        StringBuilder sb = new StringBuilder();
+        for(int i = 0; i < slots.length; i++) {
+            if (i % 16 == 0) sb.append("        ");
+            sb.append(slots[i]).append(",");
+            sb.append((i % 16 == 15) ? "\n" : " ");
+        }
+        return sb.toString();
+    }
+
+    @Test
+    public void generatedTableMatchesRegistry() {
+        short[] slots = buildSlots();
+        if (!Arrays.equals(slots, IANACharacterSetTable.SLOTS)) {
+            fail("IANACharacterSetTable.SLOTS is out of date; replace its contents with:\n"
+                    + sourceOf(slots));
+        }
+    }
+
+    @Test
+    public void findsEveryRegisteredNameInAnyCase() {
+        String[] names = IANACharacterSets.CHARACTER_SETS;
+        for(int i = 0; i < names.length; i++) {
+            assertEquals(i, IANACharacterSetTable.indexOf(names[i]));
+            assertEquals(i, IANACharacterSetTable.indexOf(names[i].toLowerCase()));
+            assertEquals(i, IANACharacterSetTable.indexOf(names[i].toUpperCase()));
+        }
+    }
+
+    @Test
+    public void doesNotFindUnregisteredNames() {
+        assertEquals(-1, IANACharacterSetTable.indexOf(""));
+        assertEquals(-1, IANACharacterSetTable.indexOf("utf-9"));
+        assertEquals(-1, IANACharacterSetTable.indexOf("utf-8 "));
+        assertEquals(-1, IANACharacterSetTable.indexOf("x-no-such-charset"));
+    }
+
+    @Test
+    public void resolvesSupportedCharsets() {
+        Charset utf8 = IANACharacterSetTable.charsetOf(IANACharacterSetTable.indexOf("utf-8"));
+        assertEquals(Charset.forName("UTF-8"), utf8);
+        assertSame(utf8, IANACharacterSetTable.charsetOf(IANACharacterSetTable.indexOf("UTF-8")));
+        assertEquals(Charset.forName("ISO-8859-1"), IANACharacterSetTable.charsetOf(
+                IANACharacterSetTable.indexOf("latin1")));
+    }
+
+    @Test
+    public void agreesWithCharsetForNameOnSupport() {
+        String[] names = IANACharacterSets.CHARACTER_SETS;
+        for(int i = 0; i < names.length; i++) {
+            boolean supported;
+            try {
+                supported = Charset.isSupported(names[i]);
+            } catch (IllegalArgumentException e) {
+                supported = false;
+            }
+            assertEquals(names[i], supported, IANACharacterSetTable.charsetOf(i) != null);
+        }
+    }
+}
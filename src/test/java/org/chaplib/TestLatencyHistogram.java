@@ -0,0 +1,111 @@
+/* 
+ * TestLatencyHistogram.java
+ * 
+ * Copyright (C) 2012 Jonathan Moore
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *   
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.chaplib;
+
+import static org.junit.Assert.*;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Before;
+import org.junit.Test;
+
+public class TestLatencyHistogram {
+
+    private LatencyHistogram impl;
+
+    @Before
+    public void setUp() {
+        impl = new LatencyHistogram();
+    }
+
+    @Test
+    public void emptyHistogramReportsZeros() {
+        assertEquals(0L, impl.getCount());
+        assertEquals(0L, impl.getMax());
+        assertEquals(0.0, impl.getMean(), 0.0);
+        assertEquals(0L, impl.getValueAtPercentile(99.0));
+    }
+
+    @Test
+    public void smallValuesAreExact() {
+        for(int i=0; i<32; i++) impl.record(i);
+        assertEquals(15L, impl.getValueAtPercentile(50.0));
+        assertEquals(31L, impl.getValueAtPercentile(100.0));
+        assertEquals(15.5, impl.getMean(), 0.0001);
+    }
+
+    @Test
+    public void bucketsCoverAllValuesInOrder() {
+        long prev = -1L;
+        for(int b=0; b < LatencyHistogram.bucketOf(Long.MAX_VALUE); b++) {
+            long high = LatencyHistogram.highestValueIn(b);
+            assertTrue(high > prev);
+            assertEquals(b, LatencyHistogram.bucketOf(high));
+            assertEquals(b, LatencyHistogram.bucketOf(prev + 1));
+            prev = high;
+        }
+    }
+
+    @Test
+    public void largeValuesAreWithinThreePercent() {
+        long[] values = { 1000L, 123456L, 987654321L, 5000000000L };
+        for(long v : values) {
+            LatencyHistogram h = new LatencyHistogram();
+            h.record(v);
+            h.record(v * 2);
+            long p50 = h.getValueAtPercentile(50.0);
+            assertTrue(p50 >= v);
+            assertTrue(p50 <= v + v / 32);
+        }
+    }
+
+    @Test
+    public void percentilesSplitDistribution() {
+        for(int i=0; i<90; i++) impl.record(100L);
+        for(int i=0; i<10; i++) impl.record(1000000L);
+        assertTrue(impl.getValueAtPercentile(90.0) < 110L);
+        assertTrue(impl.getValueAtPercentile(99.0) >= 1000000L);
+        assertEquals(1000000L, impl.getMax());
+    }
+
+    @Test
+    public void recordsNegativeValuesAsZero() {
+        impl.record(-5L);
+        assertEquals(1L, impl.getCount());
+        assertEquals(0L, impl.getMax());
+    }
+
+    @Test
+    public void recordsConcurrently() throws Exception {
+        final int threads = 4;
+        final int perThread = 10000;
+        final CountDownLatch done = new CountDownLatch(threads);
+        for(int t=0; t<threads; t++) {
+            new Thread(new Runnable() {
+                public void run() {
+                    for(int i=0; i<perThread; i++) impl.record(i);
+                    done.countDown();
+                }
+            }).start();
+        }
+        assertTrue(done.await(5L, TimeUnit.SECONDS));
+        assertEquals((long)threads * perThread, impl.getCount());
+        assertEquals(perThread - 1L, impl.getMax());
+    }
+}
@@ -0,0 +1,297 @@
+/*
+ * TestMappedFileCacheStorage.java
+ *
+ * Copyright (C) 2012 Jonathan Moore
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.chaplib;
+
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.util.Date;
+
+import org.apache.http.Header;
+import org.apache.http.HttpStatus;
+import org.apache.http.HttpVersion;
+import org.apache.http.client.cache.HttpCacheEntry;
+import org.apache.http.client.cache.HttpCacheUpdateCallback;
+import org.apache.http.entity.InputStreamEntity;
+import org.apache.http.impl.client.cache.HeapResource;
+import org.apache.http.message.BasicHeader;
+import org.apache.http.message.BasicStatusLine;
+import org.apache.http.util.EntityUtils;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class TestMappedFileCacheStorage {
+
+    private static final int SEGMENT_SIZE = 1024;
+
+    @Rule
+    public TemporaryFolder tmp = new TemporaryFolder();
+
+    private File dir;
+    private MappedFileCacheStorage impl;
+
+    @Before
+    public void setUp() throws Exception {
+        dir = tmp.newFolder("cache");
+        impl = open();
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        impl.close();
+    }
+
+    private MappedFileCacheStorage open() throws IOException {
+        return new MappedFileCacheStorage(dir, 2 * SEGMENT_SIZE, SEGMENT_SIZE);
+    }
+
+    private MappedFileCacheStorage reopen() throws IOException {
+        impl.close();
+        impl = open();
+        return impl;
+    }
+
+    private static HttpCacheEntry entry(String body) {
+        Header[] headers = new Header[] {
+                new BasicHeader("Cache-Control", "max-age=3600"),
+                new BasicHeader("ETag", "\"v1\"")
+        };
+        return new HttpCacheEntry(new Date(1000L), new Date(2000L),
+                new BasicStatusLine(HttpVersion.HTTP_1_1, HttpStatus.SC_OK, "OK"),
+                headers, new HeapResource(body.getBytes()));
+    }
+
+    private static String bodyOf(HttpCacheEntry e) throws IOException {
+        InputStream in = e.getResource().getInputStream();
+        try {
+            return EntityUtils.toString(new InputStreamEntity(in, -1));
+        } finally {
+            in.close();
+        }
+    }
+
+    @Test
+    public void returnsNullForUnknownKey() throws Exception {
+        assertNull(impl.getEntry("http://www.example.com:80/"));
+    }
+
+    @Test
+    public void roundTripsEntry() throws Exception {
+        impl.putEntry("k", entry("hello"));
+        HttpCacheEntry out = impl.getEntry("k");
+        assertEquals(1000L, out.getRequestDate().getTime());
+        assertEquals(2000L, out.getResponseDate().getTime());
+        assertEquals(HttpStatus.SC_OK, out.getStatusLine().getStatusCode());
+        assertEquals("OK", out.getStatusLine().getReasonPhrase());
+        assertEquals(HttpVersion.HTTP_1_1, out.getStatusLine().getProtocolVersion());
+        assertEquals(2, out.getAllHeaders().length);
+        assertEquals("\"v1\"", out.getFirstHeader("ETag").getValue());
+        assertEquals(5L, out.getResource().length());
+        assertEquals("hello", bodyOf(out));
+        assertEquals("hello", bodyOf(out));
+    }
+
+    @Test
+    public void laterPutReplacesEntry() throws Exception {
+        impl.putEntry("k", entry("one"));
+        impl.putEntry("k", entry("two"));
+        assertEquals("two", bodyOf(impl.getEntry("k")));
+        assertEquals(1, impl.size());
+    }
+
+    @Test
+    public void canRemoveEntry() throws Exception {
+        impl.putEntry("k", entry("hello"));
+        impl.removeEntry("k");
+        assertNull(impl.getEntry("k"));
+    }
+
+    @Test
+    public void entriesSurviveReopen() throws Exception {
+        impl.putEntry("a", entry("one"));
+        impl.putEntry("b", entry("two"));
+        impl.putEntry("a", entry("three"));
+        reopen();
+        assertEquals("three", bodyOf(impl.getEntry("a")));
+        assertEquals("two", bodyOf(impl.getEntry("b")));
+    }
+
+    @Test
+    public void removalsSurviveReopen() throws Exception {
+        impl.putEntry("k", entry("hello"));
+        impl.removeEntry("k");
+        reopen();
+        assertNull(impl.getEntry("k"));
+    }
+
+    @Test
+    public void dropsTornRecordOnReopenAndCarriesOn() throws Exception {
+        impl.putEntry("a", entry("first"));
+        impl.putEntry("b", entry("torn!"));
+        impl.close();
+        corrupt("torn!");
+        impl = open();
+        assertEquals("first", bodyOf(impl.getEntry("a")));
+        assertNull(impl.getEntry("b"));
+        impl.putEntry("c", entry("after"));
+        reopen();
+        assertEquals("first", bodyOf(impl.getEntry("a")));
+        assertEquals("after", bodyOf(impl.getEntry("c")));
+    }
+
+    @Test
+    public void damagedBodyOnlyLosesItsOwnEntry() throws Exception {
+        impl.putEntry("a", entry("first"));
+        impl.putEntry("b", entry("damaged"));
+        impl.putEntry("c", entry("after"));
+        impl.close();
+        corrupt("damaged");
+        impl = open();
+        assertEquals(3, impl.size());
+        assertEquals("first", bodyOf(impl.getEntry("a")));
+        assertNull(impl.getEntry("b"));
+        assertEquals("after", bodyOf(impl.getEntry("c")));
+        assertEquals(2, impl.size());
+    }
+
+    private void corrupt(String marker) throws IOException {
+        for(File f : dir.listFiles()) {
+            RandomAccessFile raf = new RandomAccessFile(f, "rw");
+            try {
+                byte[] contents = new byte[(int)raf.length()];
+                raf.readFully(contents);
+                int at = new String(contents, "ISO-8859-1").indexOf(marker);
+                if (at >= 0) {
+                    raf.seek(at);
+                    raf.write('X');
+                }
+            } finally {
+                raf.close();
+            }
+        }
+    }
+
+    @Test
+    public void ignoresFilesThatAreNotSegments() throws Exception {
+        impl.putEntry("a", entry("hello"));
+        impl.close();
+        File bogus = new File(dir, "segment-00000000000000ff.dat");
+        RandomAccessFile raf = new RandomAccessFile(bogus, "rw");
+        raf.setLength(SEGMENT_SIZE);
+        raf.close();
+        impl = open();
+        assertEquals("hello", bodyOf(impl.getEntry("a")));
+        assertFalse(bogus.exists());
+    }
+
+    @Test
+    public void dropsOldestSegmentWhenFull() throws Exception {
+        StringBuilder body = new StringBuilder();
+        for(int i=0; i<200; i++) body.append('x');
+        for(int i=0; i<20; i++) {
+            impl.putEntry("k" + i, entry(body.toString()));
+        }
+        assertNull(impl.getEntry("k0"));
+        assertNotNull(impl.getEntry("k19"));
+        assertTrue(dir.listFiles().length <= 2);
+        reopen();
+        assertNull(impl.getEntry("k0"));
+        assertNotNull(impl.getEntry("k19"));
+    }
+
+    @Test
+    public void bodyFromDroppedSegmentIsReadableUntilDisposed() throws Exception {
+        StringBuilder body = new StringBuilder();
+        for(int i=0; i<200; i++) body.append('x');
+        impl.putEntry("k0", entry(body.toString()));
+        HttpCacheEntry held = impl.getEntry("k0");
+        for(int i=1; i<20; i++) {
+            impl.putEntry("k" + i, entry(body.toString()));
+        }
+        assertNull(impl.getEntry("k0"));
+        assertEquals(body.toString(), bodyOf(held));
+        held.getResource().dispose();
+        try {
+            held.getResource().getInputStream();
+            fail("should have thrown");
+        } catch (IOException expected) {
+        }
+    }
+
+    @Test
+    public void entryTooBigForASegmentDisplacesOlderVersion() throws Exception {
+        impl.putEntry("k", entry("small"));
+        StringBuilder body = new StringBuilder();
+        for(int i=0; i<SEGMENT_SIZE; i++) body.append('x');
+        impl.putEntry("k", entry(body.toString()));
+        assertNull(impl.getEntry("k"));
+        reopen();
+        assertNull(impl.getEntry("k"));
+    }
+
+    @Test
+    public void updatesEntryThroughCallback() throws Exception {
+        impl.putEntry("k", entry("old"));
+        impl.updateEntry("k", new HttpCacheUpdateCallback() {
+            public HttpCacheEntry update(HttpCacheEntry existing) {
+                assertNotNull(existing);
+                return entry("new");
+            }
+        });
+        assertEquals("new", bodyOf(impl.getEntry("k")));
+    }
+
+    @Test
+    public void rejectsBodyShorterThanItsResourceLength() throws Exception {
+        impl.putEntry("a", entry("first"));
+        HttpCacheEntry lying = new HttpCacheEntry(new Date(1000L), new Date(2000L),
+                new BasicStatusLine(HttpVersion.HTTP_1_1, HttpStatus.SC_OK, "OK"),
+                new Header[0], new HeapResource("short".getBytes()) {
+                    private static final long serialVersionUID = 1L;
+                    @Override
+                    public long length() {
+                        return 100L;
+                    }
+                });
+        try {
+            impl.putEntry("b", lying);
+            fail("should have thrown");
+        } catch (IOException expected) {
+        }
+        assertNull(impl.getEntry("b"));
+        impl.putEntry("c", entry("after"));
+        reopen();
+        assertEquals("first", bodyOf(impl.getEntry("a")));
+        assertNull(impl.getEntry("b"));
+        assertEquals("after", bodyOf(impl.getEntry("c")));
+    }
+
+    @Test
+    public void entriesReadBeforeCloseRemainReadable() throws Exception {
+        impl.putEntry("k", entry("hello"));
+        HttpCacheEntry out = impl.getEntry("k");
+        impl.close();
+        assertEquals("hello", bodyOf(out));
+    }
+}
@@ -1,7 +1,12 @@
 package org.chaplib;
 
 import static org.junit.Assert.*;
+
+import java.util.ArrayList;
+import java.util.List;
 import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.atomic.AtomicReference;
 import java.util.concurrent.TimeUnit;
 
 import org.junit.Before;
@@ -94,4 +99,306 @@ public class TestRequestCollapser {
         assertEquals(1, cnt.count);
     }
 
+    @Test
+    public void reusableCollapserStartsNewGenerationAfterCompletion() {
+        final Counter cnt = new Counter();
+        Computation<Object> c = new Computation<Object>() {
+            public Object execute() {
+                synchronized(cnt) {
+                    cnt.count++;
+                }
+                return result;
+            }
+        };
+        impl = new RequestCollapser<Object>(c, 0L);
+        assertSame(result, impl.get());
+        assertSame(result, impl.get());
+        assertEquals(2, cnt.count);
+    }
+
+    @Test
+    public void reusableCollapserSharesResultWithinTTL() {
+        final Counter cnt = new Counter();
+        Computation<Object> c = new Computation<Object>() {
+            public Object execute() {
+                synchronized(cnt) {
+                    cnt.count++;
+                }
+                return new Object();
+            }
+        };
+        impl = new RequestCollapser<Object>(c, 60 * 1000L);
+        assertSame(impl.get(), impl.get());
+        assertEquals(1, cnt.count);
+    }
+
+    @Test
+    public void reusableCollapserDoesNotShareResultAfterTTL() throws Exception {
+        final Counter cnt = new Counter();
+        Computation<Object> c = new Computation<Object>() {
+            public Object execute() {
+                synchronized(cnt) {
+                    cnt.count++;
+                }
+                return result;
+            }
+        };
+        impl = new RequestCollapser<Object>(c, 10L);
+        impl.get();
+        Thread.sleep(50L);
+        impl.get();
+        assertEquals(2, cnt.count);
+    }
+
+    @Test
+    public void reusableCollapserDoesNotShareFailureWithLaterCallers() {
+        final Counter cnt = new Counter();
+        Computation<Object> c = new Computation<Object>() {
+            public Object execute() {
+                synchronized(cnt) {
+                    cnt.count++;
+                    if (cnt.count == 1) throw new IllegalStateException();
+                }
+                return result;
+            }
+        };
+        impl = new RequestCollapser<Object>(c, 60 * 1000L);
+        try {
+            impl.get();
+            fail("should have thrown");
+        } catch (IllegalStateException expected) {
+        }
+        assertSame(result, impl.get());
+    }
+
+    @Test(expected=IllegalArgumentException.class)
+    public void cannotCreateWithNegativeTTL() {
+        new RequestCollapser<Object>(computation, -1L);
+    }
+
+    private static class DeferredComputation implements AsyncComputation<Object> {
+        ResultCallback<Object> callback;
+        int executions = 0;
+
+        public void execute(ResultCallback<Object> callback) {
+            this.callback = callback;
+            executions++;
+        }
+    }
+
+    @Test
+    public void getAsyncDoesNotWaitForAsyncComputation() {
+        DeferredComputation c = new DeferredComputation();
+        impl = new RequestCollapser<Object>(c);
+        ResultFuture<Object> f1 = impl.getAsync();
+        ResultFuture<Object> f2 = impl.getAsync();
+        assertFalse(f1.isDone());
+        assertSame(f1, f2);
+        assertEquals(1, c.executions);
+    }
+
+    @Test
+    public void asyncCallersShareCompletedResult() throws Exception {
+        DeferredComputation c = new DeferredComputation();
+        impl = new RequestCollapser<Object>(c);
+        ResultFuture<Object> f1 = impl.getAsync();
+        ResultFuture<Object> f2 = impl.getAsync();
+        c.callback.completed(result);
+        assertSame(result, f1.get());
+        assertSame(result, f2.get());
+    }
+
+    @Test
+    public void asyncCallersShareFailure() throws Exception {
+        DeferredComputation c = new DeferredComputation();
+        impl = new RequestCollapser<Object>(c);
+        ResultFuture<Object> f = impl.getAsync();
+        IllegalStateException failure = new IllegalStateException();
+        c.callback.failed(failure);
+        try {
+            f.get();
+            fail("should have thrown");
+        } catch (ExecutionException expected) {
+            assertSame(failure, expected.getCause());
+        }
+    }
+
+    @Test
+    public void blockingCallerCanJoinAsyncComputation() throws Exception {
+        final DeferredComputation c = new DeferredComputation();
+        impl = new RequestCollapser<Object>(c);
+        impl.getAsync();
+        (new Thread(new Runnable() {
+            public void run() {
+                try {
+                    Thread.sleep(50L);
+                } catch (InterruptedException e) {
+                }
+                c.callback.completed(result);
+            }
+        })).start();
+        assertSame(result, impl.get());
+    }
+
+    @Test(expected=TooLateException.class)
+    public void getAsyncAfterCompletionIsTooLate() {
+        DeferredComputation c = new DeferredComputation();
+        impl = new RequestCollapser<Object>(c);
+        impl.getAsync();
+        c.callback.completed(result);
+        impl.getAsync();
+    }
+
+    @Test
+    public void reusableAsyncCollapserStartsNewGeneration() {
+        DeferredComputation c = new DeferredComputation();
+        impl = new RequestCollapser<Object>(c, 0L);
+        impl.getAsync();
+        c.callback.completed(result);
+        assertFalse(impl.getAsync().isDone());
+        assertEquals(2, c.executions);
+    }
+
+    @Test
+    public void failureIsDeliveredToConcurrentCallers() throws Exception {
+        final IllegalStateException failure = new IllegalStateException();
+        Computation<Object> c = new Computation<Object>() {
+            public Object execute() {
+                try {
+                    Thread.sleep(50L);
+                } catch (InterruptedException e) {
+                    fail("interrupted");
+                }
+                throw failure;
+            }
+        };
+        final CountDownLatch cdl = new CountDownLatch(2);
+        final AtomicReference<Throwable> caught1 = new AtomicReference<Throwable>();
+        final AtomicReference<Throwable> caught2 = new AtomicReference<Throwable>();
+        List<AtomicReference<Throwable>> callers = new ArrayList<AtomicReference<Throwable>>();
+        callers.add(caught1);
+        callers.add(caught2);
+        impl = new RequestCollapser<Object>(c);
+        for(final AtomicReference<Throwable> caught : callers) {
+            (new Thread(new Runnable() {
+                public void run() {
+                    try {
+                        impl.get();
+                    } catch (RuntimeException e) {
+                        caught.set(e);
+                    }
+                    cdl.countDown();
+                }
+            })).start();
+        }
+        assertTrue(cdl.await(1L, TimeUnit.SECONDS));
+        assertSame(failure, caught1.get());
+        assertSame(failure, caught2.get());
+    }
+
+    @Test(expected=RequestTimeoutException.class)
+    public void timedGetGivesUpAtDeadline() {
+        impl = new RequestCollapser<Object>(new DeferredComputation());
+        impl.getAsync();
+        impl.get(10L, TimeUnit.MILLISECONDS);
+    }
+
+    @Test
+    public void timedGetReturnsResultIfCompletedInTime() {
+        DeferredComputation c = new DeferredComputation();
+        impl = new RequestCollapser<Object>(c, 60 * 1000L);
+        impl.getAsync();
+        c.callback.completed(result);
+        assertSame(result, impl.get(10L, TimeUnit.MILLISECONDS));
+    }
+
+    @Test
+    public void timingOutDoesNotAffectOtherCallers() throws Exception {
+        DeferredComputation c = new DeferredComputation();
+        impl = new RequestCollapser<Object>(c);
+        ResultFuture<Object> f = impl.getAsync();
+        try {
+            impl.get(10L, TimeUnit.MILLISECONDS);
+            fail("should have timed out");
+        } catch (RequestTimeoutException expected) {
+        }
+        c.callback.completed(result);
+        assertSame(result, f.get());
+    }
+
+    @Test
+    public void waitingIsInterruptible() throws Exception {
+        impl = new RequestCollapser<Object>(new DeferredComputation());
+        impl.getAsync();
+        final AtomicReference<Throwable> caught = new AtomicReference<Throwable>();
+        final AtomicReference<Boolean> stillInterrupted = new AtomicReference<Boolean>();
+        Thread t = new Thread(new Runnable() {
+            public void run() {
+                try {
+                    impl.get();
+                } catch (RuntimeException e) {
+                    caught.set(e);
+                    stillInterrupted.set(Thread.currentThread().isInterrupted());
+                }
+            }
+        });
+        t.start();
+        Thread.sleep(20L);
+        t.interrupt();
+        t.join(1000L);
+        assertTrue(caught.get() instanceof RequestInterruptedException);
+        assertTrue(stillInterrupted.get());
+    }
+
+    @Test
+    public void reportsLeaderAndFollowersToMetrics() throws Exception {
+        final CountDownLatch started = new CountDownLatch(1);
+        final CountDownLatch release = new CountDownLatch(1);
+        Computation<Object> c = new Computation<Object>() {
+            public Object execute() {
+                started.countDown();
+                try {
+                    release.await();
+                } catch (InterruptedException e) {
+                    fail("interrupted");
+                }
+                return result;
+            }
+        };
+        HistogramHttpMetrics metrics = new HistogramHttpMetrics();
+        impl = new RequestCollapser<Object>(c, metrics);
+        final CountDownLatch done = new CountDownLatch(2);
+        Runnable r = new Runnable() {
+            public void run() {
+                impl.get();
+                done.countDown();
+            }
+        };
+        new Thread(r).start();
+        assertTrue(started.await(1L, TimeUnit.SECONDS));
+        new Thread(r).start();
+        while (metrics.getCollapserFollowerCount() == 0) Thread.sleep(1L);
+        Thread.sleep(20L);
+        release.countDown();
+        assertTrue(done.await(1L, TimeUnit.SECONDS));
+        assertEquals(1L, metrics.getCollapserLeaderCount());
+        assertEquals(1L, metrics.getCollapserFollowerCount());
+        assertEquals(1L, metrics.getCollapserWaitLatency().getCount());
+        assertTrue(metrics.getCollapserWaitLatency().getMax()
+                >= TimeUnit.MILLISECONDS.toNanos(10L));
+    }
+
+    @Test
+    public void reusableCollapserReportsSharedResultsToMetrics() {
+        Computation<Object> c = new Computation<Object>() {
+            public Object execute() {
+                return new Object();
+            }
+        };
+        HistogramHttpMetrics metrics = new HistogramHttpMetrics();
+        impl = new RequestCollapser<Object>(c, 60 * 1000L, metrics);
+        assertSame(impl.get(), impl.get());
+        assertEquals(1L, metrics.getCollapserLeaderCount());
+        assertEquals(1L, metrics.getCollapserFollowerCount());
+    }
 }
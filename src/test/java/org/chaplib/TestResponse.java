@@ -1,17 +1,167 @@
 package org.chaplib;
 
+import static org.junit.Assert.*;
+
 import java.util.Date;
 
+import org.apache.http.HttpResponse;
 import org.apache.http.HttpStatus;
 import org.apache.http.HttpVersion;
+import org.apache.http.client.methods.HttpGet;
+import org.apache.http.impl.cookie.DateUtils;
 import org.apache.http.message.BasicHttpResponse;
+import org.junit.Before;
 import org.junit.Test;
 
 
 public class TestResponse {
 
+    private Date now;
+    private Date tenSecondsAgo;
+    private HttpResponse resp;
+
+    @Before
+    public void setUp() {
+        now = new Date();
+        tenSecondsAgo = new Date(now.getTime() - 10 * 1000L);
+        resp = new BasicHttpResponse(HttpVersion.HTTP_1_1, HttpStatus.SC_OK, "OK");
+        resp.setHeader("Date", DateUtils.formatDate(tenSecondsAgo));
+    }
+
     @Test
     public void canCreate() {
         new Response(new Date(), new Date(), new BasicHttpResponse(HttpVersion.HTTP_1_1, HttpStatus.SC_OK, "OK"));
     }
+
+    @Test
+    public void freshnessLifetimeComesFromMaxAge() {
+        resp.setHeader("Cache-Control", "max-age=60");
+        Response impl = new Response(tenSecondsAgo, tenSecondsAgo, resp);
+        assertEquals(60L, impl.getFreshnessLifetimeSecs());
+    }
+
+    @Test
+    public void freshnessLifetimeIgnoresSMaxAge() {
+        resp.setHeader("Cache-Control", "max-age=60, s-maxage=30");
+        Response impl = new Response(tenSecondsAgo, tenSecondsAgo, resp);
+        assertEquals(60L, impl.getFreshnessLifetimeSecs());
+    }
+
+    @Test
+    public void sMaxAgeAloneDoesNotMakeResponseFresh() {
+        resp.setHeader("Cache-Control", "s-maxage=3600");
+        Response impl = new Response(tenSecondsAgo, tenSecondsAgo, resp);
+        assertFalse(impl.isResponseFresh(now));
+    }
+
+    @Test
+    public void freshnessLifetimeComesFromExpiresIfNoMaxAge() {
+        resp.setHeader("Expires", DateUtils.formatDate(new Date(tenSecondsAgo.getTime() + 20 * 1000L)));
+        Response impl = new Response(tenSecondsAgo, tenSecondsAgo, resp);
+        assertEquals(20L, impl.getFreshnessLifetimeSecs());
+    }
+
+    @Test
+    public void currentAgeIncludesResidentTime() {
+        Response impl = new Response(tenSecondsAgo, tenSecondsAgo, resp);
+        assertEquals(10L, impl.getCurrentAgeSecs(now));
+    }
+
+    @Test
+    public void isFreshWithinMaxAge() {
+        resp.setHeader("Cache-Control", "max-age=60");
+        Response impl = new Response(tenSecondsAgo, tenSecondsAgo, resp);
+        assertTrue(impl.isResponseFresh(now));
+        assertEquals(0L, impl.getStalenessSecs(now));
+    }
+
+    @Test
+    public void isStalePastMaxAge() {
+        resp.setHeader("Cache-Control", "max-age=5");
+        Response impl = new Response(tenSecondsAgo, tenSecondsAgo, resp);
+        assertFalse(impl.isResponseFresh(now));
+        assertEquals(5L, impl.getStalenessSecs(now));
+    }
+
+    @Test
+    public void mayReturnStaleWhileRevalidatingWithinWindow() {
+        resp.setHeader("Cache-Control", "max-age=5, stale-while-revalidate=10");
+        Response impl = new Response(tenSecondsAgo, tenSecondsAgo, resp);
+        assertTrue(impl.mayReturnStaleWhileRevalidating(now));
+    }
+
+    @Test
+    public void mayNotReturnStaleWhileRevalidatingOutsideWindow() {
+        resp.setHeader("Cache-Control", "max-age=5, stale-while-revalidate=2");
+        Response impl = new Response(tenSecondsAgo, tenSecondsAgo, resp);
+        assertFalse(impl.mayReturnStaleWhileRevalidating(now));
+    }
+
+    @Test
+    public void mayReturnStaleIfErrorFromResponseDirective() {
+        resp.setHeader("Cache-Control", "max-age=5, stale-if-error=10");
+        Response impl = new Response(tenSecondsAgo, tenSecondsAgo, resp);
+        assertTrue(impl.mayReturnStaleIfError(new HttpGet("http://www.example.com/"), now));
+    }
+
+    @Test
+    public void mayReturnStaleIfErrorFromRequestDirective() {
+        resp.setHeader("Cache-Control", "max-age=5");
+        Response impl = new Response(tenSecondsAgo, tenSecondsAgo, resp);
+        HttpGet req = new HttpGet("http://www.example.com/");
+        req.setHeader("Cache-Control", "stale-if-error=10");
+        assertTrue(impl.mayReturnStaleIfError(req, now));
+    }
+
+    @Test
+    public void recognizesRevalidationDirectives() {
+        resp.setHeader("Cache-Control", "must-revalidate, proxy-revalidate");
+        Response impl = new Response(tenSecondsAgo, tenSecondsAgo, resp);
+        assertTrue(impl.mustRevalidate());
+        assertTrue(impl.proxyRevalidate());
+    }
+
+    @Test
+    public void isRevalidatableWithETag() {
+        resp.setHeader("ETag", "\"etag\"");
+        assertTrue(new Response(tenSecondsAgo, tenSecondsAgo, resp).isRevalidatable());
+    }
+
+    @Test
+    public void isNotRevalidatableWithoutValidators() {
+        assertFalse(new Response(tenSecondsAgo, tenSecondsAgo, resp).isRevalidatable());
+    }
+
+    @Test
+    public void noCacheRecognizedFromPragma() {
+        resp.setHeader("Pragma", "no-cache");
+        assertTrue(new Response(tenSecondsAgo, tenSecondsAgo, resp).noCache());
+    }
+
+    @Test
+    public void updatedWithMergesNotModifiedHeaders() {
+        resp.setHeader("Cache-Control", "max-age=5");
+        resp.setHeader("ETag", "\"etag\"");
+        Response impl = new Response(tenSecondsAgo, tenSecondsAgo, resp);
+        HttpResponse notModified = new BasicHttpResponse(HttpVersion.HTTP_1_1,
+                HttpStatus.SC_NOT_MODIFIED, "Not Modified");
+        notModified.setHeader("Date", DateUtils.formatDate(now));
+        notModified.setHeader("Cache-Control", "max-age=60");
+        Response updated = impl.updatedWith(now, now, notModified);
+        assertEquals(60L, updated.getFreshnessLifetimeSecs());
+        assertTrue(updated.isResponseFresh(now));
+        assertTrue(updated.isRevalidatable());
+        assertSame(impl.getCacheEntry().getResource(), updated.getCacheEntry().getResource());
+    }
+
+    @Test
+    public void updatedWithIgnoresOlderNotModified() {
+        resp.setHeader("Cache-Control", "max-age=5");
+        Response impl = new Response(tenSecondsAgo, tenSecondsAgo, resp);
+        HttpResponse notModified = new BasicHttpResponse(HttpVersion.HTTP_1_1,
+                HttpStatus.SC_NOT_MODIFIED, "Not Modified");
+        notModified.setHeader("Date", DateUtils.formatDate(new Date(0L)));
+        notModified.setHeader("Cache-Control", "max-age=60");
+        assertSame(impl, impl.updatedWith(now, now, notModified));
+    }
 }
@@ -0,0 +1,342 @@
+/* 
+ * TestResponseCache.java
+ * 
+ * Copyright (C) 2012 Jonathan Moore
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *   
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.chaplib;
+
+import static org.junit.Assert.*;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.util.Date;
+
+import org.apache.http.HttpResponse;
+import org.apache.http.HttpStatus;
+import org.apache.http.HttpVersion;
+import org.apache.http.entity.ByteArrayEntity;
+import org.apache.http.entity.InputStreamEntity;
+import org.apache.http.impl.client.cache.HeapResourceFactory;
+import org.apache.http.impl.cookie.DateUtils;
+import org.apache.http.message.BasicHttpResponse;
+import org.apache.http.util.EntityUtils;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class TestResponseCache {
+
+    @Rule
+    public TemporaryFolder tmp = new TemporaryFolder();
+
+    private ResponseCache impl;
+    private HttpURL url;
+    private Date now;
+
+    @Before
+    public void setUp() {
+        impl = new ResponseCache(2, 10);
+        url = new HttpURL("http://www.example.com/");
+        now = new Date();
+    }
+
+    private HttpResponse cacheableResponse(String body) {
+        HttpResponse resp = new BasicHttpResponse(HttpVersion.HTTP_1_1, HttpStatus.SC_OK, "OK");
+        resp.setHeader("Date", DateUtils.formatDate(now));
+        resp.setHeader("Cache-Control", "max-age=3600");
+        resp.setEntity(new ByteArrayEntity(body.getBytes()));
+        return resp;
+    }
+
+    private Response offer(HttpURL u, HttpResponse resp) throws Exception {
+        return impl.cacheResponse(u, now, now, resp);
+    }
+
+    @Test
+    public void cachesResponseWithExplicitFreshness() throws Exception {
+        Response stored = offer(url, cacheableResponse("hello"));
+        assertNotNull(stored);
+        assertSame(stored, impl.get(url));
+        assertEquals("hello", EntityUtils.toString(new CachedEntity(stored)));
+    }
+
+    @Test
+    public void doesNotCacheResponseWithoutExplicitFreshness() throws Exception {
+        HttpResponse resp = cacheableResponse("hello");
+        resp.removeHeaders("Cache-Control");
+        assertNull(offer(url, resp));
+        assertNull(impl.get(url));
+    }
+
+    @Test
+    public void doesNotTreatSMaxAgeAsExplicitFreshness() throws Exception {
+        HttpResponse resp = cacheableResponse("hello");
+        resp.setHeader("Cache-Control", "s-maxage=3600");
+        assertNull(offer(url, resp));
+        assertNull(impl.get(url));
+    }
+
+    @Test
+    public void doesNotCacheNoStoreResponse() throws Exception {
+        HttpResponse resp = cacheableResponse("hello");
+        resp.setHeader("Cache-Control", "max-age=3600, no-store");
+        assertNull(offer(url, resp));
+    }
+
+    @Test
+    public void doesNotCacheServerErrors() throws Exception {
+        HttpResponse resp = cacheableResponse("hello");
+        resp.setStatusCode(HttpStatus.SC_INTERNAL_SERVER_ERROR);
+        assertNull(offer(url, resp));
+    }
+
+    @Test
+    public void doesNotCacheVaryStar() throws Exception {
+        HttpResponse resp = cacheableResponse("hello");
+        resp.setHeader("Vary", "*");
+        assertNull(offer(url, resp));
+    }
+
+    @Test
+    public void leavesOversizedBodyReadable() throws Exception {
+        HttpResponse resp = cacheableResponse("hello");
+        resp.setEntity(new InputStreamEntity(
+                new ByteArrayInputStream("hello, world".getBytes()), -1));
+        assertNull(offer(url, resp));
+        assertEquals("hello, world", EntityUtils.toString(resp.getEntity()));
+        assertNull(impl.get(url));
+    }
+
+    @Test
+    public void evictsLeastRecentlyUsedBeyondMaxEntries() throws Exception {
+        HttpURL url2 = new HttpURL("http://www.example.com/2");
+        HttpURL url3 = new HttpURL("http://www.example.com/3");
+        offer(url, cacheableResponse("a"));
+        offer(url2, cacheableResponse("b"));
+        impl.get(url);
+        offer(url3, cacheableResponse("c"));
+        assertNotNull(impl.get(url));
+        assertNull(impl.get(url2));
+        assertNotNull(impl.get(url3));
+    }
+
+    @Test
+    public void evictsBeyondMaxBytes() throws Exception {
+        HttpURL url2 = new HttpURL("http://www.example.com/2");
+        offer(url, cacheableResponse("123456"));
+        offer(url2, cacheableResponse("123456"));
+        assertNull(impl.get(url));
+        assertNotNull(impl.get(url2));
+    }
+
+    @Test
+    public void canInvalidateEntry() throws Exception {
+        offer(url, cacheableResponse("hello"));
+        impl.invalidate(url);
+        assertNull(impl.get(url));
+    }
+
+    @Test
+    public void cachesRevalidatableResponseWithoutExplicitFreshness() throws Exception {
+        HttpResponse resp = cacheableResponse("hello");
+        resp.removeHeaders("Cache-Control");
+        resp.setHeader("ETag", "\"etag\"");
+        assertNotNull(offer(url, resp));
+    }
+
+    @Test
+    public void doesNotCacheNoCacheResponseWithoutValidators() throws Exception {
+        HttpResponse resp = cacheableResponse("hello");
+        resp.setHeader("Cache-Control", "max-age=3600, no-cache");
+        assertNull(offer(url, resp));
+    }
+
+    @Test
+    public void revalidatedEntryReplacesStaleOne() throws Exception {
+        HttpResponse resp = cacheableResponse("hello");
+        resp.setHeader("ETag", "\"etag\"");
+        Response stale = offer(url, resp);
+        HttpResponse notModified = new BasicHttpResponse(HttpVersion.HTTP_1_1,
+                HttpStatus.SC_NOT_MODIFIED, "Not Modified");
+        Response updated = impl.revalidated(url, stale, now, now, notModified);
+        assertSame(updated, impl.get(url));
+        assertEquals("hello", EntityUtils.toString(new CachedEntity(updated)));
+    }
+
+    @Test
+    public void evictionReleasesDirectMemory() throws Exception {
+        DirectMemoryResourceFactory memory = new DirectMemoryResourceFactory(64, 64, 16);
+        impl = new ResponseCache(1, 100, memory);
+        ResponseCache.release(offer(url, cacheableResponse("hello")));
+        assertTrue(memory.getFreeBytes() < memory.getAllocatedBytes());
+        HttpURL other = new HttpURL("http://www.example.com/other");
+        ResponseCache.release(offer(other, cacheableResponse("world")));
+        CachedEntity entity = new CachedEntity(impl.get(other));
+        assertEquals("world", EntityUtils.toString(entity));
+        entity.close();
+        impl.invalidate(other);
+        assertEquals(memory.getAllocatedBytes(), memory.getFreeBytes());
+    }
+
+    @Test
+    public void bodyOutlivesEvictionUntilReleased() throws Exception {
+        DirectMemoryResourceFactory memory = new DirectMemoryResourceFactory(64, 64, 16);
+        impl = new ResponseCache(1, 100, memory);
+        ResponseCache.release(offer(url, cacheableResponse("hello")));
+        CachedEntity entity = new CachedEntity(impl.get(url));
+        ResponseCache.release(offer(new HttpURL("http://www.example.com/other"),
+                cacheableResponse("world")));
+        impl.invalidate(url);
+        assertEquals("hello", EntityUtils.toString(entity));
+        entity.close();
+        impl.invalidate(new HttpURL("http://www.example.com/other"));
+        assertEquals(memory.getAllocatedBytes(), memory.getFreeBytes());
+    }
+
+    @Test
+    public void revalidatedResponseOutlivesReplacedEntry() throws Exception {
+        DirectMemoryResourceFactory memory = new DirectMemoryResourceFactory(64, 64, 16);
+        impl = new ResponseCache(2, 100, memory);
+        HttpResponse resp = cacheableResponse("hello");
+        resp.setHeader("ETag", "\"etag\"");
+        Response stale = offer(url, resp);
+        ResponseCache.release(offer(url, cacheableResponse("world")));
+        HttpResponse notModified = new BasicHttpResponse(HttpVersion.HTTP_1_1,
+                HttpStatus.SC_NOT_MODIFIED, "Not Modified");
+        Response updated = impl.revalidated(url, stale, now, now, notModified);
+        ResponseCache.release(stale);
+        impl.invalidate(url);
+        CachedEntity entity = new CachedEntity(updated);
+        assertEquals("hello", EntityUtils.toString(entity));
+        entity.close();
+        assertEquals(memory.getAllocatedBytes(), memory.getFreeBytes());
+    }
+
+    @Test
+    public void servesEntriesFromSecondTierAfterRestart() throws Exception {
+        File dir = tmp.newFolder("cache");
+        MappedFileCacheStorage disk = new MappedFileCacheStorage(dir, 1 << 20, 4096);
+        impl = new ResponseCache(2, 10, new HeapResourceFactory(), disk);
+        offer(url, cacheableResponse("hello"));
+        disk.close();
+
+        disk = new MappedFileCacheStorage(dir, 1 << 20, 4096);
+        impl = new ResponseCache(2, 10, new HeapResourceFactory(), disk);
+        Response warm = impl.get(url);
+        assertNotNull(warm);
+        assertTrue(warm.isResponseFresh(now));
+        assertEquals("hello", EntityUtils.toString(new CachedEntity(warm)));
+        assertSame(warm, impl.get(url));
+        disk.close();
+    }
+
+    @Test
+    public void invalidationRemovesFromSecondTier() throws Exception {
+        MappedFileCacheStorage disk = new MappedFileCacheStorage(tmp.newFolder("cache"),
+                1 << 20, 4096);
+        impl = new ResponseCache(2, 10, new HeapResourceFactory(), disk);
+        offer(url, cacheableResponse("hello"));
+        impl.invalidate(url);
+        assertNull(disk.getEntry(url.toString()));
+        assertNull(impl.get(url));
+        disk.close();
+    }
+
+    @Test
+    public void evictedEntriesRemainInSecondTier() throws Exception {
+        MappedFileCacheStorage disk = new MappedFileCacheStorage(tmp.newFolder("cache"),
+                1 << 20, 4096);
+        impl = new ResponseCache(1, 10, new HeapResourceFactory(), disk);
+        HttpURL url2 = new HttpURL("http://www.example.com/2");
+        offer(url, cacheableResponse("a"));
+        offer(url2, cacheableResponse("b"));
+        assertEquals("a", EntityUtils.toString(new CachedEntity(impl.get(url))));
+        disk.close();
+    }
+
+    private static String bodyOfSize(int n) {
+        StringBuilder sb = new StringBuilder();
+        for(int i=0; i<n; i++) sb.append('x');
+        return sb.toString();
+    }
+
+    @Test
+    public void frequentlyUsedEntriesSurviveScanOfLargeOnes() throws Exception {
+        assertHotEntriesSurviveScan(20, 200);
+    }
+
+    @Test
+    public void frequentlyUsedEntriesSurviveScanOfEntriesNearlyFillingCache()
+            throws Exception {
+        assertHotEntriesSurviveScan(3, 800);
+        assertHotEntriesSurviveScan(3, 900);
+        assertHotEntriesSurviveScan(3, 990);
+    }
+
+    private void assertHotEntriesSurviveScan(int scanned, int scanSize) throws Exception {
+        impl = new ResponseCache(100, 1000);
+        HttpURL[] hot = new HttpURL[5];
+        for(int i=0; i<hot.length; i++) {
+            hot[i] = new HttpURL("http://www.example.com/hot/" + i);
+            offer(hot[i], cacheableResponse(bodyOfSize(50)));
+        }
+        for(int round=0; round<3; round++) {
+            for(HttpURL u : hot) assertNotNull(impl.get(u));
+        }
+        for(int i=0; i<scanned; i++) {
+            HttpURL u = new HttpURL("http://www.example.com/scan/" + i);
+            assertNull(impl.get(u));
+            offer(u, cacheableResponse(bodyOfSize(scanSize)));
+        }
+        for(HttpURL u : hot) assertNotNull(impl.get(u));
+    }
+
+    @Test
+    public void replacesRarelyUsedEntriesWithPopularOnes() throws Exception {
+        impl = new ResponseCache(3, 1000);
+        HttpURL url2 = new HttpURL("http://www.example.com/2");
+        HttpURL url3 = new HttpURL("http://www.example.com/3");
+        offer(url, cacheableResponse("a"));
+        offer(url2, cacheableResponse("b"));
+        impl.invalidate(url3);
+        for(int i=0; i<3; i++) impl.get(url3);
+        offer(url3, cacheableResponse("c"));
+        offer(new HttpURL("http://www.example.com/4"), cacheableResponse("d"));
+        assertNotNull(impl.get(url3));
+        assertEquals(3, impl.size());
+    }
+
+    @Test
+    public void staysWithinByteLimit() throws Exception {
+        impl = new ResponseCache(100, 100);
+        for(int i=0; i<50; i++) {
+            offer(new HttpURL("http://www.example.com/" + i), cacheableResponse("0123456789"));
+        }
+        assertEquals(10, impl.size());
+        assertEquals(40L, impl.getEvictionCount());
+    }
+
+    @Test
+    public void countsHitsAndMisses() throws Exception {
+        impl.get(url);
+        offer(url, cacheableResponse("hello"));
+        impl.get(url);
+        impl.get(url);
+        assertEquals(2L, impl.getHitCount());
+        assertEquals(1L, impl.getMissCount());
+        assertEquals(0L, impl.getEvictionCount());
+    }
+}
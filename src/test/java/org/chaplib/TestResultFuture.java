@@ -0,0 +1,143 @@
+/* 
+ * TestResultFuture.java
+ * 
+ * Copyright (C) 2012 Jonathan Moore
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *   
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.chaplib;
+
+import static org.junit.Assert.*;
+
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import org.junit.Before;
+import org.junit.Test;
+
+public class TestResultFuture {
+
+    private ResultFuture<Object> impl;
+    private Object result;
+
+    @Before
+    public void setUp() {
+        impl = new ResultFuture<Object>();
+        result = new Object();
+    }
+
+    private static class RecordingCallback implements ResultCallback<Object> {
+        Object result;
+        Throwable failure;
+        int calls = 0;
+
+        public void completed(Object result) {
+            this.result = result;
+            calls++;
+        }
+
+        public void failed(Throwable failure) {
+            this.failure = failure;
+            calls++;
+        }
+    }
+
+    @Test
+    public void isNotDoneInitially() {
+        assertFalse(impl.isDone());
+    }
+
+    @Test
+    public void getReturnsCompletedResult() throws Exception {
+        impl.completed(result);
+        assertTrue(impl.isDone());
+        assertSame(result, impl.get());
+    }
+
+    @Test
+    public void getThrowsFailure() throws Exception {
+        IllegalStateException failure = new IllegalStateException();
+        impl.failed(failure);
+        try {
+            impl.get();
+            fail("should have thrown");
+        } catch (ExecutionException expected) {
+            assertSame(failure, expected.getCause());
+        }
+    }
+
+    @Test(expected=TimeoutException.class)
+    public void timedGetTimesOutIfNotCompleted() throws Exception {
+        impl.get(10L, TimeUnit.MILLISECONDS);
+    }
+
+    @Test
+    public void notifiesCallbackAddedBeforeCompletion() {
+        RecordingCallback cb = new RecordingCallback();
+        impl.addCallback(cb);
+        assertEquals(0, cb.calls);
+        impl.completed(result);
+        assertSame(result, cb.result);
+        assertEquals(1, cb.calls);
+    }
+
+    @Test
+    public void notifiesCallbackAddedAfterCompletion() {
+        impl.completed(result);
+        RecordingCallback cb = new RecordingCallback();
+        impl.addCallback(cb);
+        assertSame(result, cb.result);
+    }
+
+    @Test
+    public void notifiesCallbackOfFailure() {
+        RecordingCallback cb = new RecordingCallback();
+        impl.addCallback(cb);
+        IllegalStateException failure = new IllegalStateException();
+        impl.failed(failure);
+        assertSame(failure, cb.failure);
+    }
+
+    @Test
+    public void onlyFirstCompletionCounts() throws Exception {
+        RecordingCallback cb = new RecordingCallback();
+        impl.addCallback(cb);
+        impl.completed(result);
+        impl.completed(new Object());
+        impl.failed(new IllegalStateException());
+        assertSame(result, impl.get());
+        assertEquals(1, cb.calls);
+    }
+
+    @Test
+    public void misbehavingCallbackDoesNotPreventOthers() {
+        impl.addCallback(new ResultCallback<Object>() {
+            public void completed(Object result) {
+                throw new IllegalStateException();
+            }
+            public void failed(Throwable failure) {
+            }
+        });
+        RecordingCallback cb = new RecordingCallback();
+        impl.addCallback(cb);
+        impl.completed(result);
+        assertSame(result, cb.result);
+    }
+
+    @Test
+    public void cannotBeCancelled() {
+        assertFalse(impl.cancel(true));
+        assertFalse(impl.isCancelled());
+    }
+}
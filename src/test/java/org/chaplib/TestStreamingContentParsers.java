@@ -0,0 +1,117 @@
+/* 
+ * TestStreamingContentParsers.java
+ * 
+ * Copyright (C) 2012 Jonathan Moore
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *   
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.chaplib;
+
+import static org.junit.Assert.*;
+import static org.mockito.Mockito.*;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.nio.ByteBuffer;
+import java.nio.channels.ReadableByteChannel;
+
+import org.apache.http.HttpEntity;
+import org.apache.http.entity.ByteArrayEntity;
+import org.apache.http.entity.StringEntity;
+import org.junit.Test;
+
+public class TestStreamingContentParsers {
+
+    private static class ByteCounter implements ChannelContentParser<Integer> {
+        String contentType;
+        public Integer parse(ReadableByteChannel body, String contentType) throws IOException {
+            this.contentType = contentType;
+            ByteBuffer buf = ByteBuffer.allocate(3);
+            int total = 0;
+            int n;
+            while ((n = body.read(buf)) != -1) {
+                total += n;
+                buf.clear();
+            }
+            return total;
+        }
+    }
+
+    private static class CharReader implements ReaderContentParser<String> {
+        String contentType;
+        public String parse(Reader body, String contentType) throws IOException {
+            this.contentType = contentType;
+            StringBuilder out = new StringBuilder();
+            char[] buf = new char[3];
+            int n;
+            while ((n = body.read(buf)) != -1) {
+                out.append(buf, 0, n);
+            }
+            return out.toString();
+        }
+    }
+
+    @Test
+    public void channelParserSeesAllBytes() throws Exception {
+        ByteArrayEntity entity = new ByteArrayEntity(new byte[1000]);
+        assertEquals(Integer.valueOf(1000),
+                StreamingContentParsers.forChannel(new ByteCounter()).parse(entity));
+    }
+
+    @Test
+    public void channelParserSeesNormalizedContentType() throws Exception {
+        ByteArrayEntity entity = new ByteArrayEntity(new byte[1]);
+        entity.setContentType("text/plain");
+        ByteCounter counter = new ByteCounter();
+        StreamingContentParsers.forChannel(counter).parse(entity);
+        assertEquals("text/plain;charset=iso-8859-1", counter.contentType);
+    }
+
+    @Test
+    public void readerParserDecodesWithDeclaredCharset() throws Exception {
+        String s = "caf\u00e9 \u2603";
+        StringEntity entity = new StringEntity(s, "UTF-8");
+        assertEquals(s, StreamingContentParsers.forReader(new CharReader()).parse(entity));
+    }
+
+    @Test
+    public void readerParserDefaultsToIso_8859_1() throws Exception {
+        ByteArrayEntity entity = new ByteArrayEntity(new byte[] { (byte)0xe9 });
+        entity.setContentType("text/plain");
+        CharReader reader = new CharReader();
+        assertEquals("\u00e9", StreamingContentParsers.forReader(reader).parse(entity));
+        assertEquals("text/plain;charset=iso-8859-1", reader.contentType);
+    }
+
+    @Test
+    public void readerParserDefaultsToIso_8859_1WithoutContentType() throws Exception {
+        ByteArrayEntity entity = new ByteArrayEntity(new byte[] { (byte)0xe9 });
+        CharReader reader = new CharReader();
+        assertEquals("\u00e9", StreamingContentParsers.forReader(reader).parse(entity));
+        assertNull(reader.contentType);
+    }
+
+    @Test(expected=InvalidCharacterSetException.class)
+    public void readerParserRejectsUnsupportedCharset() throws Exception {
+        ByteArrayEntity entity = new ByteArrayEntity(new byte[1]);
+        entity.setContentType("text/plain;charset=x-no-such-charset");
+        StreamingContentParsers.forReader(new CharReader()).parse(entity);
+    }
+
+    @Test(expected=RuntimeException.class)
+    public void wrapsIOExceptions() throws Exception {
+        HttpEntity entity = mock(HttpEntity.class);
+        when(entity.getContent()).thenThrow(new IOException());
+        StreamingContentParsers.forChannel(new ByteCounter()).parse(entity);
+    }
+}
@@ -0,0 +1,94 @@
+/* 
+ * TestURLCanonicalizer.java
+ * 
+ * Copyright (C) 2012 Jonathan Moore
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *   
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.chaplib;
+
+import static org.junit.Assert.*;
+
+import org.junit.Test;
+
+public class TestURLCanonicalizer {
+
+    @Test
+    public void returnsSameInstanceIfAlreadyCanonical() {
+        String s = "http://www.example.com:80/foo/bar?q=%2F";
+        assertSame(s, URLCanonicalizer.canonicalize(s));
+    }
+
+    @Test
+    public void addsDefaultPortAndPath() {
+        assertEquals("http://www.example.com:80/",
+                URLCanonicalizer.canonicalize("http://www.example.com"));
+        assertEquals("https://www.example.com:443/?q",
+                URLCanonicalizer.canonicalize("https://www.example.com?q"));
+    }
+
+    @Test
+    public void lowercasesSchemeAndHost() {
+        assertEquals("https://www.example.com:8443/Foo",
+                URLCanonicalizer.canonicalize("HTTPS://WWW.Example.COM:8443/Foo"));
+    }
+
+    @Test
+    public void stripsLeadingZerosFromPort() {
+        assertEquals("http://www.example.com:80/",
+                URLCanonicalizer.canonicalize("http://www.example.com:080/"));
+    }
+
+    @Test
+    public void dropsUserInfoAndFragment() {
+        assertEquals("http://www.example.com:80/a",
+                URLCanonicalizer.canonicalize("http://user:pw@www.example.com/a#top"));
+    }
+
+    @Test
+    public void unescapesUnreservedCharactersInPathAndQuery() {
+        assertEquals("http://www.example.com:80/~smith?a=~b%2F",
+                URLCanonicalizer.canonicalize("http://www.example.com/%7Esmith?a=%7eb%2F"));
+    }
+
+    @Test
+    public void keepsIPv6LiteralHosts() {
+        assertEquals("http://[::1]:8080/",
+                URLCanonicalizer.canonicalize("http://[::1]:8080"));
+    }
+
+    @Test(expected=IllegalArgumentException.class)
+    public void rejectsTruncatedEscape() {
+        URLCanonicalizer.canonicalize("http://www.example.com/%7");
+    }
+
+    @Test(expected=IllegalArgumentException.class)
+    public void rejectsNonHexEscape() {
+        URLCanonicalizer.canonicalize("http://www.example.com/%zz");
+    }
+
+    @Test(expected=IllegalArgumentException.class)
+    public void rejectsNonNumericPort() {
+        URLCanonicalizer.canonicalize("http://www.example.com:http/");
+    }
+
+    @Test(expected=IllegalArgumentException.class)
+    public void rejectsOutOfRangePort() {
+        URLCanonicalizer.canonicalize("http://www.example.com:65536/");
+    }
+
+    @Test(expected=IllegalArgumentException.class)
+    public void rejectsMissingHost() {
+        URLCanonicalizer.canonicalize("http:///foo");
+    }
+}